@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compare the binary scan result encoding with the JSON payload getScanResults sends by default
+ *
+ * Builds both payloads from the same synthetic scan results and prints encode time and payload size.  Not part of
+ * the plugin (not listed in plugin.xml), run it on a plain JVM with an org.json implementation on the classpath:
+ *
+ *   javac -cp json.jar -d build bench/wifiwizard2/ScanResultEncoderBench.java \
+ *       src/android/wifiwizard2/ScanResultEncoder.java
+ *   java -cp json.jar:build wifiwizard2.ScanResultEncoderBench [results] [iterations]
+ *
+ * Cordova sends an ArrayBuffer across the bridge base64 encoded, so that size is printed as well.
+ */
+public class ScanResultEncoderBench {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String[] CAPABILITIES = {
+      "[WPA2-PSK-CCMP][RSN-PSK-CCMP][ESS]", "[ESS]", "[WPA2-EAP-CCMP][ESS]", "[RSN-SAE-CCMP][ESS]"
+  };
+
+  private final int count;
+  private final String[] ssids;
+  private final String[] bssids;
+  private final String[] capabilities;
+  private final int[] levels;
+  private final int[] frequencies;
+  private final long[] timestamps;
+
+  private ScanResultEncoderBench(int count) {
+    this.count = count;
+    ssids = new String[count];
+    bssids = new String[count];
+    capabilities = new String[count];
+    levels = new int[count];
+    frequencies = new int[count];
+    timestamps = new long[count];
+
+    Random random = new Random(1);
+
+    // A few SSIDs broadcast by many APs, like an office or campus scan
+    for (int i = 0; i < count; i++) {
+      ssids[i] = "Site-AP-" + (i % 40);
+      bssids[i] = String.format("a4:%02x:%02x:04:05:%02x", i & 0xff, (i >> 8) & 0xff, (i * 7) & 0xff);
+      capabilities[i] = CAPABILITIES[i % CAPABILITIES.length];
+      levels[i] = -30 - random.nextInt(60);
+      frequencies[i] = i % 2 == 0 ? 2412 + 5 * (i % 13) : 5180 + 20 * (i % 8);
+      timestamps[i] = 123456789012L + i;
+    }
+  }
+
+  public static void main(String[] args) throws JSONException {
+    int results = args.length > 0 ? Integer.parseInt(args[0]) : 250;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+    ScanResultEncoderBench bench = new ScanResultEncoderBench(results);
+    ScanResultEncoder encoder = new ScanResultEncoder(64);
+
+    // First half of the iterations warms up the JIT
+    byte[] binary = null;
+    long binaryStart = 0;
+    for (int i = 0; i < iterations * 2; i++) {
+      if (i == iterations) {
+        binaryStart = System.nanoTime();
+      }
+      binary = bench.encodeBinary(encoder);
+    }
+    long binaryTime = (System.nanoTime() - binaryStart) / iterations;
+
+    String json = null;
+    long jsonStart = 0;
+    for (int i = 0; i < iterations * 2; i++) {
+      if (i == iterations) {
+        jsonStart = System.nanoTime();
+      }
+      json = bench.encodeJSON();
+    }
+    long jsonTime = (System.nanoTime() - jsonStart) / iterations;
+
+    int jsonBytes = json.getBytes(UTF_8).length;
+    int base64Bytes = (binary.length + 2) / 3 * 4;
+
+    System.out.println("results: " + results + ", iterations: " + iterations);
+    System.out.println(String.format("binary: %8.1f us, %7d bytes (%d base64)", binaryTime / 1000.0, binary.length,
+        base64Bytes));
+    System.out.println(String.format("json:   %8.1f us, %7d bytes", jsonTime / 1000.0, jsonBytes));
+    System.out.println(String.format("binary/json: %.2fx time, %.2fx size (%.2fx base64)",
+        (double) binaryTime / jsonTime, (double) binary.length / jsonBytes, (double) base64Bytes / jsonBytes));
+  }
+
+  /**
+   * Binary payload, as getScanResults({format: "binary"}) builds it
+   */
+  private byte[] encodeBinary(ScanResultEncoder encoder) {
+    encoder.reset();
+
+    for (int i = 0; i < count; i++) {
+      encoder.add(ssids[i], bssids[i], capabilities[i], levels[i], frequencies[i], 1, 5190, 0, timestamps[i]);
+    }
+
+    return encoder.encode(ScanResultEncoder.FLAG_SOURCE_SCAN);
+  }
+
+  /**
+   * JSON payload, as getScanResults builds it with the default fields
+   */
+  private String encodeJSON() throws JSONException {
+    JSONArray returnList = new JSONArray();
+
+    for (int i = 0; i < count; i++) {
+      JSONObject lvl = new JSONObject();
+      lvl.put("level", levels[i]);
+      lvl.put("SSID", ssids[i]);
+      lvl.put("BSSID", bssids[i]);
+      lvl.put("frequency", frequencies[i]);
+      lvl.put("capabilities", capabilities[i]);
+      lvl.put("timestamp", timestamps[i]);
+      lvl.put("channelWidth", 1);
+      lvl.put("centerFreq0", 5190);
+      lvl.put("centerFreq1", 0);
+      returnList.put(lvl);
+    }
+
+    return returnList.toString();
+  }
+}
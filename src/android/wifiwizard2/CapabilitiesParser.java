@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses ScanResult.capabilities strings, e.g. "[WPA2-PSK-CCMP+TKIP][RSN-PSK-CCMP][ESS][WPS]"
+ *
+ * Each bracketed element is either a flag (ESS, IBSS, WPS, WEP, ...) or a protocol element of the form
+ * PROTOCOL-KEYMGMT[+KEYMGMT]-CIPHER[+CIPHER].  Only a handful of distinct strings show up in a scan, so parsed
+ * results are memoized by string.
+ */
+final class CapabilitiesParser {
+
+  static final String AUTH_WPA = "WPA";
+  static final String AUTH_WPA2 = "WPA2";
+  static final String AUTH_WEP = "WEP";
+  static final String AUTH_NONE = "NONE";
+  // Secured in a way add() can not configure (enterprise, WPA3-only, OWE)
+  static final String AUTH_UNSUPPORTED = "UNSUPPORTED";
+
+  static final String KEY_PSK = "PSK";
+  static final String KEY_SAE = "SAE";
+  static final String KEY_EAP = "EAP";
+  static final String KEY_OWE = "OWE";
+
+  private static final int MAX_CACHED = 64;
+
+  private static final Map<String, Security> cache = new LinkedHashMap<String, Security>(MAX_CACHED + 1, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Security> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+
+  private static final Security OPEN = parseUncached("");
+
+  private CapabilitiesParser() {}
+
+  /**
+   * Parsed security for capabilities string (memoized)
+   */
+  static Security parse(String capabilities) {
+    if (capabilities == null || capabilities.isEmpty()) {
+      return OPEN;
+    }
+
+    synchronized (cache) {
+      Security security = cache.get(capabilities);
+
+      if (security == null) {
+        security = parseUncached(capabilities);
+        cache.put(capabilities, security);
+      }
+
+      return security;
+    }
+  }
+
+  private static Security parseUncached(String capabilities) {
+    Security security = new Security();
+    boolean wpa = false, rsn = false;
+
+    int start = capabilities.indexOf('[');
+
+    while (start >= 0) {
+      int end = capabilities.indexOf(']', start);
+      if (end < 0) {
+        break;
+      }
+
+      String element = capabilities.substring(start + 1, end);
+      start = capabilities.indexOf('[', end);
+
+      if (element.equals("ESS")) {
+        security.ess = true;
+      } else if (element.equals("IBSS")) {
+        security.ibss = true;
+      } else if (element.equals("WPS")) {
+        security.wps = true;
+      } else if (element.equals("WEP")) {
+        security.wep = true;
+      } else if (element.startsWith("WPA-") || element.startsWith("WPA2-") || element.startsWith("RSN-")) {
+        int keyStart = element.indexOf('-') + 1;
+        int keyEnd = element.indexOf('-', keyStart);
+        String protocol = element.substring(0, keyStart - 1);
+
+        if (protocol.equals("WPA")) {
+          wpa = true;
+        } else {
+          rsn = true;
+        }
+
+        // Cipher names may contain a dash themselves (GCMP-256), so everything after the key management is ciphers
+        String keys = keyEnd < 0 ? element.substring(keyStart) : element.substring(keyStart, keyEnd);
+        String ciphers = keyEnd < 0 ? "" : element.substring(keyEnd + 1);
+
+        for (String key : keys.split("\\+")) {
+          addOnce(security.keyManagement, keyManagementOf(key));
+        }
+
+        for (String cipher : ciphers.split("\\+")) {
+          if (!cipher.isEmpty()) {
+            addOnce(security.ciphers, cipher);
+          }
+        }
+      }
+    }
+
+    boolean psk = security.keyManagement.contains(KEY_PSK);
+
+    if (psk && rsn) {
+      security.authType = AUTH_WPA2;
+    } else if (psk) {
+      security.authType = AUTH_WPA;
+    } else if (security.wep) {
+      security.authType = AUTH_WEP;
+    } else if (security.keyManagement.isEmpty()) {
+      security.authType = AUTH_NONE;
+    } else {
+      security.authType = AUTH_UNSUPPORTED;
+    }
+
+    // Same classification used by the `security` scan filter
+    if (security.wep) {
+      security.types |= ScanQuery.SECURITY_WEP;
+    }
+    if (wpa) {
+      security.types |= ScanQuery.SECURITY_WPA;
+    }
+    if (rsn && (psk || security.keyManagement.contains(KEY_EAP))) {
+      security.types |= ScanQuery.SECURITY_WPA2;
+    }
+    if (security.keyManagement.contains(KEY_SAE) || capabilities.contains("SUITE_B")) {
+      security.types |= ScanQuery.SECURITY_WPA3;
+    }
+    if (security.types == 0) {
+      security.types = ScanQuery.SECURITY_OPEN;
+    }
+
+    security.keyManagement = Collections.unmodifiableList(security.keyManagement);
+    security.ciphers = Collections.unmodifiableList(security.ciphers);
+
+    return security;
+  }
+
+  /**
+   * Normalize a key management suite (PSK, FT/PSK, PSK-SHA256, EAP/SHA1, EAP_SUITE_B_192, ...)
+   */
+  private static String keyManagementOf(String key) {
+    if (key.contains("SAE")) {
+      return KEY_SAE;
+    } else if (key.contains("OWE")) {
+      return KEY_OWE;
+    } else if (key.contains("EAP") || key.contains("SUITE_B") || key.contains("FILS")) {
+      return KEY_EAP;
+    } else if (key.contains("PSK")) {
+      return KEY_PSK;
+    }
+    return null;
+  }
+
+  private static void addOnce(List<String> list, String value) {
+    if (value != null && !list.contains(value)) {
+      list.add(value);
+    }
+  }
+
+  /**
+   * Parsed capabilities, shared between results so must not be modified
+   */
+  static final class Security {
+    List<String> keyManagement = new ArrayList<String>();
+    List<String> ciphers = new ArrayList<String>();
+    boolean wps;
+    boolean wep;
+    boolean ess;
+    boolean ibss;
+    String authType;
+    // ScanQuery.SECURITY_* flags
+    int types;
+
+    /**
+     * JSON representation, a new object per result: Security is shared, the JSON put into results is not
+     */
+    JSONObject toJSON() throws JSONException {
+      JSONObject result = new JSONObject();
+      result.put("authType", authType);
+      result.put("keyManagement", new JSONArray(keyManagement));
+      result.put("ciphers", new JSONArray(ciphers));
+      result.put("wps", wps);
+      result.put("ess", ess);
+      result.put("ibss", ibss);
+      return result;
+    }
+  }
+}
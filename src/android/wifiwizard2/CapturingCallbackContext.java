@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Callback context that keeps the result instead of sending it to JavaScript
+ *
+ * Lets the plugin run an action handler natively and wait for its answer (pipeline steps).  Only the first final
+ * result is kept, intermediate results (keepCallback) and anything sent after it are dropped.
+ */
+class CapturingCallbackContext extends CallbackContext {
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private PluginResult result;
+
+  CapturingCallbackContext(String callbackId, CordovaWebView webView) {
+    super(callbackId, webView);
+  }
+
+  @Override
+  public void sendPluginResult(PluginResult pluginResult) {
+    if (pluginResult.getKeepCallback()) {
+      return;
+    }
+
+    synchronized (this) {
+      if (result != null) {
+        return;
+      }
+      result = pluginResult;
+    }
+
+    done.countDown();
+  }
+
+  @Override
+  public synchronized boolean isFinished() {
+    return result != null;
+  }
+
+  /**
+   * Wait for the result
+   *
+   * @return result, or null if none was sent within timeoutMs
+   */
+  PluginResult await(long timeoutMs) throws InterruptedException {
+    done.await(timeoutMs, TimeUnit.MILLISECONDS);
+
+    synchronized (this) {
+      return result;
+    }
+  }
+
+  static boolean isSuccess(PluginResult result) {
+    return result.getStatus() == PluginResult.Status.OK.ordinal();
+  }
+
+  /**
+   * Result message as the value JavaScript would have received (String, Number, Boolean, JSONObject or
+   * JSONArray), JSONObject.NULL for empty and binary results
+   */
+  static Object valueOf(PluginResult result) {
+    switch (result.getMessageType()) {
+      case PluginResult.MESSAGE_TYPE_STRING:
+        return result.getStrMessage();
+      case PluginResult.MESSAGE_TYPE_JSON:
+      case PluginResult.MESSAGE_TYPE_NUMBER:
+      case PluginResult.MESSAGE_TYPE_BOOLEAN:
+        try {
+          return new JSONTokener(result.getMessage()).nextValue();
+        } catch (JSONException e) {
+          return result.getMessage();
+        }
+      default:
+        return JSONObject.NULL;
+    }
+  }
+}
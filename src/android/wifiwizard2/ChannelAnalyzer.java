@@ -0,0 +1,289 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import android.net.wifi.ScanResult;
+import android.os.Build.VERSION;
+
+/**
+ * Channel congestion computed from scan results
+ *
+ * Per band, counters are kept in fixed arrays indexed by 20 MHz channel number and filled in a single pass over
+ * the results.  Every AP adds to the channel it is on (apCount), and to every 20 MHz channel its (possibly
+ * bonded) span overlaps: `overlapping`, `overlap` per AP channel width, and `occupancy`, where each AP is
+ * weighted by signal strength so a distant AP counts less than one in the same room.
+ *
+ * The arrays are reused between calls, so calls are synchronized.
+ */
+class ChannelAnalyzer {
+
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  // Levels at or below this don't add to occupancy, levels at or above FULL_WEIGHT_LEVEL count fully
+  private static final int NOISE_FLOOR = -95;
+  private static final int FULL_WEIGHT_LEVEL = -35;
+
+  // ScanResult.CHANNEL_WIDTH_320MHZ, API 33+
+  private static final int CHANNEL_WIDTH_320MHZ = 5;
+
+  private static final int[] WIDTHS = { 20, 40, 80, 160, 320 };
+
+  private final Band band24 = new Band("2.4", 2407, 1, 14, new int[] { 1, 6, 11 });
+  private final Band band5 = new Band("5", 5000, 32, 177, new int[] {
+      36, 40, 44, 48, 52, 56, 60, 64, 100, 104, 108, 112, 116, 120, 124, 128, 132, 136, 140, 144,
+      149, 153, 157, 161, 165
+  });
+  // Preferred scanning channels
+  private final Band band6 = new Band("6", 5950, 1, 233, new int[] {
+      5, 21, 37, 53, 69, 85, 101, 117, 133, 149, 165, 181, 197, 213, 229
+  });
+
+  /**
+   * Analyze scan results
+   *
+   * Result format: {"2.4": {channels: [...], recommended: [...]}, "5": {...}, "6": {...}}
+   */
+  synchronized JSONObject analyze(List<ScanResult> scanResults) throws JSONException {
+    band24.reset();
+    band5.reset();
+    band6.reset();
+
+    boolean marshmallow = API_VERSION >= 23;
+
+    for (ScanResult scan : scanResults) {
+      Band band = bandOf(scan.frequency);
+
+      if (band == null) {
+        continue;
+      }
+
+      int primary = band.channelOf(scan.frequency);
+      if (primary >= band.minChannel && primary <= band.maxChannel) {
+        band.apCount[primary]++;
+      }
+
+      double weight = Math.min(1, Math.max(0,
+          (scan.level - NOISE_FLOOR) / (double) (FULL_WEIGHT_LEVEL - NOISE_FLOOR)));
+
+      int width = marshmallow ? scan.channelWidth : ScanResult.CHANNEL_WIDTH_20MHZ;
+
+      if (width == ScanResult.CHANNEL_WIDTH_80MHZ_PLUS_MHZ && marshmallow && scan.centerFreq1 > 0) {
+        // Two separate 80 MHz segments, counted as 160 MHz
+        band.addSpan(scan.centerFreq0, 40, 3, weight);
+        band.addSpan(scan.centerFreq1, 40, 3, weight);
+      } else {
+        int index = widthIndex(width);
+        if (index < 0) {
+          // Unknown (newer) width, its span can't be placed, so it only counts in apCount
+          continue;
+        }
+        int center = marshmallow && scan.centerFreq0 > 0 && index > 0 ? scan.centerFreq0 : scan.frequency;
+        band.addSpan(center, WIDTHS[index] / 2, index, weight);
+      }
+    }
+
+    JSONObject result = new JSONObject();
+    result.put(band24.name, band24.toJSON());
+    result.put(band5.name, band5.toJSON());
+    result.put(band6.name, band6.toJSON());
+    return result;
+  }
+
+  /**
+   * Index into WIDTHS for a ScanResult.CHANNEL_WIDTH_* value, -1 if unknown
+   */
+  private static int widthIndex(int width) {
+    switch (width) {
+      case ScanResult.CHANNEL_WIDTH_20MHZ:
+        return 0;
+      case ScanResult.CHANNEL_WIDTH_40MHZ:
+        return 1;
+      case ScanResult.CHANNEL_WIDTH_80MHZ:
+        return 2;
+      case ScanResult.CHANNEL_WIDTH_160MHZ:
+      case ScanResult.CHANNEL_WIDTH_80MHZ_PLUS_MHZ:
+        return 3;
+      case CHANNEL_WIDTH_320MHZ:
+        return 4;
+    }
+    return -1;
+  }
+
+  private Band bandOf(int frequency) {
+    switch (ScanQuery.bandOf(frequency)) {
+      case ScanQuery.BAND_24_GHZ:
+        return band24;
+      case ScanQuery.BAND_5_GHZ:
+        return band5;
+      case ScanQuery.BAND_6_GHZ:
+        return band6;
+    }
+    return null;
+  }
+
+  /**
+   * Counters for one band, indexed by channel number
+   */
+  private static class Band {
+    final String name;
+    final int baseFrequency;
+    final int minChannel;
+    final int maxChannel;
+    final int[] candidates;
+
+    final int[] apCount;
+    final int[] overlapping;
+    final int[] overlapByWidth;
+    final double[] occupancy;
+    // Used each time a band is ranked
+    private final Integer[] ranking;
+
+    Band(String name, int baseFrequency, int minChannel, int maxChannel, int[] candidates) {
+      this.name = name;
+      this.baseFrequency = baseFrequency;
+      this.minChannel = minChannel;
+      this.maxChannel = maxChannel;
+      this.candidates = candidates;
+      this.apCount = new int[maxChannel + 1];
+      this.overlapping = new int[maxChannel + 1];
+      this.overlapByWidth = new int[(maxChannel + 1) * WIDTHS.length];
+      this.occupancy = new double[maxChannel + 1];
+      this.ranking = new Integer[candidates.length];
+    }
+
+    void reset() {
+      Arrays.fill(apCount, 0);
+      Arrays.fill(overlapping, 0);
+      Arrays.fill(overlapByWidth, 0);
+      Arrays.fill(occupancy, 0);
+    }
+
+    int channelOf(int frequency) {
+      if (frequency == 2484) {
+        return 14;
+      }
+      return (frequency - baseFrequency) / 5;
+    }
+
+    int frequencyOf(int channel) {
+      if (channel == 14 && baseFrequency == 2407) {
+        return 2484;
+      }
+      return baseFrequency + channel * 5;
+    }
+
+    /**
+     * Whether channel number is a 20 MHz channel in this band
+     */
+    boolean isChannel(int channel) {
+      if (baseFrequency == 2407) {
+        return true;
+      } else if (baseFrequency == 5000) {
+        return (channel >= 32 && channel <= 144 && channel % 4 == 0) || (channel >= 149 && channel % 4 == 1);
+      }
+      return channel % 4 == 1;
+    }
+
+    /**
+     * Add an AP occupying center +/- halfWidth MHz to every 20 MHz channel it overlaps
+     */
+    void addSpan(int center, int halfWidth, int widthIndex, double weight) {
+      int low = center - halfWidth;
+      int high = center + halfWidth;
+
+      int first = Math.max(minChannel, (low - 10 - baseFrequency) / 5);
+      int last = Math.min(maxChannel, (high + 10 - baseFrequency) / 5 + 1);
+
+      for (int channel = first; channel <= last; channel++) {
+        int frequency = frequencyOf(channel);
+
+        if (isChannel(channel) && frequency - 10 < high && frequency + 10 > low) {
+          overlapping[channel]++;
+          overlapByWidth[channel * WIDTHS.length + widthIndex]++;
+          occupancy[channel] += weight;
+        }
+      }
+    }
+
+    JSONObject toJSON() throws JSONException {
+      JSONArray channels = new JSONArray();
+
+      for (int channel = minChannel; channel <= maxChannel; channel++) {
+        if (overlapping[channel] > 0 || apCount[channel] > 0) {
+          channels.put(channelToJSON(channel));
+        }
+      }
+
+      for (int i = 0; i < candidates.length; i++) {
+        ranking[i] = candidates[i];
+      }
+
+      Arrays.sort(ranking, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          int result = Double.compare(occupancy[a], occupancy[b]);
+          if (result == 0) {
+            result = overlapping[a] - overlapping[b];
+          }
+          if (result == 0) {
+            result = apCount[a] - apCount[b];
+          }
+          return result;
+        }
+      });
+
+      JSONArray recommended = new JSONArray();
+      for (int i = 0; i < ranking.length; i++) {
+        JSONObject entry = channelToJSON(ranking[i]);
+        entry.put("rank", i + 1);
+        recommended.put(entry);
+      }
+
+      JSONObject result = new JSONObject();
+      result.put("channels", channels);
+      result.put("recommended", recommended);
+      return result;
+    }
+
+    private JSONObject channelToJSON(int channel) throws JSONException {
+      JSONObject overlap = new JSONObject();
+      for (int i = 0; i < WIDTHS.length; i++) {
+        overlap.put(String.valueOf(WIDTHS[i]), overlapByWidth[channel * WIDTHS.length + i]);
+      }
+
+      JSONObject entry = new JSONObject();
+      entry.put("channel", channel);
+      entry.put("frequency", frequencyOf(channel));
+      entry.put("apCount", apCount[channel]);
+      entry.put("overlapping", overlapping[channel]);
+      entry.put("occupancy", Math.round(occupancy[channel] * 1000) / 1000.0);
+      entry.put("overlap", overlap);
+
+      if (baseFrequency == 5000) {
+        // UNII-2 and UNII-2 Extended require radar detection
+        entry.put("dfs", channel >= 52 && channel <= 144);
+      }
+
+      return entry;
+    }
+  }
+}
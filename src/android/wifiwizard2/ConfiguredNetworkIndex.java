@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+/**
+ * In-memory index of the configured networks (SSID -> networkId, networkId -> configuration)
+ *
+ * The index is built from a single getConfiguredNetworks() call the first time it is needed, and is then kept
+ * up to date from CONFIGURED_NETWORKS_CHANGED_ACTION broadcasts, as well as from the add/update/remove calls
+ * the plugin makes itself.  When a broadcast does not carry the changed configuration (newer Android versions
+ * redact it for non-system apps) the index is only marked stale, and is rebuilt on the next lookup.
+ */
+class ConfiguredNetworkIndex extends BroadcastReceiver {
+
+  private static final String TAG = "WifiWizard2";
+
+  // WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION and its extras are @SystemApi, so we use the raw values
+  static final String CONFIGURED_NETWORKS_CHANGED_ACTION = "android.net.wifi.CONFIGURED_NETWORKS_CHANGE";
+  private static final String EXTRA_WIFI_CONFIGURATION = "wifiConfiguration";
+  private static final String EXTRA_MULTIPLE_NETWORKS_CHANGED = "multipleChanges";
+  private static final String EXTRA_CHANGE_REASON = "changeReason";
+  private static final int CHANGE_REASON_ADDED = 0;
+  private static final int CHANGE_REASON_REMOVED = 1;
+  private static final int CHANGE_REASON_CONFIG_CHANGE = 2;
+
+  private final WifiManager wifiManager;
+
+  private final Map<String, Integer> ssidToId = new HashMap<String, Integer>();
+  private final Map<Integer, WifiConfiguration> idToConfig = new HashMap<Integer, WifiConfiguration>();
+
+  private boolean loaded = false;
+  private int maxPriority = 0;
+  private boolean maxPriorityStale = false;
+
+  ConfiguredNetworkIndex(WifiManager wifiManager) {
+    this.wifiManager = wifiManager;
+  }
+
+  /**
+   * Start listening for configured network changes
+   */
+  void register(Context context) {
+    context.registerReceiver(this, new IntentFilter(CONFIGURED_NETWORKS_CHANGED_ACTION));
+  }
+
+  /**
+   * Stop listening for configured network changes
+   */
+  void unregister(Context context) {
+    try {
+      context.unregisterReceiver(this);
+    } catch (Exception e) {}
+  }
+
+  /**
+   * Get network ID for SSID (-1 if SSID is not configured)
+   */
+  synchronized int networkIdFor(String ssid) {
+    ensureLoaded();
+    Integer networkId = ssidToId.get(ssid);
+    return networkId == null ? -1 : networkId;
+  }
+
+  /**
+   * Get configuration for network ID (null if not configured)
+   */
+  synchronized WifiConfiguration configFor(int networkId) {
+    ensureLoaded();
+    return idToConfig.get(networkId);
+  }
+
+  /**
+   * Highest priority of all configured networks
+   */
+  synchronized int getMaxPriority() {
+    ensureLoaded();
+
+    if (maxPriorityStale) {
+      maxPriority = 0;
+      for (WifiConfiguration config : idToConfig.values()) {
+        if (config.priority > maxPriority) {
+          maxPriority = config.priority;
+        }
+      }
+      maxPriorityStale = false;
+    }
+
+    return maxPriority;
+  }
+
+  /**
+   * Record a configuration that was added or updated (networkId must already be set)
+   */
+  synchronized void put(WifiConfiguration config) {
+    if (!loaded || config == null || config.networkId < 0) {
+      return;
+    }
+
+    WifiConfiguration existing = idToConfig.remove(config.networkId);
+    if (existing != null) {
+      removeSsidMapping(existing);
+      if (existing.priority >= maxPriority) {
+        maxPriorityStale = true;
+      }
+    }
+
+    idToConfig.put(config.networkId, config);
+    if (config.SSID != null) {
+      ssidToId.put(config.SSID, config.networkId);
+    }
+    if (config.priority > maxPriority) {
+      maxPriority = config.priority;
+    }
+  }
+
+  /**
+   * Record a configuration that was removed
+   */
+  synchronized void remove(int networkId) {
+    if (!loaded) {
+      return;
+    }
+
+    WifiConfiguration existing = idToConfig.remove(networkId);
+    if (existing != null) {
+      removeSsidMapping(existing);
+      if (existing.priority >= maxPriority) {
+        maxPriorityStale = true;
+      }
+    }
+  }
+
+  /**
+   * Drop everything, index will be rebuilt on next lookup
+   */
+  synchronized void invalidate() {
+    loaded = false;
+    ssidToId.clear();
+    idToConfig.clear();
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (!CONFIGURED_NETWORKS_CHANGED_ACTION.equals(intent.getAction())) {
+      return;
+    }
+
+    WifiConfiguration config = null;
+    boolean multiple = intent.getBooleanExtra(EXTRA_MULTIPLE_NETWORKS_CHANGED, true);
+
+    if (!multiple) {
+      try {
+        config = intent.getParcelableExtra(EXTRA_WIFI_CONFIGURATION);
+      } catch (Exception e) {}
+    }
+
+    if (config == null) {
+      Log.d(TAG, "ConfiguredNetworkIndex: configured networks changed, invalidating");
+      invalidate();
+      return;
+    }
+
+    switch (intent.getIntExtra(EXTRA_CHANGE_REASON, -1)) {
+      case CHANGE_REASON_ADDED:
+      case CHANGE_REASON_CONFIG_CHANGE:
+        put(config);
+        break;
+      case CHANGE_REASON_REMOVED:
+        remove(config.networkId);
+        break;
+      default:
+        invalidate();
+    }
+  }
+
+  /**
+   * Only remove SSID mapping when it still points at the passed configuration
+   */
+  private void removeSsidMapping(WifiConfiguration config) {
+    if (config.SSID == null) {
+      return;
+    }
+
+    Integer mapped = ssidToId.get(config.SSID);
+    if (mapped != null && mapped == config.networkId) {
+      ssidToId.remove(config.SSID);
+
+      // Another configuration may share the same SSID
+      for (WifiConfiguration other : idToConfig.values()) {
+        if (config.SSID.equals(other.SSID)) {
+          ssidToId.put(other.SSID, other.networkId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build index from a single getConfiguredNetworks() call
+   */
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+
+    List<WifiConfiguration> configurations = wifiManager.getConfiguredNetworks();
+
+    ssidToId.clear();
+    idToConfig.clear();
+    maxPriority = 0;
+    maxPriorityStale = false;
+
+    // getConfiguredNetworks returns null when WiFi is disabled, so try again on next lookup
+    if (configurations == null) {
+      return;
+    }
+
+    for (WifiConfiguration config : configurations) {
+      idToConfig.put(config.networkId, config);
+      if (config.SSID != null) {
+        // Last match wins, same as the previous linear scan
+        ssidToId.put(config.SSID, config.networkId);
+      }
+      if (config.priority > maxPriority) {
+        maxPriority = config.priority;
+      }
+    }
+
+    loaded = true;
+    Log.d(TAG, "ConfiguredNetworkIndex: indexed " + idToConfig.size() + " configured networks");
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.ConnectivityManager;
+import android.net.DhcpInfo;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.net.RouteInfo;
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build.VERSION;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Snapshot of the current WiFi connection (WifiInfo, DHCP and link properties), read once and then served from
+ * memory until it changes
+ *
+ * The snapshot is dropped on NETWORK_STATE_CHANGED_ACTION broadcasts and WiFi link property changes, and re-read
+ * on the next call.  RSSI_CHANGED_ACTION only updates the signal level of the current snapshot.  The WiFi
+ * network's capabilities (validated, metered, ...) are kept from the same network callback.
+ */
+class ConnectionCache extends BroadcastReceiver {
+
+  private static final String TAG = "WifiWizard2";
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  private final WifiManager wifiManager;
+  private final ConnectivityManager connectivityManager;
+
+  private ConnectivityManager.NetworkCallback wifiCallback;
+
+  // Guarded by this
+  private Snapshot snapshot;
+  private int generation;
+  private Network network;
+  private LinkProperties linkProperties;
+  private NetworkCapabilities capabilities;
+
+  ConnectionCache(WifiManager wifiManager, ConnectivityManager connectivityManager) {
+    this.wifiManager = wifiManager;
+    this.connectivityManager = connectivityManager;
+  }
+
+  /**
+   * Register network state and RSSI receiver, and WiFi network callback on Lollipop+ (API 21+)
+   */
+  void register(Context context) {
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+    filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
+    context.registerReceiver(this, filter);
+
+    if (API_VERSION >= 21 && connectivityManager != null) {
+      wifiCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onLinkPropertiesChanged(Network changed, LinkProperties properties) {
+          synchronized (ConnectionCache.this) {
+            network = changed;
+            linkProperties = properties;
+            invalidate();
+          }
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network changed, NetworkCapabilities networkCapabilities) {
+          synchronized (ConnectionCache.this) {
+            network = changed;
+            capabilities = networkCapabilities;
+          }
+        }
+
+        @Override
+        public void onLost(Network lost) {
+          synchronized (ConnectionCache.this) {
+            if (lost.equals(network)) {
+              network = null;
+              linkProperties = null;
+              capabilities = null;
+            }
+            invalidate();
+          }
+        }
+      };
+
+      NetworkRequest request = new NetworkRequest.Builder()
+          .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+          // Also local-only WiFi (hotspots, WifiNetworkSpecifier networks) that has no internet capability
+          .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+          .build();
+
+      try {
+        connectivityManager.registerNetworkCallback(request, wifiCallback);
+      } catch (Exception e) {
+        Log.e(TAG, "ConnectionCache: unable to register network callback", e);
+        wifiCallback = null;
+      }
+    }
+  }
+
+  /**
+   * Unregister receiver and network callback
+   */
+  void unregister(Context context) {
+    try {
+      context.unregisterReceiver(this);
+    } catch (Exception e) {}
+
+    if (wifiCallback != null) {
+      try {
+        connectivityManager.unregisterNetworkCallback(wifiCallback);
+      } catch (Exception e) {}
+      wifiCallback = null;
+    }
+
+    invalidate();
+  }
+
+  /**
+   * Current connection, read from WifiManager only when it changed since the last call
+   *
+   * @return snapshot, or null if connection info could not be read
+   */
+  Snapshot get() {
+    int readGeneration;
+    LinkProperties properties;
+    Network readNetwork;
+
+    synchronized (this) {
+      if (snapshot != null) {
+        return snapshot;
+      }
+      readGeneration = generation;
+      properties = linkProperties;
+      readNetwork = network;
+    }
+
+    // Binder calls are made outside the lock, a change while reading just means this result is not kept
+    Snapshot fresh = read(readNetwork, properties);
+
+    synchronized (this) {
+      if (fresh != null && generation == readGeneration) {
+        snapshot = fresh;
+      }
+    }
+
+    return fresh;
+  }
+
+  /**
+   * Capabilities of the WiFi network, from the last network callback (null if not known)
+   */
+  synchronized NetworkCapabilities getCapabilities() {
+    return capabilities;
+  }
+
+  /**
+   * Drop the snapshot (e.g. once location permission is granted, so SSID and BSSID are no longer redacted)
+   */
+  synchronized void invalidate() {
+    generation++;
+    snapshot = null;
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    String action = intent.getAction();
+
+    if (WifiManager.RSSI_CHANGED_ACTION.equals(action)) {
+      int rssi = intent.getIntExtra(WifiManager.EXTRA_NEW_RSSI, Integer.MIN_VALUE);
+
+      synchronized (this) {
+        if (snapshot != null && rssi != Integer.MIN_VALUE) {
+          snapshot = snapshot.withRssi(rssi);
+        }
+      }
+    } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
+      invalidate();
+    }
+  }
+
+  private Snapshot read(Network readNetwork, LinkProperties properties) {
+    WifiInfo info = wifiManager.getConnectionInfo();
+
+    if (info == null) {
+      Log.d(TAG, "ConnectionCache: unable to read wifi info");
+      return null;
+    }
+
+    DhcpInfo dhcp = wifiManager.getDhcpInfo();
+
+    String ip = formatIP(info.getIpAddress());
+    String gateway = null;
+    String subnet = null;
+    int prefixLength = -1;
+    List<String> dnsServers = new ArrayList<String>();
+
+    if (properties != null) {
+      for (LinkAddress address : properties.getLinkAddresses()) {
+        if (address.getAddress() instanceof Inet4Address) {
+          prefixLength = address.getPrefixLength();
+          subnet = formatIP(prefixToNetmask(prefixLength));
+          break;
+        }
+      }
+
+      for (InetAddress dns : properties.getDnsServers()) {
+        dnsServers.add(dns.getHostAddress());
+      }
+
+      for (RouteInfo route : properties.getRoutes()) {
+        if (route.isDefaultRoute() && route.getGateway() instanceof Inet4Address) {
+          gateway = route.getGateway().getHostAddress();
+          break;
+        }
+      }
+    }
+
+    if (gateway == null && dhcp != null) {
+      gateway = formatIP(dhcp.gateway);
+    }
+
+    if (dnsServers.isEmpty() && dhcp != null) {
+      if (dhcp.dns1 != 0) {
+        dnsServers.add(formatIP(dhcp.dns1));
+      }
+      if (dhcp.dns2 != 0) {
+        dnsServers.add(formatIP(dhcp.dns2));
+      }
+    }
+
+    if (subnet == null && info.getIpAddress() != 0) {
+      // No link properties yet (or before API 21), look the interface up
+      try {
+        subnet = WifiWizard2.getIPv4Subnet(InetAddress.getByName(ip));
+      } catch (Exception e) {
+        subnet = "";
+      }
+    }
+
+    return new Snapshot(info, ip, subnet == null ? "" : subnet, prefixLength, gateway,
+        Collections.unmodifiableList(dnsServers), dhcp == null ? -1 : dhcp.leaseDuration, readNetwork, properties,
+        SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * Format an IPv4 address stored in an int (in network byte order), as WifiInfo and DhcpInfo return them
+   */
+  static String formatIP(int ip) {
+    return String.format(Locale.US,
+        "%d.%d.%d.%d",
+        (ip & 0xff),
+        (ip >> 8 & 0xff),
+        (ip >> 16 & 0xff),
+        (ip >> 24 & 0xff)
+    );
+  }
+
+  private static int prefixToNetmask(int prefixLength) {
+    int mask = prefixLength <= 0 ? 0 : -1 << (32 - Math.min(prefixLength, 32));
+    // Integer.reverseBytes puts it in the byte order formatIP expects
+    return Integer.reverseBytes(mask);
+  }
+
+  /**
+   * Connection state at a point in time, never modified (RSSI updates make a copy)
+   */
+  static final class Snapshot {
+    final String ssid;
+    final String bssid;
+    final int networkId;
+    final SupplicantState supplicantState;
+    final int rssi;
+    final int linkSpeed;
+    final int frequency;
+    final String ip;
+    final String subnet;
+    // -1 when not known (no link properties)
+    final int prefixLength;
+    final String gateway;
+    final List<String> dnsServers;
+    // Seconds, as reported by DHCP (-1 when not known)
+    final int leaseDuration;
+    // WiFi network and its link properties, null when not known (before API 21, or not connected)
+    final Network network;
+    final LinkProperties linkProperties;
+    // SystemClock.elapsedRealtime() when read
+    final long time;
+
+    private Snapshot(WifiInfo info, String ip, String subnet, int prefixLength, String gateway, List<String> dnsServers,
+        int leaseDuration, Network network, LinkProperties linkProperties, long time) {
+      this.ssid = info.getSSID();
+      this.bssid = info.getBSSID();
+      this.networkId = info.getNetworkId();
+      this.supplicantState = info.getSupplicantState();
+      this.rssi = info.getRssi();
+      this.linkSpeed = info.getLinkSpeed();
+      this.frequency = API_VERSION >= 21 ? info.getFrequency() : -1;
+      this.ip = ip;
+      this.subnet = subnet;
+      this.prefixLength = prefixLength;
+      this.gateway = gateway;
+      this.dnsServers = dnsServers;
+      this.leaseDuration = leaseDuration;
+      this.network = network;
+      this.linkProperties = linkProperties;
+      this.time = time;
+    }
+
+    private Snapshot(Snapshot copy, int rssi) {
+      this.ssid = copy.ssid;
+      this.bssid = copy.bssid;
+      this.networkId = copy.networkId;
+      this.supplicantState = copy.supplicantState;
+      this.rssi = rssi;
+      this.linkSpeed = copy.linkSpeed;
+      this.frequency = copy.frequency;
+      this.ip = copy.ip;
+      this.subnet = copy.subnet;
+      this.prefixLength = copy.prefixLength;
+      this.gateway = copy.gateway;
+      this.dnsServers = copy.dnsServers;
+      this.leaseDuration = copy.leaseDuration;
+      this.network = copy.network;
+      this.linkProperties = copy.linkProperties;
+      this.time = copy.time;
+    }
+
+    Snapshot withRssi(int rssi) {
+      return new Snapshot(this, rssi);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build.VERSION;
+import android.util.Log;
+
+/**
+ * Tracks WiFi connection state from NETWORK_STATE_CHANGED_ACTION broadcasts and a WiFi NetworkCallback, and
+ * resolves callbacks waiting on a network ID as soon as that network is connected (instead of polling).
+ */
+class ConnectionTracker extends BroadcastReceiver {
+
+  private static final String TAG = "WifiWizard2";
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+
+  private final WifiManager wifiManager;
+  private final ConnectivityManager connectivityManager;
+  private final TimerService timerService;
+  private final List<PendingConnection> pending = new ArrayList<PendingConnection>();
+
+  private ConnectivityManager.NetworkCallback wifiCallback;
+
+  ConnectionTracker(WifiManager wifiManager, ConnectivityManager connectivityManager, TimerService timerService) {
+    this.wifiManager = wifiManager;
+    this.connectivityManager = connectivityManager;
+    this.timerService = timerService;
+  }
+
+  /**
+   * Register network state receiver, and WiFi network callback on Lollipop+ (API 21+)
+   */
+  void register(Context context) {
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+    context.registerReceiver(this, filter);
+
+    if (API_VERSION >= 21 && connectivityManager != null) {
+      // Link properties are updated once DHCP completes, which is when we may see an IP while still OBTAINING_IPADDR
+      wifiCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+          evaluate();
+        }
+
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+          evaluate();
+        }
+      };
+
+      NetworkRequest request = new NetworkRequest.Builder()
+          .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+          .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+          .build();
+
+      try {
+        connectivityManager.registerNetworkCallback(request, wifiCallback);
+      } catch (Exception e) {
+        Log.e(TAG, "ConnectionTracker: unable to register network callback", e);
+        wifiCallback = null;
+      }
+    }
+  }
+
+  /**
+   * Unregister receiver and network callback, failing any pending waits
+   */
+  void unregister(Context context) {
+    try {
+      context.unregisterReceiver(this);
+    } catch (Exception e) {}
+
+    if (wifiCallback != null) {
+      try {
+        connectivityManager.unregisterNetworkCallback(wifiCallback);
+      } catch (Exception e) {}
+      wifiCallback = null;
+    }
+
+    List<PendingConnection> cancelled;
+    synchronized (pending) {
+      cancelled = new ArrayList<PendingConnection>(pending);
+      pending.clear();
+    }
+
+    for (PendingConnection connection : cancelled) {
+      TimerService.cancel(connection.timeout);
+      connection.callbackContext.error("CONNECT_CANCELLED");
+    }
+  }
+
+  /**
+   * Resolve callbackContext once networkId is connected, or error after timeout (in milliseconds)
+   */
+  void waitForConnection(CallbackContext callbackContext, int networkId, int timeout) {
+    final PendingConnection connection = new PendingConnection(callbackContext, networkId);
+
+    synchronized (pending) {
+      pending.add(connection);
+    }
+
+    connection.timeout = timerService.schedule(new Runnable() {
+      public void run() {
+        synchronized (pending) {
+          if (!pending.remove(connection)) {
+            return;
+          }
+        }
+
+        Log.d(TAG, "WifiWizard: Network failed to finish connecting within the timeout");
+        connection.callbackContext.error("CONNECT_FAILED_TIMEOUT");
+      }
+    }, timeout > 0 ? timeout : DEFAULT_CONNECT_TIMEOUT);
+
+    // We may already be connected by the time we get here
+    evaluate();
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+      evaluate();
+    }
+  }
+
+  /**
+   * Check current connection info against all pending connections
+   */
+  private void evaluate() {
+    synchronized (pending) {
+      if (pending.isEmpty()) {
+        return;
+      }
+    }
+
+    WifiInfo info = wifiManager.getConnectionInfo();
+
+    if (info == null) {
+      return;
+    }
+
+    NetworkInfo.DetailedState connectionState = WifiInfo.getDetailedStateOf(info.getSupplicantState());
+
+    Log.d(TAG, "WifiWizard: Got " + connectionState + " for network " + info.getNetworkId());
+
+    boolean isConnected = connectionState == NetworkInfo.DetailedState.CONNECTED ||
+        // Android seems to sometimes get stuck in OBTAINING_IPADDR after it has received one
+        (connectionState == NetworkInfo.DetailedState.OBTAINING_IPADDR && info.getIpAddress() != 0);
+
+    if (!isConnected) {
+      return;
+    }
+
+    List<PendingConnection> completed = new ArrayList<PendingConnection>();
+
+    synchronized (pending) {
+      Iterator<PendingConnection> iterator = pending.iterator();
+      while (iterator.hasNext()) {
+        PendingConnection connection = iterator.next();
+        // need to ensure we're on correct network because sometimes this code is
+        // reached before the initial network has disconnected
+        if (connection.networkId == info.getNetworkId()) {
+          iterator.remove();
+          completed.add(connection);
+        }
+      }
+    }
+
+    for (PendingConnection connection : completed) {
+      TimerService.cancel(connection.timeout);
+      connection.callbackContext.success("NETWORK_CONNECTION_COMPLETED");
+    }
+  }
+
+  /**
+   * Callback waiting on a network ID to connect
+   */
+  private static class PendingConnection {
+    final CallbackContext callbackContext;
+    final int networkId;
+    volatile ScheduledFuture<?> timeout;
+
+    PendingConnection(CallbackContext callbackContext, int networkId) {
+      this.callbackContext = callbackContext;
+      this.networkId = networkId;
+    }
+  }
+}
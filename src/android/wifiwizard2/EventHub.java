@@ -0,0 +1,481 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.net.wifi.SupplicantState;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build.VERSION;
+import android.util.Log;
+
+/**
+ * Pushes WiFi events to JavaScript subscribers, over callbacks kept open with keepCallback
+ *
+ * Broadcasts and the WiFi network callback are only registered while there is at least one subscriber.  Each
+ * subscriber can filter event types, and set a coalescing window: events are then held for up to that many
+ * milliseconds.  Level style events (RSSI, scan results) only send the latest one, so a burst of RSSI changes becomes
+ * one event; state transitions are all sent, in the order they happened.
+ */
+class EventHub extends BroadcastReceiver {
+
+  private static final String TAG = "WifiWizard2";
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  static final String WIFI_ENABLED = "wifiEnabled";
+  static final String WIFI_DISABLED = "wifiDisabled";
+  static final String SUPPLICANT_STATE = "supplicantState";
+  static final String CONNECTED = "connected";
+  static final String DISCONNECTED = "disconnected";
+  static final String RSSI = "rssi";
+  static final String SCAN_RESULTS = "scanResults";
+  static final String VALIDATED = "validated";
+  static final String LOST = "lost";
+
+  static final String[] EVENT_TYPES = {
+      WIFI_ENABLED, WIFI_DISABLED, SUPPLICANT_STATE, CONNECTED, DISCONNECTED, RSSI, SCAN_RESULTS, VALIDATED, LOST
+  };
+
+  // Only the latest of these is sent per coalescing window
+  private static final Set<String> LATEST_ONLY = new HashSet<String>(Arrays.asList(RSSI, SCAN_RESULTS));
+
+  // Coalescing windows are capped, events should not be held back longer than this
+  static final int MAX_COALESCE = 10000;
+
+  private final Context context;
+  private final WifiManager wifiManager;
+  private final ConnectivityManager connectivityManager;
+  private final TimerService timerService;
+
+  private final Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<Integer, Subscription>();
+  private final AtomicInteger nextId = new AtomicInteger(1);
+
+  // Guarded by this
+  private boolean registered;
+  private ConnectivityManager.NetworkCallback wifiCallback;
+  // Last state seen, so only transitions are sent
+  private int wifiState = -1;
+  private Boolean connected;
+  private final Set<Network> validatedNetworks = new HashSet<Network>();
+
+  EventHub(Context context, WifiManager wifiManager, ConnectivityManager connectivityManager, TimerService timerService) {
+    this.context = context;
+    this.wifiManager = wifiManager;
+    this.connectivityManager = connectivityManager;
+    this.timerService = timerService;
+  }
+
+  /**
+   * Add a subscriber, events are sent on callbackContext until unsubscribe()
+   *
+   * @param types event types to send, null for all
+   * @param coalesce coalescing window in milliseconds, 0 to send every event right away
+   * @return subscription ID
+   */
+  int subscribe(CallbackContext callbackContext, Set<String> types, int coalesce) throws JSONException {
+    Subscription subscription = new Subscription(nextId.getAndIncrement(), callbackContext, types,
+        Math.max(0, Math.min(coalesce, MAX_COALESCE)));
+    subscriptions.put(subscription.id, subscription);
+
+    JSONObject subscribed = new JSONObject();
+    subscribed.put("type", "subscribed");
+    subscribed.put("subscriptionId", subscription.id);
+    subscription.send(subscribed, true);
+
+    updateRegistration();
+    return subscription.id;
+  }
+
+  /**
+   * Remove a subscriber, its callback is closed with an "unsubscribed" event
+   *
+   * @return false if there is no such subscription
+   */
+  boolean unsubscribe(int id) {
+    Subscription subscription = subscriptions.remove(id);
+
+    if (subscription == null) {
+      return false;
+    }
+
+    subscription.close();
+    updateRegistration();
+    return true;
+  }
+
+  /**
+   * Remove all subscribers (page reload or plugin destroyed), their callbacks are no longer valid
+   */
+  void clear() {
+    for (Subscription subscription : subscriptions.values()) {
+      subscription.cancelFlush();
+    }
+    subscriptions.clear();
+    updateRegistration();
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    String action = intent.getAction();
+    // Current state delivered on registering, only remembered so later changes are sent
+    boolean initial = isInitialStickyBroadcast();
+
+    try {
+      if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
+        onWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_UNKNOWN), initial);
+      } else if (WifiManager.SUPPLICANT_STATE_CHANGED_ACTION.equals(action)) {
+        SupplicantState state = intent.getParcelableExtra(WifiManager.EXTRA_NEW_STATE);
+        JSONObject event = event(SUPPLICANT_STATE);
+        event.put("state", state == null ? JSONObject.NULL : state.toString());
+        if (intent.hasExtra(WifiManager.EXTRA_SUPPLICANT_ERROR)) {
+          event.put("error", intent.getIntExtra(WifiManager.EXTRA_SUPPLICANT_ERROR, 0));
+        }
+        dispatch(event);
+      } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
+        NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+        onConnected(networkInfo != null && networkInfo.isConnected(), initial);
+      } else if (WifiManager.RSSI_CHANGED_ACTION.equals(action)) {
+        JSONObject event = event(RSSI);
+        event.put("rssi", intent.getIntExtra(WifiManager.EXTRA_NEW_RSSI, 0));
+        dispatch(event);
+      } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+        JSONObject event = event(SCAN_RESULTS);
+        // Before API 23 results were always updated
+        event.put("updated", intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, true));
+        dispatch(event);
+      }
+    } catch (JSONException e) {
+      Log.e(TAG, "EventHub: unable to build event for " + action, e);
+    }
+  }
+
+  private void onWifiState(int state, boolean initial) throws JSONException {
+    boolean enabled = state == WifiManager.WIFI_STATE_ENABLED;
+    boolean disabled = state == WifiManager.WIFI_STATE_DISABLED;
+
+    synchronized (this) {
+      if (state == wifiState || !(enabled || disabled)) {
+        return;
+      }
+      wifiState = state;
+    }
+
+    if (initial) {
+      return;
+    }
+
+    dispatch(event(enabled ? WIFI_ENABLED : WIFI_DISABLED));
+  }
+
+  private void onConnected(boolean isConnected, boolean initial) throws JSONException {
+    synchronized (this) {
+      if (connected != null && connected == isConnected) {
+        return;
+      }
+      connected = isConnected;
+    }
+
+    if (initial) {
+      return;
+    }
+
+    JSONObject event = event(isConnected ? CONNECTED : DISCONNECTED);
+
+    if (isConnected) {
+      WifiInfo info = wifiManager.getConnectionInfo();
+      String ssid = info == null ? null : info.getSSID();
+      String bssid = info == null ? null : info.getBSSID();
+
+      if (ssid != null && ssid.length() >= 2 && ssid.startsWith("\"") && ssid.endsWith("\"")) {
+        ssid = ssid.substring(1, ssid.length() - 1);
+      }
+
+      // Redacted without location permission
+      event.put("SSID", ssid == null || ssid.equals("<unknown ssid>") ? JSONObject.NULL : ssid);
+      event.put("BSSID", bssid == null || bssid.equals("02:00:00:00:00:00") ? JSONObject.NULL : bssid);
+      event.put("networkId", info == null ? -1 : info.getNetworkId());
+    }
+
+    dispatch(event);
+  }
+
+  private void onCapabilities(Network network, NetworkCapabilities capabilities) throws JSONException {
+    if (API_VERSION < 23) {
+      return;
+    }
+
+    boolean validated = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+
+    synchronized (this) {
+      if (validated ? !validatedNetworks.add(network) : !validatedNetworks.remove(network)) {
+        return;
+      }
+    }
+
+    if (validated) {
+      dispatch(event(VALIDATED));
+    }
+  }
+
+  private void onLost(Network network) throws JSONException {
+    synchronized (this) {
+      validatedNetworks.remove(network);
+    }
+
+    dispatch(event(LOST));
+  }
+
+  private static JSONObject event(String type) throws JSONException {
+    JSONObject event = new JSONObject();
+    event.put("type", type);
+    event.put("time", System.currentTimeMillis());
+    return event;
+  }
+
+  private void dispatch(JSONObject event) {
+    String type = event.optString("type");
+
+    for (Subscription subscription : subscriptions.values()) {
+      if (subscription.wants(type)) {
+        subscription.post(type, event);
+      }
+    }
+  }
+
+  /**
+   * Register receivers while there are subscribers, unregister once the last one is gone
+   */
+  private synchronized void updateRegistration() {
+    boolean wanted = !subscriptions.isEmpty();
+
+    if (wanted == registered) {
+      return;
+    }
+
+    registered = wanted;
+
+    if (wanted) {
+      // Sticky WIFI_STATE_CHANGED and NETWORK_STATE_CHANGED are delivered right away and seed the last seen state
+      wifiState = -1;
+      connected = null;
+      validatedNetworks.clear();
+      seedValidatedNetworks();
+
+      IntentFilter filter = new IntentFilter();
+      filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+      filter.addAction(WifiManager.SUPPLICANT_STATE_CHANGED_ACTION);
+      filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+      filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
+      filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
+      context.registerReceiver(this, filter);
+
+      if (API_VERSION >= 21 && connectivityManager != null) {
+        wifiCallback = new ConnectivityManager.NetworkCallback() {
+          @Override
+          public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            try {
+              onCapabilities(network, capabilities);
+            } catch (JSONException e) {
+              Log.e(TAG, "EventHub: unable to build validated event", e);
+            }
+          }
+
+          @Override
+          public void onLost(Network network) {
+            try {
+              EventHub.this.onLost(network);
+            } catch (JSONException e) {
+              Log.e(TAG, "EventHub: unable to build lost event", e);
+            }
+          }
+        };
+
+        NetworkRequest request = new NetworkRequest.Builder()
+            .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+            .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+            .build();
+
+        try {
+          connectivityManager.registerNetworkCallback(request, wifiCallback);
+        } catch (Exception e) {
+          Log.e(TAG, "EventHub: unable to register network callback", e);
+          wifiCallback = null;
+        }
+      }
+    } else {
+      try {
+        context.unregisterReceiver(this);
+      } catch (Exception e) {}
+
+      if (wifiCallback != null) {
+        try {
+          connectivityManager.unregisterNetworkCallback(wifiCallback);
+        } catch (Exception e) {}
+        wifiCallback = null;
+      }
+    }
+  }
+
+  /**
+   * Networks already validated when registering, so the network callback's initial capabilities don't send
+   * validated events
+   */
+  private void seedValidatedNetworks() {
+    if (API_VERSION < 23 || connectivityManager == null) {
+      return;
+    }
+
+    try {
+      for (Network network : connectivityManager.getAllNetworks()) {
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+
+        if (capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+            && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+          validatedNetworks.add(network);
+        }
+      }
+    } catch (Exception e) {
+      Log.d(TAG, "EventHub: unable to read network capabilities");
+    }
+  }
+
+  /**
+   * A subscriber and the events held back for its coalescing window
+   */
+  private class Subscription {
+    final int id;
+    final CallbackContext callbackContext;
+    final Set<String> types;
+    final int coalesce;
+
+    // Events waiting for the coalescing window to end, in order, and which of them is the latest per LATEST_ONLY type
+    private final List<JSONObject> held = new ArrayList<JSONObject>();
+    private final Map<String, JSONObject> heldLatest = new HashMap<String, JSONObject>();
+    private ScheduledFuture<?> flush;
+    private boolean closed;
+
+    Subscription(int id, CallbackContext callbackContext, Set<String> types, int coalesce) {
+      this.id = id;
+      this.callbackContext = callbackContext;
+      this.types = types;
+      this.coalesce = coalesce;
+    }
+
+    boolean wants(String type) {
+      return types == null || types.contains(type);
+    }
+
+    synchronized void post(String type, JSONObject event) {
+      if (closed) {
+        return;
+      }
+
+      if (coalesce == 0) {
+        send(event, true);
+        return;
+      }
+
+      if (LATEST_ONLY.contains(type)) {
+        JSONObject previous = heldLatest.put(type, event);
+        if (previous != null) {
+          held.remove(previous);
+        }
+      }
+      held.add(event);
+
+      if (flush == null) {
+        flush = timerService.schedule(new Runnable() {
+          public void run() {
+            flush();
+          }
+        }, coalesce);
+      }
+    }
+
+    synchronized void flush() {
+      flush = null;
+
+      if (closed) {
+        return;
+      }
+
+      List<JSONObject> events = new ArrayList<JSONObject>(held);
+      held.clear();
+      heldLatest.clear();
+
+      for (JSONObject event : events) {
+        send(event, true);
+      }
+    }
+
+    synchronized void cancelFlush() {
+      closed = true;
+      TimerService.cancel(flush);
+      flush = null;
+      held.clear();
+      heldLatest.clear();
+    }
+
+    /**
+     * Send held events, then the final "unsubscribed" event which releases the callback
+     */
+    synchronized void close() {
+      if (closed) {
+        return;
+      }
+
+      TimerService.cancel(flush);
+      flush();
+      closed = true;
+
+      try {
+        send(event("unsubscribed"), false);
+      } catch (JSONException e) {
+        callbackContext.success();
+      }
+    }
+
+    void send(JSONObject event, boolean keepCallback) {
+      PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+      result.setKeepCallback(keepCallback);
+      callbackContext.sendPluginResult(result);
+    }
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+/**
+ * Captive portal style HTTP check: a HEAD (or GET) request to an endpoint that answers 204 No Content
+ *
+ * Redirects are not followed and response bodies are never read, so a check costs a single round trip.  Every
+ * request has connect and read timeouts.  A 204 (or HEAD) response has no body, so its connection is returned to
+ * the HttpURLConnection keep-alive pool and reused by the next probe to the same host; any other response is
+ * closed instead of reading its body.
+ */
+class HttpProbe {
+
+  static final String METHOD_HEAD = "HEAD";
+  static final String METHOD_GET = "GET";
+
+  static final String DEFAULT_URL = "http://connectivitycheck.gstatic.com/generate_204";
+  static final int DEFAULT_TIMEOUT = 5000;
+
+  // Result.error of a request stopped by Call.cancel()
+  static final String ERROR_CANCELLED = "CANCELLED";
+
+  /**
+   * Opens connections, e.g. over a specific Network
+   */
+  interface ConnectionFactory {
+    HttpURLConnection open(URL url) throws IOException;
+  }
+
+  static final ConnectionFactory DEFAULT_FACTORY = new ConnectionFactory() {
+    public HttpURLConnection open(URL url) throws IOException {
+      return (HttpURLConnection) url.openConnection();
+    }
+  };
+
+  private final ConnectionFactory factory;
+
+  HttpProbe(ConnectionFactory factory) {
+    this.factory = factory == null ? DEFAULT_FACTORY : factory;
+  }
+
+  /**
+   * Send a request and wait for the response headers
+   *
+   * @param timeout connect and read timeout, in milliseconds
+   */
+  Result run(URL url, String method, int timeout) {
+    return newCall(url, method, timeout).execute();
+  }
+
+  /**
+   * A request that can be cancelled from another thread while it runs
+   */
+  Call newCall(URL url, String method, int timeout) {
+    return new Call(url, method, timeout);
+  }
+
+  /**
+   * One request
+   *
+   * cancel() disconnects the connection, so a blocked connect or read returns at once with error "CANCELLED".
+   */
+  final class Call {
+    final URL url;
+    final String method;
+    final int timeout;
+
+    private volatile boolean cancelled;
+    private volatile HttpURLConnection connection;
+
+    Call(URL url, String method, int timeout) {
+      this.url = url;
+      this.method = method;
+      this.timeout = timeout;
+    }
+
+    /**
+     * Send the request on the calling thread
+     */
+    Result execute() {
+      Result result = run();
+      return cancelled ? new Result(url, method, -1, -1, null, ERROR_CANCELLED) : result;
+    }
+
+    void cancel() {
+      cancelled = true;
+
+      HttpURLConnection open = connection;
+      if (open != null) {
+        open.disconnect();
+      }
+    }
+
+    private Result run() {
+      HttpURLConnection open = null;
+      long started = System.nanoTime();
+
+      try {
+        open = factory.open(url);
+        connection = open;
+        if (cancelled) {
+          return new Result(url, method, -1, -1, null, ERROR_CANCELLED);
+        }
+
+        open.setInstanceFollowRedirects(false);
+        open.setUseCaches(false);
+        open.setConnectTimeout(timeout);
+        open.setReadTimeout(timeout);
+        open.setRequestMethod(method);
+
+        int status = open.getResponseCode();
+        double rtt = elapsed(started);
+        String location = open.getHeaderField("Location");
+
+        if (status == HttpURLConnection.HTTP_NO_CONTENT || METHOD_HEAD.equals(method)) {
+          // Nothing to read, closing the stream releases the connection for reuse
+          closeStream(open);
+        } else {
+          open.disconnect();
+        }
+        open = null;
+
+        return new Result(url, method, status, rtt, location, null);
+      } catch (SocketTimeoutException e) {
+        return new Result(url, method, -1, -1, null, "TIMEOUT");
+      } catch (UnknownHostException e) {
+        return new Result(url, method, -1, -1, null, "UNKNOWN_HOST");
+      } catch (IOException e) {
+        return new Result(url, method, -1, -1, null, e.getMessage() == null ? "ERROR" : e.getMessage());
+      } catch (RuntimeException e) {
+        // Android's HttpURLConnection throws for some network errors (e.g. bound network gone)
+        return new Result(url, method, -1, -1, null, e.toString());
+      } finally {
+        if (open != null) {
+          open.disconnect();
+        }
+      }
+    }
+  }
+
+  private static void closeStream(HttpURLConnection connection) {
+    try {
+      InputStream stream = connection.getInputStream();
+      stream.close();
+    } catch (IOException e) {
+      connection.disconnect();
+    }
+  }
+
+  private static double elapsed(long startedNanos) {
+    // Milliseconds, to 0.01 ms
+    return Math.round((System.nanoTime() - startedNanos) / 10000.0) / 100.0;
+  }
+
+  /**
+   * Probe outcome
+   */
+  static final class Result {
+    final URL url;
+    final String method;
+    // HTTP status, -1 when there was no response
+    final int status;
+    // Time to response headers in milliseconds, -1 when there was no response
+    final double rtt;
+    final String location;
+    final String error;
+
+    Result(URL url, String method, int status, double rtt, String location, String error) {
+      this.url = url;
+      this.method = method;
+      this.status = status;
+      this.rtt = rtt;
+      this.location = location;
+      this.error = error;
+    }
+
+    /**
+     * Whether the server answered at all
+     */
+    boolean isReachable() {
+      return status > 0;
+    }
+
+    /**
+     * Answered with anything other than 204 (a redirect or a login page), so traffic is being intercepted
+     */
+    boolean isCaptivePortal() {
+      return status > 0 && status != HttpURLConnection.HTTP_NO_CONTENT;
+    }
+
+    /**
+     * Result format: {type: "http", url, method, reachable, status, captivePortal, rtt, location, error}
+     */
+    JSONObject toJSON() throws JSONException {
+      JSONObject result = new JSONObject();
+      result.put("type", "http");
+      result.put("url", url.toString());
+      result.put("method", method);
+      result.put("reachable", isReachable());
+      result.put("status", status > 0 ? status : JSONObject.NULL);
+      result.put("captivePortal", isCaptivePortal());
+      result.put("rtt", rtt < 0 ? JSONObject.NULL : rtt);
+      if (location != null) {
+        result.put("location", location);
+      }
+      if (error != null) {
+        result.put("error", error);
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return method + " " + url + " " + (status > 0 ? status + " " + rtt + "ms" : error);
+    }
+  }
+}
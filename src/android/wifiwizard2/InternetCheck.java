@@ -0,0 +1,385 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Internet check racing several endpoints, the first one to answer wins
+ *
+ * All endpoints are probed at the same time, each on its own thread.  As soon as one succeeds (a TCP connection
+ * is accepted or a UDP request answered, or an HTTP endpoint answers 204) the others are cancelled, which closes
+ * their sockets.  Endpoints still running when the timeout expires are cancelled too, so a check takes at most
+ * the longest endpoint timeout however many endpoints are slow or blocked.
+ *
+ * Endpoints are written as "host:port" or "tcp://host:port" (TCP connect), "udp://host:port" (UDP request, a DNS
+ * query on port 53) or an http:// or https:// URL (captive portal style check, must answer 204 No Content).
+ */
+class InternetCheck {
+
+  static final int MAX_ENDPOINTS = 8;
+
+  // Google, Cloudflare and Quad9 public DNS over TCP, comma separated
+  static final String DEFAULT_ENDPOINTS = "8.8.8.8:53,1.1.1.1:53,9.9.9.9:53";
+
+  private static final int MAX_THREADS = 16;
+
+  private final ThreadPoolExecutor executor;
+
+  InternetCheck() {
+    final AtomicInteger count = new AtomicInteger(1);
+
+    // Threads are only created while checks run, a cancelled "reachable" probe or name lookup can keep one busy
+    // until it times out
+    executor = new ThreadPoolExecutor(0, MAX_THREADS, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WifiWizard2-race-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Parse an endpoint
+   *
+   * @param timeout probe timeout in milliseconds, 0 or less for the default of the endpoint type
+   * @throws IllegalArgumentException spec is not a valid endpoint
+   */
+  static Endpoint parse(String spec, int timeout) {
+    String value = spec == null ? "" : spec.trim();
+    int separator = value.indexOf("://");
+    String scheme = separator < 0 ? ProbeEngine.TYPE_TCP : value.substring(0, separator).toLowerCase(Locale.US);
+
+    if (scheme.equals("http") || scheme.equals("https")) {
+      try {
+        return new Endpoint(value, null, new URL(value), timeout > 0 ? timeout : HttpProbe.DEFAULT_TIMEOUT);
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException(value);
+      }
+    }
+
+    if (!scheme.equals(ProbeEngine.TYPE_TCP) && !scheme.equals(ProbeEngine.TYPE_UDP)) {
+      throw new IllegalArgumentException(value);
+    }
+
+    URI uri;
+    try {
+      uri = new URI(scheme + "://" + (separator < 0 ? value : value.substring(separator + 3)));
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(value);
+    }
+
+    if (uri.getHost() == null || uri.getPort() < 1 || uri.getPort() > 65535) {
+      throw new IllegalArgumentException(value);
+    }
+
+    ProbeEngine.Probe probe = new ProbeEngine.Probe(scheme, uri.getHost(), uri.getPort(),
+        timeout > 0 ? timeout : ProbeEngine.DEFAULT_TIMEOUT);
+    return new Endpoint(value, probe, null, probe.timeout);
+  }
+
+  /**
+   * Parse a list of endpoints (at most MAX_ENDPOINTS)
+   *
+   * @throws IllegalArgumentException an endpoint is not valid, or there are none or too many
+   */
+  static List<Endpoint> parseAll(JSONArray specs, int timeout) {
+    if (specs == null || specs.length() == 0 || specs.length() > MAX_ENDPOINTS) {
+      throw new IllegalArgumentException(String.valueOf(specs));
+    }
+
+    List<Endpoint> endpoints = new ArrayList<Endpoint>(specs.length());
+    for (int i = 0; i < specs.length(); i++) {
+      endpoints.add(parse(specs.optString(i, null), timeout));
+    }
+    return endpoints;
+  }
+
+  /**
+   * Probe endpoints at the same time, blocking until one succeeds, all fail or the longest timeout expires
+   *
+   * @param probeEngine runs TCP and UDP endpoints
+   * @param httpProbe runs HTTP endpoints
+   * @throws InterruptedException the calling thread was interrupted, all endpoints were cancelled
+   */
+  Result run(List<Endpoint> endpoints, ProbeEngine probeEngine, HttpProbe httpProbe) throws InterruptedException {
+    final int count = endpoints.size();
+    final Attempt[] attempts = new Attempt[count];
+    final LinkedBlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+    long started = System.nanoTime();
+    long timeout = 0;
+
+    for (int i = 0; i < count; i++) {
+      attempts[i] = new Attempt(endpoints.get(i), probeEngine, httpProbe);
+      timeout = Math.max(timeout, endpoints.get(i).timeout);
+    }
+
+    int pending = count;
+    for (final Attempt attempt : attempts) {
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            attempt.execute();
+            finished.add(attempt);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        attempt.fail(ProbeEngine.STATUS_ERROR, "BUSY");
+        pending--;
+      }
+    }
+
+    long deadline = started + TimeUnit.MILLISECONDS.toNanos(timeout);
+    Attempt winner = null;
+
+    try {
+      while (pending > 0 && winner == null) {
+        long remaining = deadline - System.nanoTime();
+        Attempt attempt = remaining > 0 ? finished.poll(remaining, TimeUnit.NANOSECONDS) : null;
+
+        if (attempt == null) {
+          break;
+        }
+
+        pending--;
+        if (attempt.succeeded()) {
+          winner = attempt;
+        }
+      }
+    } finally {
+      // Losers (or everything, if this thread was interrupted) are closed, their results are not waited for
+      for (Attempt attempt : attempts) {
+        attempt.cancel(winner == null ? ProbeEngine.STATUS_TIMEOUT : ProbeEngine.STATUS_CANCELLED);
+      }
+    }
+
+    return new Result(attempts, winner, elapsed(started));
+  }
+
+  /**
+   * Stop threads, running checks see their endpoints fail
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static double elapsed(long startedNanos) {
+    // Milliseconds, to 0.01 ms
+    return Math.round((System.nanoTime() - startedNanos) / 10000.0) / 100.0;
+  }
+
+  /**
+   * Where to probe: probe for TCP and UDP endpoints, url for HTTP endpoints
+   */
+  static final class Endpoint {
+    final String spec;
+    final ProbeEngine.Probe probe;
+    final URL url;
+    final int timeout;
+
+    Endpoint(String spec, ProbeEngine.Probe probe, URL url, int timeout) {
+      this.spec = spec;
+      this.probe = probe;
+      this.url = url;
+      this.timeout = Math.max(1, Math.min(timeout, ProbeEngine.MAX_TIMEOUT));
+    }
+
+    @Override
+    public String toString() {
+      return spec;
+    }
+  }
+
+  /**
+   * One endpoint in a race
+   *
+   * Written by the probe thread until it is finished (or the race thread gives up on it), the finished queue and
+   * synchronization hand results over to the race thread.
+   */
+  private static final class Attempt {
+    final Endpoint endpoint;
+
+    private final ProbeEngine.Call probeCall;
+    private final HttpProbe.Call httpCall;
+
+    // Guarded by this, once set the attempt's result is fixed
+    private ProbeEngine.Result probeResult;
+    private HttpProbe.Result httpResult;
+
+    Attempt(Endpoint endpoint, ProbeEngine probeEngine, HttpProbe httpProbe) {
+      this.endpoint = endpoint;
+      this.probeCall = endpoint.probe == null ? null : probeEngine.newCall(endpoint.probe);
+      this.httpCall = endpoint.url == null ? null : httpProbe.newCall(endpoint.url, HttpProbe.METHOD_HEAD,
+          endpoint.timeout);
+    }
+
+    void execute() {
+      if (probeCall != null) {
+        ProbeEngine.Result result = probeCall.execute();
+        synchronized (this) {
+          if (probeResult == null) {
+            probeResult = result;
+          }
+        }
+      } else {
+        HttpProbe.Result result = httpCall.execute();
+        synchronized (this) {
+          if (httpResult == null) {
+            httpResult = result;
+          }
+        }
+      }
+    }
+
+    /**
+     * Stop the attempt if it is still running, reporting status (a ProbeEngine status) as its result
+     */
+    void cancel(String status) {
+      if (isDone()) {
+        return;
+      }
+
+      fail(status, null);
+
+      if (probeCall != null) {
+        probeCall.cancel();
+      } else {
+        httpCall.cancel();
+      }
+    }
+
+    synchronized void fail(String status, String error) {
+      if (probeCall != null && probeResult == null) {
+        probeResult = new ProbeEngine.Result(endpoint.probe, status, -1, error);
+      } else if (httpCall != null && httpResult == null) {
+        httpResult = new HttpProbe.Result(endpoint.url, HttpProbe.METHOD_HEAD, -1, -1, null,
+            error == null ? status : error);
+      }
+    }
+
+    synchronized boolean isDone() {
+      return probeResult != null || httpResult != null;
+    }
+
+    /**
+     * Whether the endpoint answered, for HTTP endpoints with 204 (any other answer is a captive portal)
+     *
+     * A refused connection doesn't count: a captive gateway resets connections it doesn't let through.
+     */
+    synchronized boolean succeeded() {
+      if (probeResult != null) {
+        return ProbeEngine.STATUS_OK.equals(probeResult.status);
+      }
+      return httpResult != null && httpResult.isReachable() && !httpResult.isCaptivePortal();
+    }
+
+    synchronized boolean isCaptivePortal() {
+      return httpResult != null && httpResult.isCaptivePortal();
+    }
+
+    synchronized double rtt() {
+      if (probeResult != null) {
+        return probeResult.rtt;
+      }
+      return httpResult == null ? -1 : httpResult.rtt;
+    }
+
+    synchronized JSONObject toJSON() throws JSONException {
+      JSONObject result = probeResult != null ? probeResult.toJSON() : httpResult.toJSON();
+      result.put("endpoint", endpoint.spec);
+      return result;
+    }
+  }
+
+  /**
+   * Race outcome
+   */
+  static final class Result {
+    private final Attempt[] attempts;
+    private final Attempt winner;
+    // Milliseconds from start until the winner answered (or the race ended)
+    final double time;
+
+    private Result(Attempt[] attempts, Attempt winner, double time) {
+      this.attempts = attempts;
+      this.winner = winner;
+      this.time = time;
+    }
+
+    boolean isConnected() {
+      return winner != null;
+    }
+
+    /**
+     * Whether an HTTP endpoint answered with something other than 204, e.g. a login page
+     */
+    boolean isCaptivePortal() {
+      for (Attempt attempt : attempts) {
+        if (attempt.isCaptivePortal()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Result format: {connected, captivePortal, winner: {endpoint, ...probe result} | null, time,
+     * endpoints: [{endpoint, type, status, rtt, ...}]}
+     *
+     * Endpoints are in the order they were given, losers have status "CANCELLED" (or "TIMEOUT", if nothing won)
+     */
+    JSONObject toJSON() throws JSONException {
+      JSONArray endpoints = new JSONArray();
+      for (Attempt attempt : attempts) {
+        endpoints.put(attempt.toJSON());
+      }
+
+      JSONObject result = new JSONObject();
+      result.put("connected", isConnected());
+      result.put("captivePortal", isCaptivePortal());
+      result.put("winner", winner == null ? JSONObject.NULL : winner.toJSON());
+      result.put("time", time);
+      result.put("endpoints", endpoints);
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      if (winner == null) {
+        return "no endpoint answered in " + time + "ms";
+      }
+      return winner.endpoint + " won in " + winner.rtt() + "ms";
+    }
+  }
+}
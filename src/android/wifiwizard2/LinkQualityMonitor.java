@@ -0,0 +1,631 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Continuous link quality monitor, probing the WiFi router (and optionally an internet endpoint) at an interval
+ *
+ * Every target keeps its last `window` round trip times in a fixed size ring buffer of doubles (-1 for a lost
+ * probe), and latency percentiles, jitter and loss are computed from it.  When a metric crosses its threshold a
+ * "degraded" event is sent to the monitor's callback, and "recovered" once it is back under RECOVERY_RATIO of the
+ * threshold, so a metric hovering around its threshold doesn't flap.
+ *
+ * Ticks come from the TimerService and only hand off probes to the monitor's own threads; a target whose previous
+ * probe is still running skips a tick.  One monitor runs at a time, it is paused while the app is in the
+ * background (unless started with pauseInBackground: false).
+ */
+class LinkQualityMonitor {
+
+  private static final String TAG = "WifiWizard2";
+
+  static final String TARGET_GATEWAY = "gateway";
+  static final String TARGET_INTERNET = "internet";
+
+  static final String METRIC_RTT = "rtt";
+  static final String METRIC_JITTER = "jitter";
+  static final String METRIC_LOSS = "loss";
+
+  static final int DEFAULT_INTERVAL = 1000;
+  static final int MIN_INTERVAL = 200;
+  static final int MAX_INTERVAL = 60000;
+  static final int DEFAULT_TIMEOUT = 1000;
+  static final int DEFAULT_WINDOW = 60;
+  static final int MAX_WINDOW = 600;
+  static final int DEFAULT_GATEWAY_PORT = 53;
+
+  // Thresholds are checked once a window holds this many samples
+  private static final int MIN_SAMPLES = 5;
+  private static final double RECOVERY_RATIO = 0.8;
+
+  /**
+   * Current router IP, null when not connected
+   */
+  interface GatewaySource {
+    String getGateway();
+  }
+
+  private final TimerService timerService;
+  private final ProbeEngine probeEngine;
+  private final GatewaySource gatewaySource;
+  private final ThreadPoolExecutor executor;
+
+  // Guarded by this
+  private Session session;
+
+  LinkQualityMonitor(TimerService timerService, ProbeEngine probeEngine, GatewaySource gatewaySource) {
+    this.timerService = timerService;
+    this.probeEngine = probeEngine;
+    this.gatewaySource = gatewaySource;
+
+    final AtomicInteger count = new AtomicInteger(1);
+
+    // One probe per target at a time
+    executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WifiWizard2-monitor-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Start monitoring, events are sent on callbackContext until stop()
+   *
+   * A monitor that is already running is stopped first, its callback gets a "stopped" event.
+   */
+  synchronized void start(CallbackContext callbackContext, Options options) throws JSONException {
+    if (session != null) {
+      session.close("replaced");
+    }
+
+    session = new Session(callbackContext, options);
+
+    JSONObject started = event("started");
+    started.put("interval", options.interval);
+    started.put("window", options.window);
+    session.send(started, true);
+
+    session.schedule();
+  }
+
+  /**
+   * Stop monitoring, the callback is released with a "stopped" event
+   *
+   * @return false if no monitor is running
+   */
+  synchronized boolean stop() {
+    if (session == null) {
+      return false;
+    }
+
+    session.close("stopped");
+    session = null;
+    return true;
+  }
+
+  /**
+   * Stop monitoring without sending anything (page reload or plugin destroyed), the callback is no longer valid
+   */
+  synchronized void clear() {
+    if (session != null) {
+      session.cancel();
+      session.closed = true;
+      session = null;
+    }
+  }
+
+  /**
+   * App went to the background
+   */
+  synchronized void pause() {
+    if (session != null && session.options.pauseInBackground && !session.paused) {
+      session.cancel();
+      session.paused = true;
+      session.send(event("paused"), true);
+    }
+  }
+
+  /**
+   * App came back to the foreground
+   */
+  synchronized void resume() {
+    if (session != null && session.paused) {
+      session.paused = false;
+      session.send(event("resumed"), true);
+      session.schedule();
+    }
+  }
+
+  /**
+   * Current statistics, null if no monitor is running
+   *
+   * Format: {paused, interval, window, gateway: {...}, internet: {...} | null}
+   */
+  synchronized JSONObject getStats() throws JSONException {
+    if (session == null) {
+      return null;
+    }
+
+    JSONObject result = session.statsJSON();
+    result.put("paused", session.paused);
+    result.put("interval", session.options.interval);
+    result.put("window", session.options.window);
+    return result;
+  }
+
+  /**
+   * Stop probe threads
+   */
+  void shutdown() {
+    clear();
+    executor.shutdownNow();
+  }
+
+  private static JSONObject event(String type) {
+    JSONObject event = new JSONObject();
+    try {
+      event.put("type", type);
+    } catch (JSONException e) {}
+    return event;
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 100) / 100.0;
+  }
+
+  /**
+   * Monitor options, parsed from the startLinkMonitor options object
+   *
+   * {interval: 1000, timeout: 1000, window: 60, gatewayPort: 53, internet: "8.8.8.8:53",
+   * thresholds: {rtt: 100, jitter: 30, loss: 0.1}, reportInterval: 0, pauseInBackground: true}
+   */
+  static final class Options {
+    final int interval;
+    final int timeout;
+    final int window;
+    final int gatewayPort;
+    // Probe for the internet target (with the monitor timeout), null for none
+    final ProbeEngine.Probe internet;
+    // p95 RTT in milliseconds, jitter in milliseconds and loss ratio, 0 to not check a metric
+    final double[] thresholds;
+    final int reportInterval;
+    final boolean pauseInBackground;
+
+    /**
+     * @throws IllegalArgumentException LINK_MONITOR_INVALID_DATA
+     */
+    Options(JSONObject options) {
+      if (options == null) {
+        options = new JSONObject();
+      }
+
+      interval = options.optInt("interval", DEFAULT_INTERVAL);
+      window = options.optInt("window", DEFAULT_WINDOW);
+      gatewayPort = options.optInt("gatewayPort", DEFAULT_GATEWAY_PORT);
+      reportInterval = options.optInt("reportInterval", 0);
+      pauseInBackground = options.optBoolean("pauseInBackground", true);
+      // A probe never outlasts the interval, so ticks don't pile up
+      timeout = Math.min(options.optInt("timeout", DEFAULT_TIMEOUT), interval);
+
+      if (interval < MIN_INTERVAL || interval > MAX_INTERVAL || window < MIN_SAMPLES || window > MAX_WINDOW
+          || gatewayPort < 1 || gatewayPort > 65535 || timeout < 1 || reportInterval < 0) {
+        throw new IllegalArgumentException("LINK_MONITOR_INVALID_DATA");
+      }
+
+      String spec = options.optString("internet", null);
+      if (spec == null || spec.isEmpty() || options.isNull("internet")) {
+        internet = null;
+      } else {
+        InternetCheck.Endpoint endpoint;
+        try {
+          endpoint = InternetCheck.parse(spec, timeout);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("LINK_MONITOR_INVALID_DATA");
+        }
+        if (endpoint.probe == null) {
+          // URL endpoints measure a whole HTTP exchange, not the link
+          throw new IllegalArgumentException("LINK_MONITOR_INVALID_DATA");
+        }
+        internet = endpoint.probe;
+      }
+
+      JSONObject limits = options.optJSONObject("thresholds");
+      thresholds = new double[] {
+          limits == null ? 0 : limits.optDouble(METRIC_RTT, 0),
+          limits == null ? 0 : limits.optDouble(METRIC_JITTER, 0),
+          limits == null ? 0 : limits.optDouble(METRIC_LOSS, 0)
+      };
+
+      for (double threshold : thresholds) {
+        if (Double.isNaN(threshold) || threshold < 0) {
+          throw new IllegalArgumentException("LINK_MONITOR_INVALID_DATA");
+        }
+      }
+    }
+  }
+
+  /**
+   * A running monitor and its callback
+   */
+  private final class Session {
+    final CallbackContext callbackContext;
+    final Options options;
+    final Target gateway;
+    final Target internet;
+
+    // Guarded by LinkQualityMonitor.this
+    boolean paused;
+    boolean closed;
+    private ScheduledFuture<?> tick;
+    private ScheduledFuture<?> report;
+
+    Session(CallbackContext callbackContext, Options options) {
+      this.callbackContext = callbackContext;
+      this.options = options;
+      this.gateway = new Target(TARGET_GATEWAY, options.window);
+      this.internet = options.internet == null ? null : new Target(TARGET_INTERNET, options.window);
+
+      if (internet != null) {
+        internet.host = options.internet.host;
+      }
+    }
+
+    void schedule() {
+      tick = timerService.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          probe(gateway);
+          if (internet != null) {
+            probe(internet);
+          }
+        }
+      }, 0, options.interval);
+
+      if (options.reportInterval > 0) {
+        report = timerService.scheduleAtFixedRate(new Runnable() {
+          public void run() {
+            report();
+          }
+        }, options.reportInterval, options.reportInterval);
+      }
+    }
+
+    void cancel() {
+      TimerService.cancel(tick);
+      TimerService.cancel(report);
+      tick = null;
+      report = null;
+    }
+
+    void close(String type) {
+      cancel();
+      closed = true;
+      send(event(type), false);
+    }
+
+    /**
+     * Hand a probe of target to the probe threads (timer thread), unless its last probe is still running
+     */
+    private void probe(final Target target) {
+      if (!target.busy.compareAndSet(false, true)) {
+        return;
+      }
+
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              runProbe(target);
+            } finally {
+              target.busy.set(false);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        target.busy.set(false);
+      }
+    }
+
+    private void runProbe(Target target) {
+      ProbeEngine.Probe probe;
+
+      if (target == gateway) {
+        String ip = gatewaySource.getGateway();
+        if (ip == null || ip.equals("0.0.0.0")) {
+          ip = null;
+        }
+
+        synchronized (LinkQualityMonitor.this) {
+          if (!equals(ip, target.host)) {
+            // Samples from another network (or from before a disconnect) no longer apply
+            target.reset(ip);
+          }
+        }
+
+        if (ip == null) {
+          return;
+        }
+        probe = ProbeEngine.Probe.tcp(ip, options.gatewayPort, options.timeout);
+      } else {
+        probe = options.internet;
+      }
+
+      // A refused connection still measures the round trip
+      ProbeEngine.Result result = probeEngine.run(probe);
+
+      synchronized (LinkQualityMonitor.this) {
+        if (closed || paused || !equals(probe.host, target.host)) {
+          return;
+        }
+
+        target.window.add(result.isReachable() ? result.rtt : -1);
+        checkThresholds(target);
+      }
+    }
+
+    /**
+     * Send "degraded" and "recovered" events for target's metrics (with the monitor lock held)
+     */
+    private void checkThresholds(Target target) {
+      Stats stats = target.window.stats();
+
+      if (stats.samples < MIN_SAMPLES) {
+        return;
+      }
+
+      double[] values = { stats.p95, stats.jitter, stats.loss };
+      String[] metrics = { METRIC_RTT, METRIC_JITTER, METRIC_LOSS };
+
+      for (int i = 0; i < metrics.length; i++) {
+        double threshold = options.thresholds[i];
+
+        // No RTT (or jitter) when every probe in the window was lost, loss covers that
+        if (threshold <= 0 || Double.isNaN(values[i])) {
+          continue;
+        }
+
+        String type = null;
+        if (!target.exceeded[i] && values[i] > threshold) {
+          target.exceeded[i] = true;
+          type = "degraded";
+        } else if (target.exceeded[i] && values[i] <= threshold * RECOVERY_RATIO) {
+          target.exceeded[i] = false;
+          type = "recovered";
+        }
+
+        if (type != null) {
+          try {
+            JSONObject event = event(type);
+            event.put("target", target.name);
+            event.put("metric", metrics[i]);
+            event.put("value", round(values[i]));
+            event.put("threshold", threshold);
+            event.put("stats", stats.toJSON(target.host));
+            Log.d(TAG, "LinkQualityMonitor: " + target.name + " " + metrics[i] + " " + type + " " + round(values[i]));
+            send(event, true);
+          } catch (JSONException e) {
+            Log.e(TAG, "LinkQualityMonitor: unable to build event", e);
+          }
+        }
+      }
+    }
+
+    private void report() {
+      synchronized (LinkQualityMonitor.this) {
+        if (closed || paused) {
+          return;
+        }
+
+        try {
+          JSONObject event = statsJSON();
+          event.put("type", "stats");
+          send(event, true);
+        } catch (JSONException e) {
+          Log.e(TAG, "LinkQualityMonitor: unable to build stats", e);
+        }
+      }
+    }
+
+    JSONObject statsJSON() throws JSONException {
+      JSONObject result = new JSONObject();
+      result.put(TARGET_GATEWAY, gateway.window.stats().toJSON(gateway.host));
+      result.put(TARGET_INTERNET, internet == null ? JSONObject.NULL : internet.window.stats().toJSON(internet.host));
+      return result;
+    }
+
+    void send(JSONObject event, boolean keepCallback) {
+      PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+      result.setKeepCallback(keepCallback);
+      callbackContext.sendPluginResult(result);
+    }
+
+    private boolean equals(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  /**
+   * A probed host, its samples and which thresholds it is over
+   */
+  private static final class Target {
+    final String name;
+    final Window window;
+    final boolean[] exceeded = new boolean[3];
+    final AtomicBoolean busy = new AtomicBoolean();
+    String host;
+
+    Target(String name, int size) {
+      this.name = name;
+      this.window = new Window(size);
+    }
+
+    void reset(String host) {
+      this.host = host;
+      window.clear();
+      Arrays.fill(exceeded, false);
+    }
+  }
+
+  /**
+   * Ring buffer of the last size round trip times, -1 for a lost probe
+   */
+  private static final class Window {
+    final double[] rtts;
+    // Answered RTTs, sorted for percentiles
+    private final double[] sorted;
+    int head = 0;
+    int size = 0;
+
+    Window(int size) {
+      this.rtts = new double[size];
+      this.sorted = new double[size];
+    }
+
+    void add(double rtt) {
+      rtts[head] = rtt;
+      head = (head + 1) % rtts.length;
+      if (size < rtts.length) {
+        size++;
+      }
+    }
+
+    void clear() {
+      head = 0;
+      size = 0;
+    }
+
+    Stats stats() {
+      Stats stats = new Stats();
+      stats.samples = size;
+
+      int start = (head - size + rtts.length) % rtts.length;
+      int answered = 0;
+      double sum = 0;
+      double previous = -1;
+      double deltas = 0;
+      int deltaCount = 0;
+
+      // Oldest to newest
+      for (int i = 0; i < size; i++) {
+        double rtt = rtts[(start + i) % rtts.length];
+
+        if (rtt < 0) {
+          stats.lost++;
+          continue;
+        }
+
+        sorted[answered++] = rtt;
+        sum += rtt;
+        stats.last = rtt;
+
+        // Jitter: mean difference between consecutive answered probes
+        if (previous >= 0) {
+          deltas += Math.abs(rtt - previous);
+          deltaCount++;
+        }
+        previous = rtt;
+      }
+
+      stats.loss = size == 0 ? 0 : stats.lost / (double) size;
+
+      if (answered == 0) {
+        stats.last = stats.min = stats.max = stats.mean = Double.NaN;
+        stats.p50 = stats.p95 = stats.p99 = stats.jitter = Double.NaN;
+        return stats;
+      }
+
+      Arrays.sort(sorted, 0, answered);
+      stats.min = sorted[0];
+      stats.max = sorted[answered - 1];
+      stats.mean = sum / answered;
+      stats.p50 = percentile(answered, 0.50);
+      stats.p95 = percentile(answered, 0.95);
+      stats.p99 = percentile(answered, 0.99);
+      stats.jitter = deltaCount == 0 ? Double.NaN : deltas / deltaCount;
+      return stats;
+    }
+
+    /**
+     * Nearest rank percentile of the first count sorted values
+     */
+    private double percentile(int count, double p) {
+      int rank = (int) Math.ceil(p * count);
+      return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+  }
+
+  /**
+   * Statistics over a window, RTTs in milliseconds (NaN when nothing was answered)
+   */
+  static final class Stats {
+    int samples;
+    int lost;
+    double loss;
+    double last;
+    double min;
+    double max;
+    double mean;
+    double p50;
+    double p95;
+    double p99;
+    double jitter;
+
+    /**
+     * Format: {host, samples, lost, loss, rtt: {last, min, max, mean, p50, p95, p99}, jitter}
+     */
+    JSONObject toJSON(String host) throws JSONException {
+      JSONObject rtt = new JSONObject();
+      rtt.put("last", value(last));
+      rtt.put("min", value(min));
+      rtt.put("max", value(max));
+      rtt.put("mean", value(mean));
+      rtt.put("p50", value(p50));
+      rtt.put("p95", value(p95));
+      rtt.put("p99", value(p99));
+
+      JSONObject result = new JSONObject();
+      result.put("host", host == null ? JSONObject.NULL : host);
+      result.put("samples", samples);
+      result.put("lost", lost);
+      result.put("loss", Math.round(loss * 1000) / 1000.0);
+      result.put("rtt", rtt);
+      result.put("jitter", value(jitter));
+      return result;
+    }
+
+    private static Object value(double value) {
+      return Double.isNaN(value) ? JSONObject.NULL : round(value);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Single writer queue for actions that change WiFi state or configured networks
+ *
+ * Mutations run one at a time in the order they were submitted, so a lookup (SSID to network ID) and the write
+ * that depends on it can never interleave with another mutation.  Mutations that need the configuration saved
+ * call requestPersist(), and the persist task runs once when the queue drains, so a burst of add/remove calls
+ * shares a single save.
+ */
+class MutationQueue {
+
+  private static final String TAG = "WifiWizard2";
+  private static final int QUEUE_CAPACITY = 64;
+
+  private final ThreadPoolExecutor executor;
+  private final Runnable persist;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicBoolean dirty = new AtomicBoolean();
+
+  /**
+   * @param persist saves configuration, run on the queue thread after the last queued mutation that requested it
+   */
+  MutationQueue(Runnable persist) {
+    this.persist = persist;
+
+    executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WifiWizard2-mutations");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue a mutation
+   *
+   * @return false if the queue is full (or shut down), mutation was not queued
+   */
+  boolean submit(final Runnable mutation) {
+    pending.incrementAndGet();
+
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            mutation.run();
+          } finally {
+            if (pending.decrementAndGet() == 0) {
+              flush();
+            }
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      pending.decrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Save configuration once the queue drains (call from a mutation)
+   */
+  void requestPersist() {
+    dirty.set(true);
+  }
+
+  /**
+   * Stop queue thread, queued mutations are dropped (pending saves are not run)
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void flush() {
+    if (!dirty.getAndSet(false)) {
+      return;
+    }
+
+    try {
+      persist.run();
+    } catch (Exception e) {
+      Log.e(TAG, "MutationQueue: unable to persist configuration", e);
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiManager;
+import android.net.wifi.WifiNetworkSuggestion;
+import android.os.Build.VERSION;
+import android.util.Log;
+
+/**
+ * Network suggestions this app added with addMany (API 29+), by SSID
+ *
+ * Suggestions outlive the app process, so the index is rebuilt the first time it is needed: on API 30+ from
+ * getNetworkSuggestions(), on API 29 (which has no way to list them) from the SSIDs and auth types saved in
+ * SharedPreferences whenever the index changes.  Only SSID and auth type are known for those, so get() returns null
+ * for them; forRemoval() builds a suggestion to pass to removeNetworkSuggestions, which matches on SSID and
+ * security type only.
+ */
+class NetworkSuggestionIndex {
+
+  private static final String TAG = "WifiWizard2";
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  static final String AUTH_WPA2 = "WPA2";
+  static final String AUTH_NONE = "NONE";
+
+  private static final String PREFERENCES = "WifiWizard2";
+  private static final String KEY_SUGGESTIONS = "networkSuggestions";
+  private static final String PLACEHOLDER_PASSPHRASE = "WifiWizard2-placeholder";
+
+  private final WifiManager wifiManager;
+  private final SharedPreferences preferences;
+
+  // Guarded by this
+  // Suggestions known in full: added in this run, or listed by the platform (API 30+)
+  private final Map<String, WifiNetworkSuggestion> suggestions = new HashMap<String, WifiNetworkSuggestion>();
+  // SSID -> AUTH_WPA2 | AUTH_NONE for every suggestion, what is saved on API 29
+  private final Map<String, String> authTypes = new HashMap<String, String>();
+  private boolean loaded = false;
+
+  NetworkSuggestionIndex(Context context, WifiManager wifiManager) {
+    this.wifiManager = wifiManager;
+    this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * The suggestion added for ssid, null if there is none or only its SSID and auth type are known (API 29, added
+   * before an app restart), so it can't be added again
+   */
+  synchronized WifiNetworkSuggestion get(String ssid) {
+    load();
+    return suggestions.get(ssid);
+  }
+
+  /**
+   * A suggestion that removeNetworkSuggestions matches with the one added for ssid, null if there is none
+   */
+  synchronized WifiNetworkSuggestion forRemoval(String ssid) {
+    load();
+
+    WifiNetworkSuggestion suggestion = suggestions.get(ssid);
+    String authType = authTypes.get(ssid);
+
+    if (suggestion != null || authType == null) {
+      return suggestion;
+    }
+
+    WifiNetworkSuggestion.Builder builder = new WifiNetworkSuggestion.Builder();
+    builder.setSsid(ssid);
+    if (AUTH_WPA2.equals(authType)) {
+      // Not compared on removal, the real passphrase was never saved
+      builder.setWpa2Passphrase(PLACEHOLDER_PASSPHRASE);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @param authType AUTH_WPA2 or AUTH_NONE
+   */
+  synchronized void put(String ssid, String authType, WifiNetworkSuggestion suggestion) {
+    load();
+    suggestions.put(ssid, suggestion);
+    authTypes.put(ssid, authType);
+    save();
+  }
+
+  synchronized void remove(String ssid) {
+    load();
+    suggestions.remove(ssid);
+    authTypes.remove(ssid);
+    save();
+  }
+
+  private void load() {
+    if (loaded || API_VERSION < 29) {
+      return;
+    }
+    loaded = true;
+
+    if (API_VERSION >= 30) {
+      List<WifiNetworkSuggestion> current = wifiManager.getNetworkSuggestions();
+
+      if (current != null) {
+        for (WifiNetworkSuggestion suggestion : current) {
+          String ssid = unquote(suggestion.getSsid());
+          if (ssid != null) {
+            suggestions.put(ssid, suggestion);
+            authTypes.put(ssid, suggestion.getPassphrase() == null ? AUTH_NONE : AUTH_WPA2);
+          }
+        }
+      }
+
+      Log.d(TAG, "NetworkSuggestionIndex: " + suggestions.size() + " suggestions");
+      return;
+    }
+
+    String saved = preferences.getString(KEY_SUGGESTIONS, null);
+    if (saved == null) {
+      return;
+    }
+
+    try {
+      JSONObject entries = new JSONObject(saved);
+      Iterator<String> ssids = entries.keys();
+
+      while (ssids.hasNext()) {
+        String ssid = ssids.next();
+        authTypes.put(ssid, entries.optString(ssid, AUTH_NONE));
+      }
+    } catch (JSONException e) {
+      Log.e(TAG, "NetworkSuggestionIndex: unable to read saved suggestions", e);
+    }
+
+    Log.d(TAG, "NetworkSuggestionIndex: " + authTypes.size() + " saved suggestions");
+  }
+
+  /**
+   * Save SSIDs and auth types (never passphrases), only needed on API 29
+   */
+  private void save() {
+    if (API_VERSION != 29) {
+      return;
+    }
+
+    try {
+      JSONObject entries = new JSONObject();
+      for (Map.Entry<String, String> entry : authTypes.entrySet()) {
+        entries.put(entry.getKey(), entry.getValue());
+      }
+      preferences.edit().putString(KEY_SUGGESTIONS, entries.toString()).apply();
+    } catch (JSONException e) {
+      Log.e(TAG, "NetworkSuggestionIndex: unable to save suggestions", e);
+    }
+  }
+
+  private static String unquote(String value) {
+    if (value != null && value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+}
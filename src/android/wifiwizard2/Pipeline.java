@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of actions run natively, in order, in a single call from JavaScript
+ *
+ * Step arguments may reference earlier results: "$prev" is the previous step's result, "$name" the result of
+ * the step with that name (a step without a name can be referenced by its action), and "$name.key" a field (or
+ * array index) of it.  A string starting with "$$" is passed on with the first "$" removed.  References are
+ * resolved anywhere in the arguments, including inside objects and arrays.
+ *
+ * The pipeline stops at the first failed step unless that step sets continueOnError.
+ */
+class Pipeline {
+
+  static final int DEFAULT_STEP_TIMEOUT = 60000;
+
+  private static final String PREVIOUS = "prev";
+
+  /**
+   * Runs a single step
+   */
+  interface StepRunner {
+    /**
+     * Run action and wait for its result
+     *
+     * @return result, or null if the action did not answer within timeoutMs
+     */
+    PluginResult run(String action, JSONArray args, long timeoutMs) throws InterruptedException;
+  }
+
+  final List<Step> steps;
+  private final long stepTimeout;
+
+  /**
+   * @param steps [{action: "add", args: [...], name: "...", continueOnError: false}, ...]
+   * @param options {stepTimeout: ms}, may be null
+   * @throws IllegalArgumentException PIPELINE_INVALID_DATA, PIPELINE_INVALID_STEP
+   */
+  Pipeline(JSONArray steps, JSONObject options) {
+    if (steps == null || steps.length() == 0) {
+      throw new IllegalArgumentException("PIPELINE_INVALID_DATA");
+    }
+
+    List<Step> parsed = new ArrayList<Step>(steps.length());
+
+    for (int i = 0; i < steps.length(); i++) {
+      JSONObject step = steps.optJSONObject(i);
+      String action = step == null ? null : step.optString("action", null);
+      String name = step == null ? null : step.optString("name", null);
+
+      if (action == null || action.isEmpty() || (name != null && (name.isEmpty() || name.indexOf('.') >= 0))) {
+        throw new IllegalArgumentException("PIPELINE_INVALID_STEP");
+      }
+
+      JSONArray args = step.optJSONArray("args");
+      parsed.add(new Step(action, name, args == null ? new JSONArray() : args, step.optBoolean("continueOnError", false)));
+    }
+
+    this.steps = Collections.unmodifiableList(parsed);
+    this.stepTimeout = options == null ? DEFAULT_STEP_TIMEOUT : options.optLong("stepTimeout", DEFAULT_STEP_TIMEOUT);
+  }
+
+  /**
+   * Run all steps on the current thread
+   *
+   * Result format: {success: true, steps: [{action, name, success, result | error, time}, ...], time} with
+   * failedStep (index) added when the pipeline was stopped by a failed step
+   */
+  JSONObject run(StepRunner runner) throws JSONException {
+    long started = System.nanoTime();
+
+    Map<String, Object> results = new HashMap<String, Object>();
+    Object previous = JSONObject.NULL;
+    JSONArray stepResults = new JSONArray();
+    int failedStep = -1;
+
+    for (int i = 0; i < steps.size() && failedStep < 0; i++) {
+      Step step = steps.get(i);
+      long stepStarted = System.nanoTime();
+
+      Object value = JSONObject.NULL;
+      Object error = null;
+
+      try {
+        PluginResult result = runner.run(step.action, (JSONArray) resolve(step.args, previous, results), stepTimeout);
+
+        if (result == null) {
+          error = "PIPELINE_STEP_TIMEOUT";
+        } else if (CapturingCallbackContext.isSuccess(result)) {
+          value = CapturingCallbackContext.valueOf(result);
+        } else {
+          error = CapturingCallbackContext.valueOf(result);
+        }
+      } catch (IllegalArgumentException e) {
+        error = e.getMessage();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        error = "PIPELINE_INTERRUPTED";
+      }
+
+      JSONObject stepResult = new JSONObject();
+      stepResult.put("action", step.action);
+      if (step.name != null) {
+        stepResult.put("name", step.name);
+      }
+      stepResult.put("success", error == null);
+      if (error == null) {
+        stepResult.put("result", value);
+      } else {
+        stepResult.put("error", error);
+      }
+      stepResult.put("time", millisSince(stepStarted));
+      stepResults.put(stepResult);
+
+      if (error != null && (!step.continueOnError || Thread.currentThread().isInterrupted())) {
+        failedStep = i;
+      }
+
+      previous = value;
+      results.put(step.name != null ? step.name : step.action, value);
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("success", failedStep < 0);
+    result.put("steps", stepResults);
+    if (failedStep >= 0) {
+      result.put("failedStep", failedStep);
+    }
+    result.put("time", millisSince(started));
+    return result;
+  }
+
+  /**
+   * Copy of value with references replaced by earlier results
+   *
+   * @throws IllegalArgumentException PIPELINE_UNKNOWN_REFERENCE
+   */
+  private static Object resolve(Object value, Object previous, Map<String, Object> results) throws JSONException {
+    if (value instanceof String) {
+      return resolveReference((String) value, previous, results);
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      JSONArray resolved = new JSONArray();
+
+      for (int i = 0; i < array.length(); i++) {
+        resolved.put(resolve(array.opt(i), previous, results));
+      }
+      return resolved;
+    } else if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      JSONObject resolved = new JSONObject();
+
+      Iterator<String> keys = object.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        resolved.put(key, resolve(object.opt(key), previous, results));
+      }
+      return resolved;
+    }
+    return value;
+  }
+
+  private static Object resolveReference(String value, Object previous, Map<String, Object> results) {
+    if (!value.startsWith("$")) {
+      return value;
+    } else if (value.startsWith("$$")) {
+      return value.substring(1);
+    }
+
+    String name = value.substring(1);
+    String field = null;
+
+    int dot = name.indexOf('.');
+    if (dot >= 0) {
+      field = name.substring(dot + 1);
+      name = name.substring(0, dot);
+    }
+
+    Object target;
+    if (name.equals(PREVIOUS)) {
+      target = previous;
+    } else if (results.containsKey(name)) {
+      target = results.get(name);
+    } else {
+      throw new IllegalArgumentException("PIPELINE_UNKNOWN_REFERENCE");
+    }
+
+    if (field != null) {
+      if (target instanceof JSONObject) {
+        target = ((JSONObject) target).opt(field);
+      } else if (target instanceof JSONArray) {
+        try {
+          target = ((JSONArray) target).opt(Integer.parseInt(field));
+        } catch (NumberFormatException e) {
+          target = null;
+        }
+      } else {
+        target = null;
+      }
+    }
+
+    return target == null ? JSONObject.NULL : target;
+  }
+
+  private static long millisSince(long startedNanos) {
+    return (System.nanoTime() - startedNanos) / 1000000;
+  }
+
+  /**
+   * Parsed step
+   */
+  static final class Step {
+    final String action;
+    final String name;
+    final JSONArray args;
+    final boolean continueOnError;
+
+    Step(String action, String name, JSONArray args, boolean continueOnError) {
+      this.action = action;
+      this.name = name;
+      this.args = args;
+      this.continueOnError = continueOnError;
+    }
+  }
+}
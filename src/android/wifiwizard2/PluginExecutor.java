@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plugin owned threads for actions that must not run on the Cordova bridge thread
+ *
+ * BACKGROUND actions (network checks, large reads) run on a small bounded pool.  SERIAL actions (anything that
+ * changes WiFi state or the configured networks) go through the MutationQueue, one at a time in the order they
+ * were called, so they never wait behind a slow network check.
+ */
+class PluginExecutor {
+
+  /**
+   * Where an action runs
+   */
+  enum Policy {
+    // On the calling (bridge) thread, for quick reads and actions that are already asynchronous
+    INLINE,
+    // On the bounded background pool
+    BACKGROUND,
+    // On the MutationQueue, in call order
+    SERIAL
+  }
+
+  private static final int POOL_SIZE = 4;
+  private static final int QUEUE_CAPACITY = 64;
+
+  private final ThreadPoolExecutor background;
+  private final MutationQueue mutations;
+
+  PluginExecutor(MutationQueue mutations) {
+    this.mutations = mutations;
+
+    background = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), threadFactory("WifiWizard2-worker"));
+    // Idle workers are let go, the plugin is mostly idle
+    background.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Run task according to policy
+   *
+   * @return false if the queue for policy is full (or the executor was shut down), task was not run
+   */
+  boolean execute(Policy policy, Runnable task) {
+    try {
+      switch (policy) {
+        case BACKGROUND:
+          background.execute(task);
+          break;
+        case SERIAL:
+          return mutations.submit(task);
+        default:
+          task.run();
+      }
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Stop threads (and the MutationQueue), queued tasks are dropped
+   */
+  void shutdown() {
+    background.shutdownNow();
+    mutations.shutdown();
+  }
+
+  private static ThreadFactory threadFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger(1);
+
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
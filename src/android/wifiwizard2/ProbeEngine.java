@@ -0,0 +1,338 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.PortUnreachableException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * In-process reachability probes, replacing a forked `ping` per check
+ *
+ * Probes run on the calling thread (the plugin's background pool) and block for at most their timeout.  Only
+ * java.net (and org.json) is used, so the engine also runs on a plain JVM; on Android a SocketBinder routes probe
+ * sockets over a specific Network.
+ */
+class ProbeEngine {
+
+  static final String TYPE_TCP = "tcp";
+  static final String TYPE_REACHABLE = "reachable";
+  static final String TYPE_UDP = "udp";
+
+  // Host answered, a port accepted the connection (or replied)
+  static final String STATUS_OK = "OK";
+  // Host answered, but refused the connection (TCP reset, ICMP port unreachable)
+  static final String STATUS_REFUSED = "REFUSED";
+  static final String STATUS_TIMEOUT = "TIMEOUT";
+  static final String STATUS_UNREACHABLE = "UNREACHABLE";
+  static final String STATUS_UNKNOWN_HOST = "UNKNOWN_HOST";
+  static final String STATUS_ERROR = "ERROR";
+  // Stopped by Call.cancel() before it finished
+  static final String STATUS_CANCELLED = "CANCELLED";
+
+  static final int DEFAULT_TIMEOUT = 3000;
+  static final int MAX_TIMEOUT = 30000;
+
+  private static final int UDP_BUFFER_SIZE = 512;
+  // DNS query for the root name servers, answered by any DNS server
+  private static final byte[] DNS_QUERY = {
+      0x57, 0x57, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+      0x00, 0x00, 0x02, 0x00, 0x01
+  };
+  private static final byte[] ECHO_PAYLOAD = { 'W', 'i', 'f', 'i', 'W', 'i', 'z', 'a', 'r', 'd', '2' };
+
+  /**
+   * Binds probe sockets to a network before they connect
+   */
+  interface SocketBinder {
+    void bind(Socket socket) throws IOException;
+
+    void bind(DatagramSocket socket) throws IOException;
+  }
+
+  private final SocketBinder binder;
+
+  /**
+   * @param binder binds probe sockets, null to use the default network
+   */
+  ProbeEngine(SocketBinder binder) {
+    this.binder = binder;
+  }
+
+  /**
+   * Run a probe, blocking for at most probe.timeout milliseconds (plus name resolution, if host is a name)
+   */
+  Result run(Probe probe) {
+    return newCall(probe).execute();
+  }
+
+  /**
+   * A probe that can be cancelled from another thread while it runs
+   */
+  Call newCall(Probe probe) {
+    return new Call(probe);
+  }
+
+  /**
+   * Android reports every connect failure as ConnectException, the errno in the message tells them apart
+   *
+   * Only a reset from the host counts as an answer (REFUSED), anything not recognised (e.g. EPERM or EACCES from a
+   * firewall, VPN or data saver) is an error: nothing was answered.
+   */
+  private static Result connectFailed(Probe probe, ConnectException e, long started) {
+    String message = e.getMessage() == null ? "" : e.getMessage();
+
+    if (message.contains("ECONNREFUSED") || message.contains("Connection refused")) {
+      return new Result(probe, STATUS_REFUSED, elapsed(started), message);
+    } else if (message.contains("ETIMEDOUT") || message.contains("timed out")) {
+      return new Result(probe, STATUS_TIMEOUT, -1, null);
+    } else if (message.contains("ENETUNREACH") || message.contains("EHOSTUNREACH")
+        || message.contains("unreachable") || message.contains("No route to host")) {
+      // OpenJDK reports these as "Network is unreachable" / "No route to host", without the errno name
+      return new Result(probe, STATUS_UNREACHABLE, -1, message);
+    }
+
+    return new Result(probe, STATUS_ERROR, -1, message.isEmpty() ? null : message);
+  }
+
+  private static double elapsed(long startedNanos) {
+    // Milliseconds, to 0.01 ms
+    return Math.round((System.nanoTime() - startedNanos) / 10000.0) / 100.0;
+  }
+
+  private static void closeQuietly(Closeable socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {}
+  }
+
+  /**
+   * One run of a probe
+   *
+   * cancel() closes the probe socket, so a blocked connect or receive returns at once with STATUS_CANCELLED.  A
+   * "reachable" probe can't be interrupted, it is only reported as cancelled once it returns.
+   */
+  final class Call {
+    final Probe probe;
+
+    private volatile boolean cancelled;
+    private volatile Closeable socket;
+
+    Call(Probe probe) {
+      this.probe = probe;
+    }
+
+    /**
+     * Run the probe on the calling thread
+     */
+    Result execute() {
+      Result result = run();
+      return cancelled ? new Result(probe, STATUS_CANCELLED, -1, null) : result;
+    }
+
+    void cancel() {
+      cancelled = true;
+
+      Closeable open = socket;
+      if (open != null) {
+        closeQuietly(open);
+      }
+    }
+
+    private Result run() {
+      InetAddress address;
+
+      try {
+        address = InetAddress.getByName(probe.host);
+      } catch (UnknownHostException e) {
+        return new Result(probe, STATUS_UNKNOWN_HOST, -1, e.getMessage());
+      }
+
+      long started = System.nanoTime();
+
+      try {
+        if (TYPE_TCP.equals(probe.type)) {
+          return tcp(address, started);
+        } else if (TYPE_UDP.equals(probe.type)) {
+          return udp(address, started);
+        } else {
+          return reachable(address, started);
+        }
+      } catch (SocketTimeoutException e) {
+        return new Result(probe, STATUS_TIMEOUT, -1, null);
+      } catch (ConnectException e) {
+        return connectFailed(probe, e, started);
+      } catch (PortUnreachableException e) {
+        return new Result(probe, STATUS_REFUSED, elapsed(started), e.getMessage());
+      } catch (NoRouteToHostException e) {
+        return new Result(probe, STATUS_UNREACHABLE, -1, e.getMessage());
+      } catch (IOException e) {
+        return new Result(probe, STATUS_ERROR, -1, e.getMessage());
+      }
+    }
+
+    private Result tcp(InetAddress address, long started) throws IOException {
+      Socket tcp = new Socket();
+      opened(tcp);
+
+      try {
+        if (binder != null) {
+          binder.bind(tcp);
+        }
+        tcp.connect(new InetSocketAddress(address, probe.port), probe.timeout);
+        return new Result(probe, STATUS_OK, elapsed(started), null);
+      } finally {
+        closeQuietly(tcp);
+      }
+    }
+
+    private Result udp(InetAddress address, long started) throws IOException {
+      DatagramSocket udp = new DatagramSocket(null);
+      opened(udp);
+
+      try {
+        if (binder != null) {
+          binder.bind(udp);
+        }
+
+        byte[] payload = probe.port == 53 ? DNS_QUERY : ECHO_PAYLOAD;
+        byte[] buffer = new byte[UDP_BUFFER_SIZE];
+
+        udp.setSoTimeout(probe.timeout);
+        // Connected, so an ICMP port unreachable is reported as PortUnreachableException
+        udp.connect(address, probe.port);
+
+        udp.send(new DatagramPacket(payload, payload.length));
+        udp.receive(new DatagramPacket(buffer, buffer.length));
+        return new Result(probe, STATUS_OK, elapsed(started), null);
+      } finally {
+        udp.close();
+      }
+    }
+
+    private Result reachable(InetAddress address, long started) throws IOException {
+      // ICMP echo where the OS allows it, otherwise a TCP connection to the echo port
+      if (address.isReachable(probe.timeout)) {
+        return new Result(probe, STATUS_OK, elapsed(started), null);
+      }
+      return new Result(probe, STATUS_TIMEOUT, -1, null);
+    }
+
+    /**
+     * Track socket so cancel() can close it, closing it now if cancel() already ran
+     */
+    private void opened(Closeable open) {
+      socket = open;
+      if (cancelled) {
+        closeQuietly(open);
+      }
+    }
+  }
+
+  /**
+   * What to probe
+   */
+  static final class Probe {
+    final String type;
+    final String host;
+    final int port;
+    final int timeout;
+
+    Probe(String type, String host, int port, int timeout) {
+      this.type = type;
+      this.host = host;
+      this.port = port;
+      this.timeout = Math.max(1, Math.min(timeout, MAX_TIMEOUT));
+    }
+
+    static Probe tcp(String host, int port, int timeout) {
+      return new Probe(TYPE_TCP, host, port, timeout);
+    }
+
+    static Probe udp(String host, int port, int timeout) {
+      return new Probe(TYPE_UDP, host, port, timeout);
+    }
+
+    static Probe reachable(String host, int timeout) {
+      return new Probe(TYPE_REACHABLE, host, -1, timeout);
+    }
+
+    @Override
+    public String toString() {
+      return type + ":" + host + (port < 0 ? "" : ":" + port);
+    }
+  }
+
+  /**
+   * Probe outcome
+   */
+  static final class Result {
+    final Probe probe;
+    final String status;
+    // Round trip in milliseconds, -1 when the host did not answer
+    final double rtt;
+    final String error;
+
+    Result(Probe probe, String status, double rtt, String error) {
+      this.probe = probe;
+      this.status = status;
+      this.rtt = rtt;
+      this.error = error;
+    }
+
+    /**
+     * Whether the host answered (a refused connection is still an answer)
+     */
+    boolean isReachable() {
+      return STATUS_OK.equals(status) || STATUS_REFUSED.equals(status);
+    }
+
+    /**
+     * Result format: {type, host, port, reachable, status, rtt, error}
+     */
+    JSONObject toJSON() throws JSONException {
+      JSONObject result = new JSONObject();
+      result.put("type", probe.type);
+      result.put("host", probe.host);
+      if (probe.port >= 0) {
+        result.put("port", probe.port);
+      }
+      result.put("reachable", isReachable());
+      result.put("status", status);
+      result.put("rtt", rtt < 0 ? JSONObject.NULL : rtt);
+      if (error != null) {
+        result.put("error", error);
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return probe + " " + status + (rtt < 0 ? "" : " " + rtt + "ms");
+    }
+  }
+}
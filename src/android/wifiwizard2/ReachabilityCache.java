@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.ConnectivityManager;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Short lived cache of reachability check results, keyed by check type and target
+ *
+ * Callers asking for the same check while it is running wait for that run instead of starting their own, and a
+ * result is reused for ttl milliseconds after it completed.  Everything is dropped when the network changes
+ * (NETWORK_STATE_CHANGED_ACTION, CONNECTIVITY_ACTION), as results for the previous network no longer apply.
+ */
+class ReachabilityCache extends BroadcastReceiver {
+
+  private static final String TAG = "WifiWizard2";
+
+  static final int DEFAULT_TTL = 5000;
+
+  /**
+   * A reachability check, run on the calling thread
+   *
+   * A check that is interrupted throws instead of answering false, so the interruption isn't cached as a result.
+   */
+  interface Check {
+    boolean run() throws InterruptedException;
+  }
+
+  private final long ttl;
+
+  // Guarded by this
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /**
+   * @param ttl how long a result is reused, in milliseconds (0 only shares checks that are running)
+   */
+  ReachabilityCache(long ttl) {
+    this.ttl = Math.max(0, ttl);
+  }
+
+  /**
+   * Start dropping results on network changes
+   */
+  void register(Context context) {
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+    filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+    context.registerReceiver(this, filter);
+  }
+
+  void unregister(Context context) {
+    try {
+      context.unregisterReceiver(this);
+    } catch (Exception e) {}
+
+    invalidate();
+  }
+
+  /**
+   * Result of check for key, from the cache, a run of the same check in progress, or a new run
+   *
+   * @param refresh don't use a cached or running result, always run check (its result is still cached)
+   * @throws InterruptedException the calling thread, or the check this call joined, was interrupted
+   */
+  boolean get(String key, boolean refresh, final Check check) throws InterruptedException {
+    Entry entry;
+    boolean owner = false;
+
+    synchronized (this) {
+      entry = entries.get(key);
+
+      if (refresh || entry == null || entry.isExpired(ttl)) {
+        entry = new Entry(new FutureTask<Boolean>(new Callable<Boolean>() {
+          public Boolean call() throws InterruptedException {
+            return check.run();
+          }
+        }));
+        entries.put(key, entry);
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      entry.task.run();
+      entry.completed();
+    } else {
+      Log.d(TAG, "ReachabilityCache: " + key + (entry.isDone() ? " cached" : " joined running check"));
+    }
+
+    try {
+      return entry.task.get();
+    } catch (ExecutionException e) {
+      // Check threw, don't keep that result around
+      synchronized (this) {
+        if (entries.get(key) == entry) {
+          entries.remove(key);
+        }
+      }
+
+      if (e.getCause() instanceof InterruptedException) {
+        throw new InterruptedException("reachability check interrupted");
+      }
+
+      Log.e(TAG, "ReachabilityCache: " + key + " failed", e.getCause());
+      return false;
+    }
+  }
+
+  /**
+   * Drop all results, running checks finish for their current callers but are not reused
+   */
+  synchronized void invalidate() {
+    entries.clear();
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    String action = intent.getAction();
+
+    if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action) || ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
+      invalidate();
+    }
+  }
+
+  private static final class Entry {
+    final FutureTask<Boolean> task;
+    // SystemClock.elapsedRealtime() when the check completed, 0 while it is running
+    private volatile long completedAt;
+
+    Entry(FutureTask<Boolean> task) {
+      this.task = task;
+    }
+
+    void completed() {
+      completedAt = SystemClock.elapsedRealtime();
+    }
+
+    boolean isDone() {
+      return completedAt > 0;
+    }
+
+    boolean isExpired(long ttl) {
+      return completedAt > 0 && SystemClock.elapsedRealtime() - completedAt >= ttl;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import android.net.wifi.ScanResult;
+import android.os.Build.VERSION;
+
+/**
+ * Snapshots of scan results keyed by BSSID, used to send only what changed since a previous getScanResults call
+ *
+ * Every diff returns a token for the snapshot it produced, which the caller passes back as `since` on the
+ * next call.  Entries that did not change keep their previous baseline in the new snapshot, so a level that
+ * slowly drifts is still reported once it has moved past the threshold in total.
+ */
+class ScanDeltaTracker {
+
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  static final int DEFAULT_RSSI_THRESHOLD = 5;
+
+  // A few callers (screens) may be diffing at the same time, each with their own token
+  private static final int MAX_SNAPSHOTS = 4;
+
+  private final String session = Integer.toHexString(new Random().nextInt() & 0x7fffffff);
+  private long counter = 0;
+
+  private final LinkedHashMap<String, Map<String, Baseline>> snapshots =
+      new LinkedHashMap<String, Map<String, Baseline>>(MAX_SNAPSHOTS + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, Baseline>> eldest) {
+          return size() > MAX_SNAPSHOTS;
+        }
+      };
+
+  /**
+   * Diff results against the snapshot for token `since`
+   *
+   * @param since token from a previous diff, or null. Unknown tokens produce a full (reset) result
+   * @param results current scan results
+   * @param rssiThreshold minimum level change (dBm) to report an entry as changed
+   */
+  synchronized Delta diff(String since, List<ScanResult> results, int rssiThreshold) {
+    Map<String, Baseline> base = since == null ? null : snapshots.get(since);
+    Map<String, Baseline> next = new HashMap<String, Baseline>(results.size() * 2);
+
+    Delta delta = new Delta();
+    delta.reset = base == null;
+
+    for (ScanResult scan : results) {
+      if (scan.BSSID == null) {
+        continue;
+      }
+
+      Baseline previous = base == null ? null : base.get(scan.BSSID);
+
+      if (previous == null) {
+        delta.added.add(scan);
+        next.put(scan.BSSID, new Baseline(scan));
+      } else if (previous.hasChanged(scan, rssiThreshold)) {
+        delta.changed.add(scan);
+        next.put(scan.BSSID, new Baseline(scan));
+      } else {
+        next.put(scan.BSSID, previous);
+      }
+    }
+
+    if (base != null) {
+      for (String bssid : base.keySet()) {
+        if (!next.containsKey(bssid)) {
+          delta.removed.add(bssid);
+        }
+      }
+    }
+
+    delta.token = session + "-" + (++counter);
+    snapshots.put(delta.token, next);
+
+    return delta;
+  }
+
+  /**
+   * Result of a diff
+   */
+  static class Delta {
+    String token;
+    boolean reset;
+    final List<ScanResult> added = new ArrayList<ScanResult>();
+    final List<ScanResult> changed = new ArrayList<ScanResult>();
+    final List<String> removed = new ArrayList<String>();
+  }
+
+  /**
+   * Fields of a scan result we compare on
+   */
+  private static class Baseline {
+    final int level;
+    final int frequency;
+    final int channelWidth;
+    final String capabilities;
+
+    Baseline(ScanResult scan) {
+      this.level = scan.level;
+      this.frequency = scan.frequency;
+      this.channelWidth = API_VERSION >= 23 ? scan.channelWidth : -1;
+      this.capabilities = scan.capabilities;
+    }
+
+    boolean hasChanged(ScanResult scan, int rssiThreshold) {
+      if (Math.abs(scan.level - level) >= rssiThreshold || scan.frequency != frequency) {
+        return true;
+      }
+
+      if (API_VERSION >= 23 && scan.channelWidth != channelWidth) {
+        return true;
+      }
+
+      return capabilities == null ? scan.capabilities != null : !capabilities.equals(scan.capabilities);
+    }
+  }
+}
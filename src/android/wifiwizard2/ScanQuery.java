@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import android.net.wifi.ScanResult;
+
+/**
+ * Options passed to getScanResults (and scan), parsed once per call
+ *
+ * Filtering, sorting and limiting are applied to the raw ScanResult list before any JSON is built, and the
+ * `fields` projection controls which keys are put in each result object.
+ */
+class ScanQuery {
+
+  static final int FIELD_LEVEL = 1;
+  static final int FIELD_SSID = 1 << 1;
+  static final int FIELD_BSSID = 1 << 2;
+  static final int FIELD_FREQUENCY = 1 << 3;
+  static final int FIELD_CAPABILITIES = 1 << 4;
+  static final int FIELD_TIMESTAMP = 1 << 5;
+  static final int FIELD_CHANNEL_WIDTH = 1 << 6;
+  static final int FIELD_CENTER_FREQ0 = 1 << 7;
+  static final int FIELD_CENTER_FREQ1 = 1 << 8;
+  static final int FIELD_SECURITY = 1 << 9;
+
+  static final int DEFAULT_FIELDS = FIELD_LEVEL | FIELD_SSID | FIELD_BSSID | FIELD_FREQUENCY | FIELD_CAPABILITIES
+      | FIELD_TIMESTAMP | FIELD_CHANNEL_WIDTH | FIELD_CENTER_FREQ0 | FIELD_CENTER_FREQ1;
+
+  // Not in DEFAULT_FIELDS, security is only added when requested with `fields` or `includeSecurity`
+  private static final String[] FIELD_NAMES = {
+      "level", "SSID", "BSSID", "frequency", "capabilities", "timestamp", "channelWidth", "centerFreq0", "centerFreq1",
+      "security"
+  };
+
+  static final int BAND_24_GHZ = 1;
+  static final int BAND_5_GHZ = 1 << 1;
+  static final int BAND_6_GHZ = 1 << 2;
+
+  static final int SECURITY_OPEN = 1;
+  static final int SECURITY_WEP = 1 << 1;
+  static final int SECURITY_WPA = 1 << 2;
+  static final int SECURITY_WPA2 = 1 << 3;
+  static final int SECURITY_WPA3 = 1 << 4;
+
+  Integer numLevels = null;
+  boolean reportSource = false;
+  boolean binary = false;
+
+  boolean deltaMode = false;
+  String since = null;
+  int rssiThreshold = ScanDeltaTracker.DEFAULT_RSSI_THRESHOLD;
+
+  int fields = DEFAULT_FIELDS;
+
+  private String ssidPrefix = null;
+  private Pattern ssidPattern = null;
+  private Set<String> bssids = null;
+  private Integer minLevel = null;
+  private int bands = 0;
+  private int security = 0;
+  private boolean sortByLevel = false;
+  private boolean ascending = false;
+  private int limit = 0;
+
+  /**
+   * Parse options object (null for defaults)
+   *
+   * @throws IllegalArgumentException with error code as message, for invalid option values
+   */
+  static ScanQuery parse(JSONObject options) throws JSONException {
+    ScanQuery query = new ScanQuery();
+
+    if (options == null) {
+      return query;
+    }
+
+    if (options.has("numLevels")) {
+      Integer levels = options.optInt("numLevels");
+
+      if (levels > 0) {
+        query.numLevels = levels;
+      } else if (options.optBoolean("numLevels", false)) {
+        // use previous default for {numLevels: true}
+        query.numLevels = 5;
+      }
+    }
+
+    query.reportSource = options.optBoolean("reportSource", false);
+
+    if (!options.isNull("format")) {
+      String format = options.optString("format");
+      if (format.equals("binary")) {
+        query.binary = true;
+      } else if (!format.equals("json")) {
+        throw new IllegalArgumentException("INVALID_FORMAT");
+      }
+    }
+
+    if ("delta".equals(options.optString("mode"))) {
+      query.deltaMode = true;
+      query.since = options.isNull("since") ? null : options.optString("since", null);
+      query.rssiThreshold = options.optInt("rssiThreshold", ScanDeltaTracker.DEFAULT_RSSI_THRESHOLD);
+    }
+
+    if (!options.isNull("ssidPrefix")) {
+      query.ssidPrefix = options.optString("ssidPrefix", null);
+    }
+
+    if (!options.isNull("ssidRegex")) {
+      try {
+        query.ssidPattern = Pattern.compile(options.getString("ssidRegex"));
+      } catch (PatternSyntaxException e) {
+        throw new IllegalArgumentException("INVALID_SSID_REGEX");
+      }
+    }
+
+    if (!options.isNull("bssids")) {
+      JSONArray list = options.getJSONArray("bssids");
+      query.bssids = new HashSet<String>();
+      for (int i = 0; i < list.length(); i++) {
+        query.bssids.add(list.getString(i).toLowerCase(Locale.US));
+      }
+    }
+
+    if (!options.isNull("minLevel")) {
+      query.minLevel = options.getInt("minLevel");
+    }
+
+    if (!options.isNull("band")) {
+      for (String band : stringOrArray(options, "band")) {
+        if (band.equals("2.4")) {
+          query.bands |= BAND_24_GHZ;
+        } else if (band.equals("5")) {
+          query.bands |= BAND_5_GHZ;
+        } else if (band.equals("6")) {
+          query.bands |= BAND_6_GHZ;
+        } else {
+          throw new IllegalArgumentException("INVALID_BAND");
+        }
+      }
+    }
+
+    if (!options.isNull("security")) {
+      for (String security : stringOrArray(options, "security")) {
+        String value = security.toLowerCase(Locale.US);
+        if (value.equals("open")) {
+          query.security |= SECURITY_OPEN;
+        } else if (value.equals("wep")) {
+          query.security |= SECURITY_WEP;
+        } else if (value.equals("wpa")) {
+          query.security |= SECURITY_WPA;
+        } else if (value.equals("wpa2")) {
+          query.security |= SECURITY_WPA2;
+        } else if (value.equals("wpa3")) {
+          query.security |= SECURITY_WPA3;
+        } else {
+          throw new IllegalArgumentException("INVALID_SECURITY");
+        }
+      }
+    }
+
+    if (!options.isNull("sortBy")) {
+      if (!"level".equals(options.optString("sortBy"))) {
+        throw new IllegalArgumentException("INVALID_SORT");
+      }
+      query.sortByLevel = true;
+      query.ascending = "asc".equals(options.optString("order", "desc"));
+    }
+
+    query.limit = Math.max(0, options.optInt("limit", 0));
+
+    if (!options.isNull("fields")) {
+      JSONArray list = options.getJSONArray("fields");
+      query.fields = 0;
+      for (int i = 0; i < list.length(); i++) {
+        int field = fieldFor(list.getString(i));
+        if (field == 0) {
+          throw new IllegalArgumentException("INVALID_FIELD");
+        }
+        query.fields |= field;
+      }
+    }
+
+    if (options.optBoolean("includeSecurity", false)) {
+      query.fields |= FIELD_SECURITY;
+    }
+
+    return query;
+  }
+
+  /**
+   * Whether field should be put in result objects
+   */
+  boolean hasField(int field) {
+    return (fields & field) != 0;
+  }
+
+  /**
+   * Filter, sort and limit scan results
+   */
+  List<ScanResult> select(List<ScanResult> scanResults) {
+    List<ScanResult> selected = new ArrayList<ScanResult>(scanResults.size());
+
+    for (ScanResult scan : scanResults) {
+      if (matches(scan)) {
+        selected.add(scan);
+      }
+    }
+
+    if (sortByLevel) {
+      Collections.sort(selected, new Comparator<ScanResult>() {
+        public int compare(ScanResult a, ScanResult b) {
+          return ascending ? compareInts(a.level, b.level) : compareInts(b.level, a.level);
+        }
+      });
+    }
+
+    if (limit > 0 && selected.size() > limit) {
+      return selected.subList(0, limit);
+    }
+
+    return selected;
+  }
+
+  private boolean matches(ScanResult scan) {
+    if (minLevel != null && scan.level < minLevel) {
+      return false;
+    }
+
+    if (bands != 0 && (bandOf(scan.frequency) & bands) == 0) {
+      return false;
+    }
+
+    if (ssidPrefix != null && (scan.SSID == null || !scan.SSID.startsWith(ssidPrefix))) {
+      return false;
+    }
+
+    if (ssidPattern != null && (scan.SSID == null || !ssidPattern.matcher(scan.SSID).find())) {
+      return false;
+    }
+
+    if (bssids != null && (scan.BSSID == null || !bssids.contains(scan.BSSID.toLowerCase(Locale.US)))) {
+      return false;
+    }
+
+    if (security != 0 && (CapabilitiesParser.parse(scan.capabilities).types & security) == 0) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Band (BAND_* constant) for frequency in MHz, 0 if unknown
+   */
+  static int bandOf(int frequency) {
+    if (frequency >= 2400 && frequency < 2500) {
+      return BAND_24_GHZ;
+    } else if (frequency >= 4900 && frequency < 5925) {
+      return BAND_5_GHZ;
+    } else if (frequency >= 5925 && frequency <= 7125) {
+      return BAND_6_GHZ;
+    }
+    return 0;
+  }
+
+  private static int fieldFor(String name) {
+    for (int i = 0; i < FIELD_NAMES.length; i++) {
+      if (FIELD_NAMES[i].equals(name)) {
+        return 1 << i;
+      }
+    }
+    return 0;
+  }
+
+  private static List<String> stringOrArray(JSONObject options, String key) throws JSONException {
+    List<String> values = new ArrayList<String>();
+    JSONArray list = options.optJSONArray(key);
+
+    if (list == null) {
+      values.add(options.getString(key));
+    } else {
+      for (int i = 0; i < list.length(); i++) {
+        values.add(list.getString(i));
+      }
+    }
+
+    return values;
+  }
+
+  private static int compareInts(int a, int b) {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of scan results, sent to JavaScript as an ArrayBuffer
+ *
+ * All values are little endian. Layout:
+ *
+ *   header        magic "WW2S", u8 version, u8 flags, u16 string count, u32 result count
+ *   strings       for each string: u16 byte length, UTF-8 bytes (SSIDs and capabilities, each stored once)
+ *   padding       zero bytes up to the next multiple of 8
+ *   columns       one array per field, each `count` entries long, in this order:
+ *                 bssid i64 (48 bit MAC, first octet most significant, -1 for null or not a valid MAC),
+ *                 timestamp i64 (microseconds), level i16, frequency u16, centerFreq0 u16, centerFreq1 u16,
+ *                 ssid u16 (string index), capabilities u16 (string index), channelWidth i8 (-1 when not available)
+ *
+ * A string index of 0xFFFF means null.  Decoded by WifiWizard2.decodeScanResults in www/WifiWizard2.js.
+ *
+ * Only depends on java.*, so it can be exercised and benchmarked on a plain JVM.
+ */
+final class ScanResultEncoder {
+
+  static final int VERSION = 1;
+
+  static final int FLAG_CALCULATED_LEVELS = 1;
+  static final int FLAG_SOURCE_SCAN = 1 << 1;
+  static final int FLAG_SOURCE_CACHED = 1 << 2;
+
+  private static final byte[] MAGIC = { 'W', 'W', '2', 'S' };
+  private static final int HEADER_SIZE = 12;
+  private static final int NULL_STRING = 0xFFFF;
+  static final long NULL_BSSID = -1;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private int count = 0;
+  private long[] bssids;
+  private long[] timestamps;
+  private short[] levels;
+  private char[] frequencies;
+  private char[] centerFreq0s;
+  private char[] centerFreq1s;
+  private char[] ssids;
+  private char[] capabilities;
+  private byte[] channelWidths;
+
+  private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+  private final List<byte[]> strings = new ArrayList<byte[]>();
+  private int stringBytes = 0;
+
+  ScanResultEncoder(int capacity) {
+    allocate(Math.max(capacity, 16));
+  }
+
+  /**
+   * Clear all results so the encoder (and its arrays) can be reused
+   */
+  void reset() {
+    count = 0;
+    stringIndex.clear();
+    strings.clear();
+    stringBytes = 0;
+  }
+
+  /**
+   * Add a single scan result
+   */
+  void add(String ssid, String bssid, String capabilities, int level, int frequency, int channelWidth,
+           int centerFreq0, int centerFreq1, long timestamp) {
+
+    if (count == levels.length) {
+      grow();
+    }
+
+    this.bssids[count] = packBSSID(bssid);
+    this.timestamps[count] = timestamp;
+    this.levels[count] = (short) level;
+    this.frequencies[count] = (char) frequency;
+    this.centerFreq0s[count] = (char) centerFreq0;
+    this.centerFreq1s[count] = (char) centerFreq1;
+    this.ssids[count] = (char) intern(ssid);
+    this.capabilities[count] = (char) intern(capabilities);
+    this.channelWidths[count] = (byte) channelWidth;
+    count++;
+  }
+
+  /**
+   * Encode all added results
+   *
+   * @param flags FLAG_* values
+   */
+  byte[] encode(int flags) {
+    int stringsEnd = HEADER_SIZE + strings.size() * 2 + stringBytes;
+    int columnsStart = (stringsEnd + 7) & ~7;
+    int size = columnsStart + count * (8 + 8 + 2 + 2 + 2 + 2 + 2 + 2 + 1);
+
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+    buffer.put(MAGIC);
+    buffer.put((byte) VERSION);
+    buffer.put((byte) flags);
+    buffer.putShort((short) strings.size());
+    buffer.putInt(count);
+
+    for (byte[] string : strings) {
+      buffer.putShort((short) string.length);
+      buffer.put(string);
+    }
+
+    buffer.position(columnsStart);
+
+    for (int i = 0; i < count; i++) {
+      buffer.putLong(bssids[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putLong(timestamps[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putShort(levels[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putChar(frequencies[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putChar(centerFreq0s[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putChar(centerFreq1s[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putChar(ssids[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      buffer.putChar(capabilities[i]);
+    }
+    buffer.put(channelWidths, 0, count);
+
+    return buffer.array();
+  }
+
+  /**
+   * Pack "aa:bb:cc:dd:ee:ff" into the low 48 bits of a long (NULL_BSSID if not a valid MAC)
+   */
+  static long packBSSID(String bssid) {
+    if (bssid == null || bssid.length() != 17) {
+      return NULL_BSSID;
+    }
+
+    long packed = 0;
+
+    for (int i = 0; i < 17; i += 3) {
+      int high = Character.digit(bssid.charAt(i), 16);
+      int low = Character.digit(bssid.charAt(i + 1), 16);
+
+      if (high < 0 || low < 0 || (i < 15 && bssid.charAt(i + 2) != ':')) {
+        return NULL_BSSID;
+      }
+
+      packed = (packed << 8) | (high << 4) | low;
+    }
+
+    return packed;
+  }
+
+  private int intern(String value) {
+    if (value == null) {
+      return NULL_STRING;
+    }
+
+    Integer index = stringIndex.get(value);
+
+    if (index == null) {
+      byte[] bytes = value.getBytes(UTF_8);
+      index = strings.size();
+      stringIndex.put(value, index);
+      strings.add(bytes);
+      stringBytes += bytes.length;
+    }
+
+    return index;
+  }
+
+  private void allocate(int capacity) {
+    bssids = new long[capacity];
+    timestamps = new long[capacity];
+    levels = new short[capacity];
+    frequencies = new char[capacity];
+    centerFreq0s = new char[capacity];
+    centerFreq1s = new char[capacity];
+    ssids = new char[capacity];
+    capabilities = new char[capacity];
+    channelWidths = new byte[capacity];
+  }
+
+  private void grow() {
+    int capacity = levels.length * 2;
+
+    long[] oldBssids = bssids;
+    long[] oldTimestamps = timestamps;
+    short[] oldLevels = levels;
+    char[] oldFrequencies = frequencies;
+    char[] oldCenterFreq0s = centerFreq0s;
+    char[] oldCenterFreq1s = centerFreq1s;
+    char[] oldSsids = ssids;
+    char[] oldCapabilities = capabilities;
+    byte[] oldChannelWidths = channelWidths;
+
+    allocate(capacity);
+
+    System.arraycopy(oldBssids, 0, bssids, 0, count);
+    System.arraycopy(oldTimestamps, 0, timestamps, 0, count);
+    System.arraycopy(oldLevels, 0, levels, 0, count);
+    System.arraycopy(oldFrequencies, 0, frequencies, 0, count);
+    System.arraycopy(oldCenterFreq0s, 0, centerFreq0s, 0, count);
+    System.arraycopy(oldCenterFreq1s, 0, centerFreq1s, 0, count);
+    System.arraycopy(oldSsids, 0, ssids, 0, count);
+    System.arraycopy(oldCapabilities, 0, capabilities, 0, count);
+    System.arraycopy(oldChannelWidths, 0, channelWidths, 0, count);
+  }
+}
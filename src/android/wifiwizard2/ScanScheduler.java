@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.wifi.WifiManager;
+import android.os.Build.VERSION;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Coalesces scan requests so that only one radio scan is ever in flight.
+ *
+ * Every scan() caller that arrives while a scan is running waits on that scan, and all of them receive the
+ * results when it completes.  Android 9+ (API 28+) throttles foreground apps to 4 scans every 2 minutes, so
+ * we keep our own budget of scans started, and once it is spent callers are served the freshest results
+ * the OS already has instead of burning a scan that would return SCAN_FAILED.
+ */
+class ScanScheduler {
+
+  private static final String TAG = "WifiWizard2";
+  private static final int API_VERSION = VERSION.SDK_INT;
+
+  static final String SOURCE_SCAN = "scan";
+  static final String SOURCE_CACHED = "cached";
+
+  static final int SCAN_STARTED = 0;
+  static final int SCAN_JOINED = 1;
+  static final int SCAN_THROTTLED = 2;
+  static final int SCAN_FAILED = 3;
+
+  private static final int THROTTLE_MAX_SCANS = 4;
+  private static final long THROTTLE_WINDOW = 120000;
+  private static final int SCAN_TIMEOUT = 10000;
+
+  /**
+   * Called for every waiting caller once results are available
+   */
+  interface ResultHandler {
+    void onScanResults(WifiRequest request, String source);
+  }
+
+  private final Context context;
+  private final WifiManager wifiManager;
+  private final TimerService timerService;
+  private final ResultHandler resultHandler;
+
+  private final Object lock = new Object();
+  private final long[] scanTimes = new long[THROTTLE_MAX_SCANS];
+  private int scanTimesIndex = 0;
+  private ScanSyncContext inFlight;
+
+  ScanScheduler(Context context, WifiManager wifiManager, TimerService timerService, ResultHandler resultHandler) {
+    this.context = context;
+    this.wifiManager = wifiManager;
+    this.timerService = timerService;
+    this.resultHandler = resultHandler;
+
+    for (int i = 0; i < THROTTLE_MAX_SCANS; i++) {
+      scanTimes[i] = Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Scan and send results to the request's callback, joining any scan already in flight
+   */
+  void scan(WifiRequest request) {
+    boolean failed = false;
+
+    synchronized (lock) {
+      if (inFlight != null) {
+        Log.v(TAG, "ScanScheduler: joining scan in flight");
+        inFlight.waiters.add(request);
+        return;
+      }
+
+      if (hasBudget()) {
+        if (beginScan() == SCAN_STARTED) {
+          inFlight.waiters.add(request);
+          return;
+        }
+        failed = true;
+      }
+    }
+
+    if (failed) {
+      request.callbackContext.error("SCAN_FAILED");
+    } else {
+      Log.v(TAG, "ScanScheduler: scan budget spent, serving cached results");
+      resultHandler.onScanResults(request, SOURCE_CACHED);
+    }
+  }
+
+  /**
+   * Start a scan without waiting for results
+   *
+   * @return SCAN_STARTED, SCAN_JOINED (already in flight), SCAN_THROTTLED (budget spent) or SCAN_FAILED
+   */
+  int startScan() {
+    synchronized (lock) {
+      if (inFlight != null) {
+        return SCAN_JOINED;
+      }
+
+      if (!hasBudget()) {
+        return SCAN_THROTTLED;
+      }
+
+      return beginScan();
+    }
+  }
+
+  /**
+   * Register receiver and start radio scan (must hold lock)
+   */
+  private int beginScan() {
+    final ScanSyncContext syncContext = new ScanSyncContext();
+
+    syncContext.receiver = new BroadcastReceiver() {
+      public void onReceive(Context context, Intent intent) {
+        Log.v(TAG, "Entering onReceive");
+
+        // Scan may have been throttled or failed, in which case the OS returns the previous results
+        boolean updated = API_VERSION < 23 || intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, true);
+        finish(syncContext, updated ? SOURCE_SCAN : SOURCE_CACHED, null);
+      }
+    };
+
+    Log.v(TAG, "Registering broadcastReceiver");
+    context.registerReceiver(syncContext.receiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+
+    if (!wifiManager.startScan()) {
+      Log.v(TAG, "Scan failed");
+      unregister(syncContext);
+      return SCAN_FAILED;
+    }
+
+    scanTimes[scanTimesIndex] = SystemClock.elapsedRealtime();
+    scanTimesIndex = (scanTimesIndex + 1) % THROTTLE_MAX_SCANS;
+    inFlight = syncContext;
+
+    Log.v(TAG, "Scheduling scan timeout");
+
+    syncContext.timeout = timerService.schedule(new Runnable() {
+      public void run() {
+        Log.v(TAG, "In timeout, error");
+        finish(syncContext, null, "TIMEOUT_WAITING_FOR_SCAN");
+      }
+    }, SCAN_TIMEOUT);
+
+    Log.v(TAG, "Starting wifi scan");
+    return SCAN_STARTED;
+  }
+
+  /**
+   * Complete scan, sending results (or error) to every waiting caller
+   */
+  private void finish(ScanSyncContext syncContext, String source, String error) {
+    List<WifiRequest> waiters;
+
+    synchronized (lock) {
+      if (syncContext.finished) {
+        Log.v(TAG, "ScanScheduler: already finished");
+        return;
+      }
+      syncContext.finished = true;
+
+      if (inFlight == syncContext) {
+        inFlight = null;
+      }
+
+      waiters = new ArrayList<WifiRequest>(syncContext.waiters);
+      syncContext.waiters.clear();
+    }
+
+    TimerService.cancel(syncContext.timeout);
+    unregister(syncContext);
+
+    Log.v(TAG, "ScanScheduler: scan finished for " + waiters.size() + " waiting callers");
+
+    for (WifiRequest waiter : waiters) {
+      if (error != null) {
+        waiter.callbackContext.error(error);
+      } else {
+        resultHandler.onScanResults(waiter, source);
+      }
+    }
+  }
+
+  /**
+   * Whether starting another scan stays within the OS scan throttle (must hold lock)
+   */
+  private boolean hasBudget() {
+    if (API_VERSION < 28) {
+      return true;
+    }
+
+    long windowStart = SystemClock.elapsedRealtime() - THROTTLE_WINDOW;
+    int scansInWindow = 0;
+
+    for (long scanTime : scanTimes) {
+      if (scanTime > windowStart) {
+        scansInWindow++;
+      }
+    }
+
+    return scansInWindow < THROTTLE_MAX_SCANS;
+  }
+
+  private void unregister(ScanSyncContext syncContext) {
+    try {
+      context.unregisterReceiver(syncContext.receiver);
+    } catch (Exception e) {}
+  }
+
+  /**
+   * Scan in flight, and the callers waiting on it
+   */
+  private static class ScanSyncContext {
+    boolean finished = false;
+    BroadcastReceiver receiver;
+    ScheduledFuture<?> timeout;
+    final List<WifiRequest> waiters = new ArrayList<WifiRequest>();
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RSSI history per BSSID, recorded from scan results
+ *
+ * Each BSSID gets a fixed size ring buffer of (level, timestamp) samples held in primitive arrays.  Entries are
+ * kept in last seen order, so once MAX_NETWORKS is reached (or an AP has not been seen for STALE_AGE) the least
+ * recently seen AP is evicted first.  Statistics are computed on demand from the buffer.
+ */
+class SignalHistory {
+
+  static final int SAMPLES_PER_NETWORK = 32;
+  static final int MAX_NETWORKS = 256;
+  static final long STALE_AGE = 10 * 60 * 1000;
+  static final double DEFAULT_ALPHA = 0.3;
+
+  // Insertion order is kept as last seen order, by re-inserting when a newer sample is recorded
+  private final LinkedHashMap<String, Series> networks = new LinkedHashMap<String, Series>();
+
+  /**
+   * Record a sample, only samples newer than the last one recorded for the BSSID are kept
+   *
+   * Does not evict, call evict() once after recording a batch of scan results.
+   *
+   * @param bssid
+   * @param ssid
+   * @param level RSSI in dBm
+   * @param timestamp when the AP was seen, in milliseconds since boot
+   */
+  synchronized void record(String bssid, String ssid, int level, long timestamp) {
+    if (bssid == null) {
+      return;
+    }
+
+    Series series = networks.get(bssid);
+
+    if (series == null) {
+      series = new Series();
+      series.add(level, timestamp);
+      networks.put(bssid, series);
+    } else if (timestamp > series.lastTimestamp()) {
+      series.add(level, timestamp);
+      // Move to the tail, the AP was seen again
+      networks.remove(bssid);
+      networks.put(bssid, series);
+    }
+
+    series.ssid = ssid;
+  }
+
+  /**
+   * Statistics for the passed BSSIDs (null for every BSSID in history)
+   *
+   * @param bssids
+   * @param alpha EWMA smoothing factor, between 0 (smoothest) and 1 (no smoothing)
+   * @param now current time, in milliseconds since boot
+   */
+  synchronized List<Stats> query(List<String> bssids, double alpha, long now) {
+    evict(now);
+
+    List<Stats> results = new ArrayList<Stats>();
+
+    if (bssids == null) {
+      for (Map.Entry<String, Series> entry : networks.entrySet()) {
+        results.add(entry.getValue().stats(entry.getKey(), alpha));
+      }
+    } else {
+      for (String bssid : bssids) {
+        Series series = networks.get(bssid);
+        if (series != null) {
+          results.add(series.stats(bssid, alpha));
+        }
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Drop least recently seen networks over MAX_NETWORKS, and any not seen for STALE_AGE
+   *
+   * @param now current time, in milliseconds since boot
+   */
+  synchronized void evict(long now) {
+    // Scan results can carry timestamps older than ones already recorded for other APs, so staleness is checked
+    // for every entry rather than assuming last seen order
+    Iterator<Series> iterator = networks.values().iterator();
+    while (iterator.hasNext()) {
+      if (now - iterator.next().lastTimestamp() > STALE_AGE) {
+        iterator.remove();
+      }
+    }
+
+    iterator = networks.values().iterator();
+    int size = networks.size();
+    while (size > MAX_NETWORKS && iterator.hasNext()) {
+      iterator.next();
+      iterator.remove();
+      size--;
+    }
+  }
+
+  /**
+   * Statistics for a single BSSID
+   */
+  static class Stats {
+    String bssid;
+    String ssid;
+    int samples;
+    int last;
+    int min;
+    int max;
+    double mean;
+    double variance;
+    double ewma;
+    // dBm per second, least squares slope over the buffered samples
+    double trend;
+    long lastSeen;
+    int[] levels;
+  }
+
+  /**
+   * Ring buffer of samples for a single BSSID
+   */
+  private static class Series {
+    final int[] levels = new int[SAMPLES_PER_NETWORK];
+    final long[] timestamps = new long[SAMPLES_PER_NETWORK];
+    int head = 0;
+    int size = 0;
+    String ssid;
+
+    void add(int level, long timestamp) {
+      levels[head] = level;
+      timestamps[head] = timestamp;
+      head = (head + 1) % SAMPLES_PER_NETWORK;
+      if (size < SAMPLES_PER_NETWORK) {
+        size++;
+      }
+    }
+
+    long lastTimestamp() {
+      return timestamps[(head - 1 + SAMPLES_PER_NETWORK) % SAMPLES_PER_NETWORK];
+    }
+
+    Stats stats(String bssid, double alpha) {
+      Stats stats = new Stats();
+      stats.bssid = bssid;
+      stats.ssid = ssid;
+      stats.samples = size;
+      stats.levels = new int[size];
+      stats.lastSeen = lastTimestamp();
+
+      int start = (head - size + SAMPLES_PER_NETWORK) % SAMPLES_PER_NETWORK;
+      long firstTimestamp = timestamps[start];
+
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      double sum = 0;
+      double ewma = 0;
+      double sumT = 0, sumTT = 0, sumTL = 0;
+
+      // Oldest to newest
+      for (int i = 0; i < size; i++) {
+        int index = (start + i) % SAMPLES_PER_NETWORK;
+        int level = levels[index];
+        double t = (timestamps[index] - firstTimestamp) / 1000.0;
+
+        stats.levels[i] = level;
+        min = Math.min(min, level);
+        max = Math.max(max, level);
+        sum += level;
+        ewma = i == 0 ? level : alpha * level + (1 - alpha) * ewma;
+
+        sumT += t;
+        sumTT += t * t;
+        sumTL += t * level;
+      }
+
+      stats.min = min;
+      stats.max = max;
+      stats.last = stats.levels[size - 1];
+      stats.mean = sum / size;
+      stats.ewma = ewma;
+
+      double sumSquares = 0;
+      for (int level : stats.levels) {
+        sumSquares += (level - stats.mean) * (level - stats.mean);
+      }
+      stats.variance = sumSquares / size;
+
+      double denominator = size * sumTT - sumT * sumT;
+      stats.trend = size > 1 && denominator != 0 ? (size * sumTL - sumT * sum) / denominator : 0;
+
+      return stats;
+    }
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP download and upload throughput measurement
+ *
+ * Transfers stream through two fixed buffers owned by the meter (one read into, one of random bytes written
+ * from), and per-interval samples go into preallocated arrays, so a measurement allocates next to nothing however
+ * many bytes it moves.  Measurements are synchronized, one runs at a time.  Connections come from a
+ * HttpProbe.ConnectionFactory, so a transfer can be sent over a specific Network, or to a local test server.
+ *
+ * A read or write blocked on the network is only checked against the duration once it returns.  Reads have a
+ * timeout, capped at the duration; writes have none and only return once the socket buffer has drained a lot
+ * (seconds on a slow link), so a watchdog thread disconnects an upload at its deadline.
+ */
+class ThroughputMeter {
+
+  static final String DIRECTION_DOWNLOAD = "download";
+  static final String DIRECTION_UPLOAD = "upload";
+  static final String DIRECTION_BOTH = "both";
+
+  static final long DEFAULT_BYTES = 10 * 1000 * 1000;
+  static final long MAX_BYTES = 1000 * 1000 * 1000;
+  static final int DEFAULT_TIMEOUT = 10000;
+  static final int DEFAULT_DURATION = 15000;
+  static final int MAX_DURATION = 60000;
+  static final int DEFAULT_SAMPLE_INTERVAL = 250;
+  static final int MAX_SAMPLES = 600;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final byte[] readBuffer = new byte[BUFFER_SIZE];
+  private final byte[] writeBuffer = new byte[BUFFER_SIZE];
+
+  // Guarded by this, filled by the running measurement
+  private final double[] sampleTimes = new double[MAX_SAMPLES];
+  private final long[] sampleBytes = new long[MAX_SAMPLES];
+  private int sampleCount;
+  private long sampleInterval;
+  private long nextSample;
+  private long bytesAtLastSample;
+
+  private final ScheduledThreadPoolExecutor watchdog;
+  // Set by the watchdog when it disconnected the running upload
+  private volatile boolean deadlineReached;
+
+  ThroughputMeter() {
+    // Not compressible by anything between the device and the server
+    new Random().nextBytes(writeBuffer);
+
+    watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "WifiWizard2-throughput");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    watchdog.setKeepAliveTime(30, TimeUnit.SECONDS);
+    watchdog.allowCoreThreadTimeOut(true);
+    watchdog.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * GET url and read up to bytes of the response body (until the end of the body when bytes is 0)
+   *
+   * @param timeout connect and read timeout, in milliseconds
+   * @param duration stop reading after this many milliseconds, the result is then not complete
+   * @param interval sample interval, in milliseconds
+   */
+  synchronized Result download(HttpProbe.ConnectionFactory factory, URL url, long bytes, int timeout, int duration,
+      int interval) {
+    Result result = new Result(DIRECTION_DOWNLOAD, url);
+    HttpURLConnection connection = null;
+    long started = System.nanoTime();
+    long deadline = started + duration * 1000000L;
+    long transferStarted = 0;
+
+    try {
+      connection = factory.open(url);
+      connection.setInstanceFollowRedirects(true);
+      connection.setUseCaches(false);
+      connection.setConnectTimeout(timeout);
+      // A read stalled past the deadline times out, reported as DURATION_EXCEEDED
+      connection.setReadTimeout(Math.min(timeout, duration));
+      // Compressed bodies would count fewer bytes than were actually read
+      connection.setRequestProperty("Accept-Encoding", "identity");
+
+      result.status = connection.getResponseCode();
+      result.ttfb = elapsed(started);
+
+      if (result.status < 200 || result.status > 299) {
+        result.error = "HTTP_ERROR";
+        return result;
+      }
+
+      InputStream stream = connection.getInputStream();
+      long limit = bytes > 0 ? bytes : Long.MAX_VALUE;
+      transferStarted = System.nanoTime();
+
+      startSampling(transferStarted, interval);
+
+      while (result.bytes < limit) {
+        int read = stream.read(readBuffer, 0, (int) Math.min(readBuffer.length, limit - result.bytes));
+
+        if (read < 0) {
+          break;
+        }
+
+        result.bytes += read;
+        long now = System.nanoTime();
+        sample(now, result.bytes);
+
+        if (now >= deadline) {
+          result.error = "DURATION_EXCEEDED";
+          break;
+        }
+      }
+
+      // A body shorter than bytes still measures the link, it is just less data
+      result.complete = result.error == null;
+      finish(result, transferStarted);
+    } catch (SocketTimeoutException e) {
+      if (System.nanoTime() >= deadline) {
+        stopped(result, transferStarted);
+      } else {
+        result.error = "TIMEOUT";
+      }
+    } catch (IOException e) {
+      result.error = e.getMessage() == null ? "ERROR" : e.getMessage();
+    } catch (RuntimeException e) {
+      // Android's HttpURLConnection throws for some network errors (e.g. bound network gone)
+      result.error = e.toString();
+    } finally {
+      if (connection != null) {
+        // Any unread body is dropped with the connection, not read to the end
+        connection.disconnect();
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * POST bytes to url and wait for the response
+   *
+   * The transfer time covers writing the body, the response (and so ttfb) comes once the server has read it.
+   *
+   * @param timeout connect and read timeout, in milliseconds
+   * @param duration stop writing after this many milliseconds, the result is then not complete
+   * @param interval sample interval, in milliseconds
+   */
+  synchronized Result upload(HttpProbe.ConnectionFactory factory, URL url, long bytes, int timeout, int duration,
+      int interval) {
+    Result result = new Result(DIRECTION_UPLOAD, url);
+    HttpURLConnection connection = null;
+    ScheduledFuture<?> stop = null;
+    long started = System.nanoTime();
+    long transferStarted = 0;
+
+    try {
+      connection = factory.open(url);
+      stop = disconnectAfter(connection, duration);
+      connection.setInstanceFollowRedirects(false);
+      connection.setUseCaches(false);
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/octet-stream");
+      // Streamed, HttpURLConnection would otherwise buffer the whole body in memory first
+      connection.setFixedLengthStreamingMode(bytes);
+
+      OutputStream stream = connection.getOutputStream();
+      transferStarted = System.nanoTime();
+      long deadline = started + duration * 1000000L;
+
+      startSampling(transferStarted, interval);
+
+      while (result.bytes < bytes) {
+        int length = (int) Math.min(writeBuffer.length, bytes - result.bytes);
+        stream.write(writeBuffer, 0, length);
+
+        result.bytes += length;
+        long now = System.nanoTime();
+        sample(now, result.bytes);
+
+        if (now >= deadline && result.bytes < bytes) {
+          // The body can't be cut short, the connection is dropped instead
+          result.error = "DURATION_EXCEEDED";
+          finish(result, transferStarted);
+          return result;
+        }
+      }
+
+      stream.close();
+      finish(result, transferStarted);
+
+      // The body is sent, waiting for the response is bounded by the read timeout
+      stop.cancel(false);
+
+      result.status = connection.getResponseCode();
+      result.ttfb = elapsed(started);
+
+      if (result.status < 200 || result.status > 299) {
+        result.error = "HTTP_ERROR";
+      }
+      result.complete = result.error == null;
+    } catch (SocketTimeoutException e) {
+      result.error = "TIMEOUT";
+    } catch (IOException e) {
+      failed(result, e, transferStarted);
+    } catch (RuntimeException e) {
+      failed(result, e, transferStarted);
+    } finally {
+      if (stop != null) {
+        stop.cancel(false);
+      }
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Disconnect connection once duration milliseconds have passed, unless cancelled first
+   */
+  private ScheduledFuture<?> disconnectAfter(final HttpURLConnection connection, int duration) {
+    deadlineReached = false;
+
+    return watchdog.schedule(new Runnable() {
+      public void run() {
+        deadlineReached = true;
+        connection.disconnect();
+      }
+    }, duration, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Set the error of an upload that threw, one stopped by the watchdog still measures what was transferred
+   *
+   * @param transferStarted when the body transfer started, 0 if it did not
+   */
+  private void failed(Result result, Exception e, long transferStarted) {
+    if (deadlineReached) {
+      stopped(result, transferStarted);
+    } else if (e instanceof IOException) {
+      result.error = e.getMessage() == null ? "ERROR" : e.getMessage();
+    } else {
+      result.error = e.toString();
+    }
+  }
+
+  /**
+   * Transfer stopped at its deadline while blocked, what was transferred until then is still measured
+   */
+  private void stopped(Result result, long transferStarted) {
+    result.error = "DURATION_EXCEEDED";
+    if (transferStarted != 0) {
+      finish(result, transferStarted);
+    }
+  }
+
+  private void startSampling(long now, int interval) {
+    sampleCount = 0;
+    bytesAtLastSample = 0;
+    sampleInterval = Math.max(1, interval) * 1000000L;
+    nextSample = now + sampleInterval;
+  }
+
+  /**
+   * Record a sample for every interval boundary passed since the last one
+   */
+  private void sample(long now, long bytes) {
+    if (now < nextSample || sampleCount >= MAX_SAMPLES) {
+      return;
+    }
+
+    sampleTimes[sampleCount] = (nextSample - sampleInterval) / 1000000.0;
+    sampleBytes[sampleCount] = bytes - bytesAtLastSample;
+    sampleCount++;
+
+    bytesAtLastSample = bytes;
+    // A stall longer than the interval counts as a single, longer sample
+    nextSample = now + sampleInterval;
+  }
+
+  /**
+   * Set the transfer time, rate and samples of result
+   */
+  private void finish(Result result, long transferStarted) {
+    long now = System.nanoTime();
+    result.duration = round((now - transferStarted) / 1000000.0);
+    result.mbps = mbps(result.bytes, result.duration);
+
+    // Partial last interval
+    if (result.bytes > bytesAtLastSample && sampleCount < MAX_SAMPLES) {
+      sampleTimes[sampleCount] = (nextSample - sampleInterval) / 1000000.0;
+      sampleBytes[sampleCount] = result.bytes - bytesAtLastSample;
+      sampleCount++;
+    }
+
+    double origin = transferStarted / 1000000.0;
+    double[] samples = new double[sampleCount * 3];
+    for (int i = 0; i < sampleCount; i++) {
+      double start = sampleTimes[i] - origin;
+      double end = i + 1 < sampleCount ? sampleTimes[i + 1] - origin : result.duration;
+      samples[i * 3] = round(end);
+      samples[i * 3 + 1] = sampleBytes[i];
+      samples[i * 3 + 2] = mbps(sampleBytes[i], end - start);
+    }
+    result.samples = samples;
+  }
+
+  private static double mbps(long bytes, double milliseconds) {
+    return milliseconds <= 0 ? 0 : round(bytes * 8 / (milliseconds * 1000));
+  }
+
+  private static double elapsed(long startedNanos) {
+    // Milliseconds, to 0.01 ms
+    return Math.round((System.nanoTime() - startedNanos) / 10000.0) / 100.0;
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 100) / 100.0;
+  }
+
+  /**
+   * Transfer outcome
+   */
+  static final class Result {
+    final String direction;
+    final URL url;
+    int status = -1;
+    long bytes;
+    boolean complete;
+    // Milliseconds until the response headers, -1 without a response
+    double ttfb = -1;
+    // Milliseconds spent transferring the body
+    double duration;
+    double mbps;
+    // (end, bytes, mbps) per interval, end in milliseconds since the transfer started
+    double[] samples = new double[0];
+    String error;
+
+    Result(String direction, URL url) {
+      this.direction = direction;
+      this.url = url;
+    }
+
+    /**
+     * Result format: {direction, url, status, complete, bytes, ttfb, duration, mbps,
+     * samples: [{time, bytes, mbps}], error}
+     */
+    JSONObject toJSON() throws JSONException {
+      JSONArray intervals = new JSONArray();
+      for (int i = 0; i + 2 < samples.length; i += 3) {
+        JSONObject sample = new JSONObject();
+        sample.put("time", samples[i]);
+        sample.put("bytes", (long) samples[i + 1]);
+        sample.put("mbps", samples[i + 2]);
+        intervals.put(sample);
+      }
+
+      JSONObject result = new JSONObject();
+      result.put("direction", direction);
+      result.put("url", url.toString());
+      result.put("status", status > 0 ? status : JSONObject.NULL);
+      result.put("complete", complete);
+      result.put("bytes", bytes);
+      result.put("ttfb", ttfb < 0 ? JSONObject.NULL : ttfb);
+      result.put("duration", duration);
+      result.put("mbps", mbps);
+      result.put("samples", intervals);
+      if (error != null) {
+        result.put("error", error);
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return direction + " " + url + " " + bytes + " bytes " + mbps + " Mbps" + (error == null ? "" : " " + error);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Plugin wide timer for timeouts and periodic work
+ *
+ * A single scheduler thread runs every timeout, so waiting on a scan, connection or probe no longer blocks a
+ * thread for the full timeout.  Tasks run on the timer thread and should only hand off results (send a
+ * callback, submit work elsewhere), never block.
+ */
+class TimerService {
+
+  private static final String TAG = "WifiWizard2";
+
+  private final ScheduledThreadPoolExecutor executor;
+
+  TimerService() {
+    executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "WifiWizard2-timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    // Cancelled timeouts are dropped from the queue right away instead of when their delay expires
+    executor.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Run task once after delay milliseconds
+   *
+   * @return future to cancel() the timeout with
+   */
+  ScheduledFuture<?> schedule(Runnable task, long delay) {
+    return executor.schedule(guard(task), delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Run task every period milliseconds, after an initial delay
+   *
+   * @return future to cancel() the task with
+   */
+  ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long delay, long period) {
+    return executor.scheduleAtFixedRate(guard(task), delay, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Cancel a scheduled task (null safe)
+   */
+  static void cancel(ScheduledFuture<?> future) {
+    if (future != null) {
+      future.cancel(false);
+    }
+  }
+
+  /**
+   * Stop timer thread, pending tasks are dropped
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Exceptions would otherwise silently cancel periodic tasks
+   */
+  private static Runnable guard(final Runnable task) {
+    return new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        } catch (Exception e) {
+          Log.e(TAG, "TimerService: task failed", e);
+        }
+      }
+    };
+  }
+}
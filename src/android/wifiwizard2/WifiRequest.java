@@ -0,0 +1,49 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import org.apache.cordova.CallbackContext;
+import org.json.JSONArray;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single call from JavaScript: action, arguments and the callback to answer it on
+ *
+ * Everything a handler needs is carried on the request, so concurrent calls (and permission prompts replaying
+ * a call once granted) can never answer each other's callbacks.
+ */
+final class WifiRequest {
+
+  private static final AtomicInteger nextId = new AtomicInteger(1);
+
+  // Unique per plugin instance, also used as the permission request code
+  final int id;
+  final String action;
+  final JSONArray args;
+  final CallbackContext callbackContext;
+
+  WifiRequest(String action, JSONArray args, CallbackContext callbackContext) {
+    this.id = nextId.getAndIncrement() & 0x7fffffff;
+    this.action = action;
+    this.args = args;
+    this.callbackContext = callbackContext;
+  }
+
+  @Override
+  public String toString() {
+    return action + "#" + id;
+  }
+}
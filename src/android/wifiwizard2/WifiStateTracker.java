@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * WiFi enabled state, kept up to date from WIFI_STATE_CHANGED_ACTION broadcasts
+ *
+ * Checking whether WiFi is enabled is a field read, and callers waiting for WiFi to be enabled are woken by the
+ * WIFI_STATE_ENABLED broadcast instead of polling.
+ */
+class WifiStateTracker extends BroadcastReceiver {
+
+  private static final String TAG = "WifiWizard2";
+
+  private final WifiManager wifiManager;
+
+  private int state;
+
+  WifiStateTracker(WifiManager wifiManager) {
+    this.wifiManager = wifiManager;
+    this.state = wifiManager.getWifiState();
+  }
+
+  /**
+   * Start listening for WiFi state changes
+   */
+  void register(Context context) {
+    // Sticky broadcast, the current state is delivered right away
+    context.registerReceiver(this, new IntentFilter(WifiManager.WIFI_STATE_CHANGED_ACTION));
+  }
+
+  /**
+   * Stop listening for WiFi state changes, waiting callers are woken
+   */
+  void unregister(Context context) {
+    try {
+      context.unregisterReceiver(this);
+    } catch (Exception e) {}
+
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  synchronized boolean isEnabled() {
+    return state == WifiManager.WIFI_STATE_ENABLED;
+  }
+
+  /**
+   * Whether WiFi is being enabled (setWifiEnabled(true) was already called)
+   */
+  synchronized boolean isEnabling() {
+    return state == WifiManager.WIFI_STATE_ENABLING;
+  }
+
+  /**
+   * Wait for WiFi to be enabled
+   *
+   * @return true if WiFi is enabled, false if it was not enabled within timeoutMs
+   */
+  synchronized boolean awaitEnabled(long timeoutMs) throws InterruptedException {
+    long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+    long remaining = timeoutMs;
+
+    while (state != WifiManager.WIFI_STATE_ENABLED && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - SystemClock.elapsedRealtime();
+    }
+
+    if (state != WifiManager.WIFI_STATE_ENABLED && wifiManager.isWifiEnabled()) {
+      // Broadcast not delivered (yet), trust WifiManager
+      state = WifiManager.WIFI_STATE_ENABLED;
+    }
+
+    return state == WifiManager.WIFI_STATE_ENABLED;
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    if (!WifiManager.WIFI_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+      return;
+    }
+
+    int newState = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_UNKNOWN);
+
+    synchronized (this) {
+      if (newState != state) {
+        Log.d(TAG, "WifiStateTracker: WiFi state " + state + " -> " + newState);
+      }
+      state = newState;
+      notifyAll();
+    }
+  }
+}
@@ -16,9 +16,16 @@ package wifiwizard2;
 
 import org.apache.cordova.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Future; 
-import java.lang.InterruptedException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -33,25 +40,26 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
-import android.net.DhcpInfo;
 
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiConfiguration;
-import android.net.wifi.WifiEnterpriseConfig;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiNetworkSpecifier;
+import android.net.wifi.WifiNetworkSuggestion;
 import android.net.ConnectivityManager;
 import android.net.ConnectivityManager.NetworkCallback;
-import android.net.NetworkSpecifier;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.util.Log;
 import android.os.Build.VERSION;
-import android.os.PatternMatcher;
+import android.os.SystemClock;
 
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Socket;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.InetAddress;
 import java.net.Inet4Address;
@@ -59,7 +67,6 @@ import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.HttpURLConnection;
 
-import java.net.UnknownHostException;
 
 public class WifiWizard2 extends CordovaPlugin {
 
@@ -95,23 +102,67 @@ public class WifiWizard2 extends CordovaPlugin {
   private static final String RESET_BIND_ALL = "resetBindAll";
   private static final String SET_BIND_ALL = "setBindAll";
   private static final String GET_WIFI_IP_INFO = "getWifiIPInfo";
+  private static final String GET_SIGNAL_HISTORY = "getSignalHistory";
+  private static final String GET_CHANNEL_ANALYSIS = "getChannelAnalysis";
+  private static final String ADD_MANY = "addMany";
+  private static final String REMOVE_MANY = "removeMany";
+  private static final String ENABLE_MANY = "enableMany";
+  private static final String PIPELINE = "pipeline";
+  private static final String GET_NETWORK_STATUS = "getNetworkStatus";
+  private static final String SUBSCRIBE = "subscribe";
+  private static final String UNSUBSCRIBE = "unsubscribe";
+  private static final String PROBE = "probe";
+  private static final String CHECK_INTERNET = "checkInternet";
+  private static final String START_LINK_MONITOR = "startLinkMonitor";
+  private static final String STOP_LINK_MONITOR = "stopLinkMonitor";
+  private static final String GET_LINK_QUALITY = "getLinkQuality";
+  private static final String MEASURE_THROUGHPUT = "measureThroughput";
+  private static final String TYPE_HTTP = "http";
+  // config.xml preference for the captive portal style probe URLs, comma separated (must answer 204 No Content)
+  private static final String PREF_PROBE_URL = "WifiWizard2ProbeUrl";
+  // config.xml preference for the endpoints isConnectedToInternet races, comma separated
+  private static final String PREF_INTERNET_ENDPOINTS = "WifiWizard2InternetEndpoints";
+  // config.xml preference for how long reachability results are reused, in milliseconds
+  private static final String PREF_REACHABILITY_TTL = "WifiWizard2ReachabilityTTL";
 
 
   
-  private static final int SCAN_RESULTS_CODE = 0; // Permissions request code for getScanResults()
-  private static final int SCAN_CODE = 1; // Permissions request code for scan()
-  private static final int LOCATION_REQUEST_CODE = 2; // Permissions request code
-  private static final int WIFI_SERVICE_INFO_CODE = 3;
   private static final String ACCESS_FINE_LOCATION = android.Manifest.permission.ACCESS_FINE_LOCATION;
 
-  private static int LAST_NET_ID = -1;
-  // This is for when SSID or BSSID is requested but permissions have not been granted for location
-  // we store whether or not BSSID was requested, to recall the getWifiServiceInfo fn after permissions are granted
-  private static boolean bssidRequested = false;
+  private static final int WIFI_ENABLE_TIMEOUT = 10000;
+  private static final String DEFAULT_PROBE_URLS = HttpProbe.DEFAULT_URL + ",http://cp.cloudflare.com/generate_204";
 
   private WifiManager wifiManager;
-  private CallbackContext callbackContext;
-  private JSONArray passedData;
+  private WifiStateTracker wifiState;
+  private TimerService timerService;
+  private ConfiguredNetworkIndex configuredNetworks;
+  private ConnectionTracker connectionTracker;
+  private ConnectionCache connectionCache;
+  private EventHub eventHub;
+  private final ProbeEngine probeEngine = new ProbeEngine(null);
+  private final HttpProbe httpProbe = new HttpProbe(null);
+  private final ThroughputMeter throughputMeter = new ThroughputMeter();
+  // A measurement holds its background thread for up to two durations, a second one is rejected
+  private final AtomicBoolean measuringThroughput = new AtomicBoolean();
+  private URL probeUrl;
+  private InternetCheck internetCheck;
+  // Raced by isConnectedToInternet (TCP) and canConnectToInternet (HTTP)
+  private List<InternetCheck.Endpoint> internetEndpoints;
+  private List<InternetCheck.Endpoint> httpEndpoints;
+  private ReachabilityCache reachabilityCache;
+  private LinkQualityMonitor linkMonitor;
+  private ScanScheduler scanScheduler;
+  private final ScanDeltaTracker scanDeltas = new ScanDeltaTracker();
+  private final ScanResultEncoder scanEncoder = new ScanResultEncoder(64);
+  private final SignalHistory signalHistory = new SignalHistory();
+  private final ChannelAnalyzer channelAnalyzer = new ChannelAnalyzer();
+  // Requests waiting on a location permission prompt, keyed by request ID (used as the request code)
+  private final Map<Integer, WifiRequest> permissionRequests = new ConcurrentHashMap<Integer, WifiRequest>();
+  private final Map<String, ActionSpec> actions = new HashMap<String, ActionSpec>();
+  private PluginExecutor pluginExecutor;
+  private MutationQueue mutationQueue;
+  // Suggestions added by addMany on API 29+, keyed by SSID (only used on the mutation queue)
+  private NetworkSuggestionIndex networkSuggestions;
 
   private ConnectivityManager connectivityManager;
   private ConnectivityManager.NetworkCallback networkCallback;
@@ -126,6 +177,17 @@ public class WifiWizard2 extends CordovaPlugin {
     NETWORK_STATE_CHANGED_FILTER.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
   }
 
+  // Actions a pipeline can run: those that answer once with their final result.  Not pipeline itself, actions
+  // answering over a kept callback (or ending one), or requestFineLocation which waits on a permission dialog
+  private static final Set<String> PIPELINE_ACTIONS = new HashSet<String>(Arrays.asList(
+      IS_WIFI_ENABLED, SET_WIFI_ENABLED, GET_NETWORK_STATUS, GET_LINK_QUALITY, GET_SIGNAL_HISTORY,
+      GET_WIFI_ROUTER_IP_ADDRESS, GET_WIFI_IP_ADDRESS, GET_WIFI_IP_INFO, ADD_NETWORK, ADD_MANY, REMOVE_MANY, ENABLE_MANY,
+      IS_CONNECTED_TO_INTERNET, CAN_CONNECT_TO_INTERNET, PROBE, CHECK_INTERNET, MEASURE_THROUGHPUT, CAN_PING_WIFI_ROUTER,
+      CAN_CONNECT_TO_ROUTER, ENABLE_NETWORK, DISABLE_NETWORK, GET_SSID_NET_ID, REASSOCIATE, RECONNECT, SCAN,
+      REMOVE_NETWORK, CONNECT_NETWORK, DISCONNECT_NETWORK, LIST_NETWORKS, START_SCAN, GET_SCAN_RESULTS,
+      GET_CHANNEL_ANALYSIS, DISCONNECT, GET_CONNECTED_SSID, GET_CONNECTED_BSSID, GET_CONNECTED_NETWORKID,
+      RESET_BIND_ALL, SET_BIND_ALL));
+
   /**
    * WEP has two kinds of password, a hex value that specifies the key or a character string used to
    * generate the real hex. This checks what kind of password has been supplied. The checks
@@ -155,117 +217,106 @@ public class WifiWizard2 extends CordovaPlugin {
     super.initialize(cordova, webView);
     this.wifiManager = (WifiManager) cordova.getActivity().getApplicationContext().getSystemService(Context.WIFI_SERVICE);
     this.connectivityManager = (ConnectivityManager) cordova.getActivity().getApplicationContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-  }
 
-  @Override
-  public boolean execute(String action, JSONArray data, CallbackContext callbackContext)
-      throws JSONException {
+    this.internetCheck = new InternetCheck();
+    this.internetEndpoints = endpointsPreference(PREF_INTERNET_ENDPOINTS, InternetCheck.DEFAULT_ENDPOINTS);
+    this.httpEndpoints = endpointsPreference(PREF_PROBE_URL, DEFAULT_PROBE_URLS);
+    this.probeUrl = httpEndpoints.get(0).url;
 
-    this.callbackContext = callbackContext;
-    this.passedData = data;
+    this.reachabilityCache = new ReachabilityCache(
+        preferences.getInteger(PREF_REACHABILITY_TTL, ReachabilityCache.DEFAULT_TTL));
+    this.reachabilityCache.register(cordova.getActivity().getApplicationContext());
 
-    // Actions that do not require WiFi to be enabled
-    if (action.equals(IS_WIFI_ENABLED)) {
-      this.isWifiEnabled(callbackContext);
-      return true;
-    } else if (action.equals(SET_WIFI_ENABLED)) {
-      this.setWifiEnabled(callbackContext, data);
-      return true;
-    } else if (action.equals(REQUEST_FINE_LOCATION)) {
-      this.requestLocationPermission(LOCATION_REQUEST_CODE);
-      return true;
-    } else if (action.equals(GET_WIFI_ROUTER_IP_ADDRESS)) {
+    this.timerService = new TimerService();
+    this.mutationQueue = new MutationQueue(new Runnable() {
+      public void run() {
+        persistConfiguration();
+      }
+    });
+    this.pluginExecutor = new PluginExecutor(mutationQueue);
+    registerActions();
 
-      String ip = getWiFiRouterIP();
+    this.wifiState = new WifiStateTracker(wifiManager);
+    this.wifiState.register(cordova.getActivity().getApplicationContext());
 
-      if ( ip == null || ip.equals("0.0.0.0")) {
-        callbackContext.error("NO_VALID_ROUTER_IP_FOUND");
-        return true;
-      } else {
-        callbackContext.success(ip);
-        return true;
-      }
+    this.configuredNetworks = new ConfiguredNetworkIndex(wifiManager);
+    this.networkSuggestions = new NetworkSuggestionIndex(cordova.getActivity().getApplicationContext(), wifiManager);
+    this.configuredNetworks.register(cordova.getActivity().getApplicationContext());
 
-    } else if (action.equals(GET_WIFI_IP_ADDRESS) || action.equals(GET_WIFI_IP_INFO)) {
-      String[] ipInfo = getWiFiIPAddress();
-      String ip = ipInfo[0];
-      String subnet = ipInfo[1];
-      if (ip == null || ip.equals("0.0.0.0")) {
-        callbackContext.error("NO_VALID_IP_IDENTIFIED");
-        return true;
-      }
+    this.connectionCache = new ConnectionCache(wifiManager, connectivityManager);
+    this.connectionCache.register(cordova.getActivity().getApplicationContext());
 
-      // Return only IP address
-      if( action.equals( GET_WIFI_IP_ADDRESS ) ){
-        callbackContext.success(ip);
-        return true;
+    this.eventHub = new EventHub(cordova.getActivity().getApplicationContext(), wifiManager, connectivityManager,
+        timerService);
+
+    this.linkMonitor = new LinkQualityMonitor(timerService, probeEngine, new LinkQualityMonitor.GatewaySource() {
+      public String getGateway() {
+        return getWiFiRouterIP();
       }
+    });
 
-      // Return Wifi IP Info (subnet and IP as JSON object)
-      JSONObject result = new JSONObject();
+    this.connectionTracker = new ConnectionTracker(wifiManager, connectivityManager, timerService);
+    this.connectionTracker.register(cordova.getActivity().getApplicationContext());
 
-      result.put("ip", ip);
-      result.put("subnet", subnet);
+    this.scanScheduler = new ScanScheduler(cordova.getActivity().getApplicationContext(), wifiManager, timerService,
+        new ScanScheduler.ResultHandler() {
+          public void onScanResults(WifiRequest request, String source) {
+            getScanResults(request, source);
+          }
+        });
+  }
 
-      callbackContext.success(result);
-      return true;
-    }
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    this.wifiState.unregister(cordova.getActivity().getApplicationContext());
+    this.configuredNetworks.unregister(cordova.getActivity().getApplicationContext());
+    this.connectionTracker.unregister(cordova.getActivity().getApplicationContext());
+    this.connectionCache.unregister(cordova.getActivity().getApplicationContext());
+    this.eventHub.clear();
+    this.reachabilityCache.unregister(cordova.getActivity().getApplicationContext());
+    this.internetCheck.shutdown();
+    this.linkMonitor.shutdown();
+    this.timerService.shutdown();
+    this.pluginExecutor.shutdown();
+  }
 
-    boolean wifiIsEnabled = verifyWifiEnabled();
-    if (!wifiIsEnabled) {
-      callbackContext.error("WIFI_NOT_ENABLED");
-      return true; // Even though enable wifi failed, we still return true and handle error in callback
-    }
+  @Override
+  public void onReset() {
+    super.onReset();
+    // Subscriber callbacks belong to the page that was unloaded
+    this.eventHub.clear();
+    this.linkMonitor.clear();
+  }
 
-    // Actions that DO require WiFi to be enabled
-    if (action.equals(ADD_NETWORK)) {
-      this.add(callbackContext, data);
-    } else if (action.equals(IS_CONNECTED_TO_INTERNET)) {
-      this.canConnectToInternet(callbackContext, true);
-    } else if (action.equals(CAN_CONNECT_TO_INTERNET)) {
-      this.canConnectToInternet(callbackContext, false);
-    } else if (action.equals(CAN_PING_WIFI_ROUTER)) {
-      this.canConnectToRouter(callbackContext, true);
-    } else if (action.equals(CAN_CONNECT_TO_ROUTER)) {
-      this.canConnectToRouter(callbackContext, false);
-    } else if (action.equals(ENABLE_NETWORK)) {
-      this.enable(callbackContext, data);
-    } else if (action.equals(DISABLE_NETWORK)) {
-      this.disable(callbackContext, data);
-    } else if (action.equals(GET_SSID_NET_ID)) {
-      this.getSSIDNetworkID(callbackContext, data);
-    } else if (action.equals(REASSOCIATE)) {
-      this.reassociate(callbackContext);
-    } else if (action.equals(RECONNECT)) {
-      this.reconnect(callbackContext);
-    } else if (action.equals(SCAN)) {
-      this.scan(callbackContext, data);
-    } else if (action.equals(REMOVE_NETWORK)) {
-      this.remove(callbackContext, data);
-    } else if (action.equals(CONNECT_NETWORK)) {
-      this.connect(callbackContext, data);
-    } else if (action.equals(DISCONNECT_NETWORK)) {
-      this.disconnectNetwork(callbackContext, data);
-    } else if (action.equals(LIST_NETWORKS)) {
-      this.listNetworks(callbackContext);
-    } else if (action.equals(START_SCAN)) {
-      this.startScan(callbackContext);
-    } else if (action.equals(GET_SCAN_RESULTS)) {
-      this.getScanResults(callbackContext, data);
-    } else if (action.equals(DISCONNECT)) {
-      this.disconnect(callbackContext);
-    } else if (action.equals(GET_CONNECTED_SSID)) {
-      this.getConnectedSSID(callbackContext);
-    } else if (action.equals(GET_CONNECTED_BSSID)) {
-      this.getConnectedBSSID(callbackContext);
-    } else if (action.equals(GET_CONNECTED_NETWORKID)) {
-      this.getConnectedNetworkID(callbackContext);
-    } else if (action.equals(RESET_BIND_ALL)) {
-      this.resetBindAll(callbackContext);
-    } else if (action.equals(SET_BIND_ALL)) {
-      this.setBindAll(callbackContext);
-    } else {
-      callbackContext.error("Incorrect action parameter: " + action);
+  @Override
+  public void onPause(boolean multitasking) {
+    super.onPause(multitasking);
+    this.linkMonitor.pause();
+  }
+
+  @Override
+  public void onResume(boolean multitasking) {
+    super.onResume(multitasking);
+    this.linkMonitor.resume();
+  }
+
+  @Override
+  public boolean execute(String action, JSONArray data, CallbackContext callbackContext)
+      throws JSONException {
+    return execute(new WifiRequest(action, data, callbackContext));
+  }
+
+  /**
+   * Run a request, also used to replay a request once location permission is granted
+   *
+   * Handlers must only answer on request.callbackContext, as other requests may be running at the same time
+   */
+  private boolean execute(final WifiRequest request) throws JSONException {
+    final ActionSpec spec = actions.get(request.action);
+
+    if (spec == null) {
+      request.callbackContext.error("Incorrect action parameter: " + request.action);
       // The ONLY time to return FALSE is when action does not exist that was called
       // Returning false results in an INVALID_ACTION error, which translates to an error callback invoked on the JavaScript side
       // All other errors should be handled with the fail callback (callbackContext.error)
@@ -273,87 +324,474 @@ public class WifiWizard2 extends CordovaPlugin {
       return false;
     }
 
+    PluginExecutor.Policy policy = spec.policy;
+
+    // Enabling WiFi can take seconds, never wait for it on the bridge thread
+    if (spec.requiresWifi && policy == PluginExecutor.Policy.INLINE && !wifiState.isEnabled()) {
+      policy = PluginExecutor.Policy.BACKGROUND;
+    }
+
+    boolean accepted = pluginExecutor.execute(policy, new Runnable() {
+      public void run() {
+        runAction(spec, request, spec.requiresWifi);
+      }
+    });
+
+    if (!accepted) {
+      Log.e(TAG, "WifiWizard2: too many requests queued, rejecting " + request);
+      request.callbackContext.error("TOO_MANY_REQUESTS");
+    }
+
     return true;
   }
 
   /**
-   * Scans networks and sends the list back on the success callback
-   *
-   * @param callbackContext A Cordova callback context
-   * @param data JSONArray with [0] == JSONObject
-   * @return true
+   * Run action handler on the current thread, enabling WiFi first when checkWifi is set
    */
-  private boolean scan(final CallbackContext callbackContext, final JSONArray data) {
-    Log.v(TAG, "Entering startScan");
-    final ScanSyncContext syncContext = new ScanSyncContext();
+  private void runAction(ActionSpec spec, WifiRequest request, boolean checkWifi) {
+    try {
+      if (checkWifi && !verifyWifiEnabled()) {
+        request.callbackContext.error("WIFI_NOT_ENABLED");
+        return;
+      }
 
-    final BroadcastReceiver receiver = new BroadcastReceiver() {
-      public void onReceive(Context context, Intent intent) {
-        Log.v(TAG, "Entering onReceive");
+      spec.handler.handle(request);
+    } catch (JSONException e) {
+      e.printStackTrace();
+      request.callbackContext.error(e.toString());
+    } catch (RuntimeException e) {
+      Log.e(TAG, "WifiWizard2: " + request + " failed", e);
+      request.callbackContext.error(e.toString());
+    }
+  }
 
-        synchronized (syncContext) {
-          if (syncContext.finished) {
-            Log.v(TAG, "In onReceive, already finished");
-            return;
-          }
-          syncContext.finished = true;
-          context.unregisterReceiver(this);
-        }
+  /**
+   * Build the action dispatch table
+   *
+   * INLINE actions are quick reads (or asynchronous already), BACKGROUND actions block on the network or build
+   * large results, and SERIAL actions change WiFi state or configured networks, so run one at a time in call order.
+   */
+  private void registerActions() {
+    // Actions that do not require WiFi to be enabled
+    registerAction(IS_WIFI_ENABLED, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        isWifiEnabled(request.callbackContext);
+      }
+    });
+    registerAction(SET_WIFI_ENABLED, PluginExecutor.Policy.SERIAL, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        setWifiEnabled(request.callbackContext, request.args);
+      }
+    });
+    registerAction(REQUEST_FINE_LOCATION, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        requestFineLocation(request);
+      }
+    });
+    registerAction(GET_NETWORK_STATUS, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getNetworkStatus(request.callbackContext);
+      }
+    });
+    registerAction(SUBSCRIBE, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        subscribe(request.callbackContext, request.args);
+      }
+    });
+    registerAction(UNSUBSCRIBE, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        unsubscribe(request.callbackContext, request.args);
+      }
+    });
+    registerAction(START_LINK_MONITOR, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        startLinkMonitor(request.callbackContext, request.args);
+      }
+    });
+    registerAction(STOP_LINK_MONITOR, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        stopLinkMonitor(request.callbackContext);
+      }
+    });
+    registerAction(GET_LINK_QUALITY, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getLinkQuality(request.callbackContext);
+      }
+    });
+    registerAction(GET_SIGNAL_HISTORY, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getSignalHistory(request.callbackContext, request.args);
+      }
+    });
+    registerAction(PIPELINE, PluginExecutor.Policy.BACKGROUND, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        pipeline(request);
+      }
+    });
+    registerAction(GET_WIFI_ROUTER_IP_ADDRESS, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getWifiRouterIP(request.callbackContext);
+      }
+    });
+    registerAction(GET_WIFI_IP_ADDRESS, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getWifiIPInfo(request.callbackContext, true);
+      }
+    });
+    registerAction(GET_WIFI_IP_INFO, PluginExecutor.Policy.INLINE, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getWifiIPInfo(request.callbackContext, false);
+      }
+    });
 
-        Log.v(TAG, "In onReceive, success");
-        getScanResults(callbackContext, data);
+    // Actions that DO require WiFi to be enabled
+    registerAction(ADD_NETWORK, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        add(request.callbackContext, request.args);
       }
-    };
+    });
+    registerAction(ADD_MANY, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        addMany(request.callbackContext, request.args);
+      }
+    });
+    registerAction(REMOVE_MANY, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        removeMany(request.callbackContext, request.args);
+      }
+    });
+    registerAction(ENABLE_MANY, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        enableMany(request.callbackContext, request.args);
+      }
+    });
+    registerAction(IS_CONNECTED_TO_INTERNET, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        canConnectToInternet(request.callbackContext, true, skipCache(request.args));
+      }
+    });
+    registerAction(CAN_CONNECT_TO_INTERNET, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        canConnectToInternet(request.callbackContext, false, skipCache(request.args));
+      }
+    });
+    registerAction(PROBE, PluginExecutor.Policy.BACKGROUND, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        probe(request.callbackContext, request.args);
+      }
+    });
+    registerAction(CHECK_INTERNET, PluginExecutor.Policy.BACKGROUND, false, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        checkInternet(request.callbackContext, request.args);
+      }
+    });
+    registerAction(MEASURE_THROUGHPUT, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        measureThroughput(request.callbackContext, request.args);
+      }
+    });
+    registerAction(CAN_PING_WIFI_ROUTER, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        canConnectToRouter(request.callbackContext, true, skipCache(request.args));
+      }
+    });
+    registerAction(CAN_CONNECT_TO_ROUTER, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        canConnectToRouter(request.callbackContext, false, skipCache(request.args));
+      }
+    });
+    registerAction(ENABLE_NETWORK, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        enable(request.callbackContext, request.args);
+      }
+    });
+    registerAction(DISABLE_NETWORK, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        disable(request.callbackContext, request.args);
+      }
+    });
+    registerAction(GET_SSID_NET_ID, PluginExecutor.Policy.INLINE, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getSSIDNetworkID(request.callbackContext, request.args);
+      }
+    });
+    registerAction(REASSOCIATE, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        reassociate(request.callbackContext);
+      }
+    });
+    registerAction(RECONNECT, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        reconnect(request.callbackContext);
+      }
+    });
+    registerAction(SCAN, PluginExecutor.Policy.INLINE, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        scan(request);
+      }
+    });
+    registerAction(REMOVE_NETWORK, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        remove(request.callbackContext, request.args);
+      }
+    });
+    registerAction(CONNECT_NETWORK, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        connect(request.callbackContext, request.args);
+      }
+    });
+    registerAction(DISCONNECT_NETWORK, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        disconnectNetwork(request.callbackContext, request.args);
+      }
+    });
+    registerAction(LIST_NETWORKS, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        listNetworks(request.callbackContext);
+      }
+    });
+    registerAction(START_SCAN, PluginExecutor.Policy.INLINE, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        startScan(request.callbackContext);
+      }
+    });
+    registerAction(GET_SCAN_RESULTS, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getScanResults(request);
+      }
+    });
+    registerAction(GET_CHANNEL_ANALYSIS, PluginExecutor.Policy.BACKGROUND, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getChannelAnalysis(request);
+      }
+    });
+    registerAction(DISCONNECT, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        disconnect(request.callbackContext);
+      }
+    });
+    registerAction(GET_CONNECTED_SSID, PluginExecutor.Policy.INLINE, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getConnectedSSID(request);
+      }
+    });
+    registerAction(GET_CONNECTED_BSSID, PluginExecutor.Policy.INLINE, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getConnectedBSSID(request);
+      }
+    });
+    registerAction(GET_CONNECTED_NETWORKID, PluginExecutor.Policy.INLINE, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        getConnectedNetworkID(request.callbackContext);
+      }
+    });
+    registerAction(RESET_BIND_ALL, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        resetBindAll(request.callbackContext);
+      }
+    });
+    registerAction(SET_BIND_ALL, PluginExecutor.Policy.SERIAL, true, new ActionHandler() {
+      public void handle(WifiRequest request) throws JSONException {
+        setBindAll(request.callbackContext);
+      }
+    });
+  }
+
+  private void registerAction(String action, PluginExecutor.Policy policy, boolean requiresWifi, ActionHandler handler) {
+    actions.put(action, new ActionSpec(policy, requiresWifi, handler));
+  }
 
-    final Context context = cordova.getActivity().getApplicationContext();
+  /**
+   * Handles a single action, answering on request.callbackContext
+   */
+  private interface ActionHandler {
+    void handle(WifiRequest request) throws JSONException;
+  }
 
-    Log.v(TAG, "Submitting timeout to threadpool");
+  /**
+   * Dispatch table entry
+   */
+  private static class ActionSpec {
+    final PluginExecutor.Policy policy;
+    final boolean requiresWifi;
+    final ActionHandler handler;
+
+    ActionSpec(PluginExecutor.Policy policy, boolean requiresWifi, ActionHandler handler) {
+      this.policy = policy;
+      this.requiresWifi = requiresWifi;
+      this.handler = handler;
+    }
+  }
 
-    cordova.getThreadPool().submit(new Runnable() {
+  /**
+   * Run several actions natively, in order, answering once with the combined result
+   *
+   * WiFi is enabled once up front when any step requires it.  Steps run on the pipeline's thread, except SERIAL
+   * steps which still go through the MutationQueue (the pipeline waits for them), so they keep their ordering
+   * with mutations from other calls.  A SERIAL step that times out while still queued is cancelled, so it can't
+   * change anything after the pipeline has moved on.
+   *
+   * @param request data: [0] == steps, [1] == options, see Pipeline
+   */
+  private void pipeline(WifiRequest request) throws JSONException {
+    final CallbackContext callbackContext = request.callbackContext;
+    Pipeline pipeline;
 
-      public void run() {
+    try {
+      pipeline = new Pipeline(request.args.optJSONArray(0), request.args.optJSONObject(1));
+    } catch (IllegalArgumentException e) {
+      callbackContext.error(e.getMessage());
+      return;
+    }
 
-        Log.v(TAG, "Entering timeout");
+    boolean requiresWifi = false;
 
-        final int TEN_SECONDS = 10000;
+    for (Pipeline.Step step : pipeline.steps) {
+      ActionSpec spec = actions.get(step.action);
 
-        try {
-          Thread.sleep(TEN_SECONDS);
-        } catch (InterruptedException e) {
-          Log.e(TAG, "Received InterruptedException e, " + e);
-          // keep going into error
-        }
+      if (spec == null || !PIPELINE_ACTIONS.contains(step.action)) {
+        Log.d(TAG, "WifiWizard2: pipeline action not allowed: " + step.action);
+        callbackContext.error("PIPELINE_INVALID_ACTION");
+        return;
+      }
+
+      requiresWifi |= spec.requiresWifi;
+    }
 
-        Log.v(TAG, "Thread sleep done");
+    if (requiresWifi && !verifyWifiEnabled()) {
+      callbackContext.error("WIFI_NOT_ENABLED");
+      return;
+    }
 
-        synchronized (syncContext) {
-          if (syncContext.finished) {
-            Log.v(TAG, "In timeout, already finished");
-            return;
-          }
-          syncContext.finished = true;
-          context.unregisterReceiver(receiver);
+    JSONObject result = pipeline.run(new Pipeline.StepRunner() {
+      public PluginResult run(String action, JSONArray args, long timeoutMs) throws InterruptedException {
+        return runPipelineStep(action, args, callbackContext.getCallbackId(), timeoutMs);
+      }
+    });
+
+    if (result.getBoolean("success")) {
+      callbackContext.success(result);
+    } else {
+      callbackContext.error(result);
+    }
+  }
+
+  private PluginResult runPipelineStep(String action, JSONArray args, String callbackId, long timeoutMs)
+      throws InterruptedException {
+    final ActionSpec spec = actions.get(action);
+    final CapturingCallbackContext capture = new CapturingCallbackContext(callbackId, webView);
+    final WifiRequest request = new WifiRequest(action, args, capture);
+    // Set by whichever comes first: the step starting, or the pipeline giving up on it
+    final AtomicBoolean claimed = new AtomicBoolean();
+
+    Runnable step = new Runnable() {
+      public void run() {
+        if (!claimed.compareAndSet(false, true)) {
+          Log.d(TAG, "WifiWizard2: pipeline step timed out while queued, not run: " + request.action);
+          return;
         }
+        // WiFi was already checked for the whole pipeline
+        runAction(spec, request, false);
+      }
+    };
 
-        Log.v(TAG, "In timeout, error");
-        callbackContext.error("TIMEOUT_WAITING_FOR_SCAN");
+    if (spec.policy == PluginExecutor.Policy.SERIAL) {
+      if (!mutationQueue.submit(step)) {
+        return new PluginResult(PluginResult.Status.ERROR, "TOO_MANY_REQUESTS");
       }
+    } else {
+      step.run();
+    }
 
-    });
+    try {
+      return capture.await(timeoutMs);
+    } finally {
+      // Still queued on timeout (or interrupt): cancel it. Once started, a mutation is left to finish
+      claimed.set(true);
+    }
+  }
 
-    Log.v(TAG, "Registering broadcastReceiver");
-    context.registerReceiver(
-        receiver,
-        new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION)
-    );
+  /**
+   * Save configured networks, only needed before API 26 (configurations are persistent for API 26+)
+   *
+   * Called by the MutationQueue once it drains, so consecutive add/remove calls share one save
+   */
+  private void persistConfiguration() {
+    if (API_VERSION < 26) {
+      Log.d(TAG, "WifiWizard2: saving configuration");
+      wifiManager.saveConfiguration(); // Call saveConfiguration for older < 26 API
+    }
+  }
 
-    if (!wifiManager.startScan()) {
-      Log.v(TAG, "Scan failed");
-      callbackContext.error("SCAN_FAILED");
-      return false;
+  /**
+   * Request ACCESS_FINE_LOCATION permission, resolving right away when already granted
+   *
+   * @param request
+   */
+  private void requestFineLocation(WifiRequest request) {
+    if (cordova.hasPermission(ACCESS_FINE_LOCATION)) {
+      request.callbackContext.success("PERMISSION_GRANTED");
+    } else {
+      requestLocationPermission(request);
     }
+  }
+
+  /**
+   * Send the router (gateway) IP
+   *
+   * @param callbackContext A Cordova callback context
+   */
+  private void getWifiRouterIP(CallbackContext callbackContext) {
+    String ip = getWiFiRouterIP();
 
-    Log.v(TAG, "Starting wifi scan");
+    if ( ip == null || ip.equals("0.0.0.0")) {
+      callbackContext.error("NO_VALID_ROUTER_IP_FOUND");
+    } else {
+      callbackContext.success(ip);
+    }
+  }
+
+  /**
+   * Send the WiFi IP, or IP and subnet as {ip, subnet}
+   *
+   * @param callbackContext A Cordova callback context
+   * @param ipOnly only send the IP address
+   */
+  private void getWifiIPInfo(CallbackContext callbackContext, boolean ipOnly) throws JSONException {
+    String[] ipInfo = getWiFiIPAddress();
+    String ip = ipInfo[0];
+    String subnet = ipInfo[1];
+    if (ip == null || ip.equals("0.0.0.0")) {
+      callbackContext.error("NO_VALID_IP_IDENTIFIED");
+      return;
+    }
+
+    // Return only IP address
+    if (ipOnly) {
+      callbackContext.success(ip);
+      return;
+    }
+
+    // Return Wifi IP Info (subnet and IP as JSON object)
+    JSONObject result = new JSONObject();
+
+    result.put("ip", ip);
+    result.put("subnet", subnet);
+
+    callbackContext.success(result);
+  }
+
+  /**
+   * Scans networks and sends the list back on the success callback
+   *
+   * Concurrent callers share a single radio scan, see ScanScheduler
+   *
+   * @param request with args JSONArray with [0] == JSONObject
+   * @return true
+   */
+  private boolean scan(WifiRequest request) {
+    Log.v(TAG, "Entering scan");
+    scanScheduler.scan(request);
     return true;
   }
 
@@ -365,103 +803,26 @@ public class WifiWizard2 extends CordovaPlugin {
    * @params callbackContext     A Cordova callback context.
    * @params data                JSON Array with [0] == SSID, [1] == password
    */
-  private boolean add(CallbackContext callbackContext, JSONArray data) {
+  private boolean add(final CallbackContext callbackContext, JSONArray data) {
 
     Log.d(TAG, "WifiWizard2: add entered.");
 
-    // Initialize the WifiConfiguration object
-    WifiConfiguration wifi = new WifiConfiguration();
-
     try {
-      // data's order for ANY object is
-      // 0: SSID
-      // 1: authentication algorithm,
-      // 2: authentication information
-      // 3: whether or not the SSID is hidden
       String newSSID = data.getString(0);
-      String authType = data.getString(1);
       String newPass = data.getString(2);
-      boolean isHiddenSSID = data.getBoolean(3);
-
-      wifi.hiddenSSID = isHiddenSSID;
 
-      if (authType.equals("WPA") || authType.equals("WPA2")) {
-       /**
-        * WPA Data format:
-        * 0: ssid
-        * 1: auth
-        * 2: password
-        * 3: isHiddenSSID
-        */
-        wifi.SSID = newSSID;
-        wifi.preSharedKey = newPass;
-
-        wifi.status = WifiConfiguration.Status.ENABLED;
-        wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
-        wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
-        wifi.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
-        wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
-        wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
-        wifi.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
-        wifi.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
-
-        wifi.networkId = ssidToNetworkId(newSSID);
-
-      } else if (authType.equals("WEP")) {
-       /**
-        * WEP Data format:
-        * 0: ssid
-        * 1: auth
-        * 2: password
-        * 3: isHiddenSSID
-        */
-        wifi.SSID = newSSID;
-
-        if (getHexKey(newPass)) {
-          wifi.wepKeys[0] = newPass;
-        } else {
-          wifi.wepKeys[0] = "\"" + newPass + "\"";
-        }
-        wifi.wepTxKeyIndex = 0;
-
-        wifi.status = WifiConfiguration.Status.ENABLED;
-        wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
-        wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
-        wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
-        wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
-        wifi.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-        wifi.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.OPEN);
-        wifi.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.SHARED);
-        wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
-        wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
-        wifi.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
-        wifi.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
-
-        wifi.networkId = ssidToNetworkId(newSSID);
-
-      } else if (authType.equals("NONE")) {
-       /**
-        * OPEN Network data format:
-        * 0: ssid
-        * 1: auth
-        * 2: <not used>
-        * 3: isHiddenSSID
-        */
-        wifi.SSID = newSSID;
-        wifi.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-        wifi.networkId = ssidToNetworkId(newSSID);
-
-      } else {
+      WifiConfiguration wifi;
 
-        Log.d(TAG, "Wifi Authentication Type Not Supported.");
-        callbackContext.error("AUTH_TYPE_NOT_SUPPORTED");
+      try {
+        wifi = buildWifiConfiguration(data);
+      } catch (IllegalArgumentException e) {
+        callbackContext.error(e.getMessage());
         return false;
-
       }
 
       // Set network to highest priority (deprecated in API >= 26)
       if(API_VERSION < 26) {
-        wifi.priority = getMaxWifiPriority(wifiManager) + 1;
+        wifi.priority = getMaxWifiPriority() + 1;
       }
 
       if(API_VERSION >= 29) {
@@ -498,43 +859,496 @@ public class WifiWizard2 extends CordovaPlugin {
         cm.requestNetwork(nr, this.networkCallback, 15000);
       } else {
         // After processing authentication types, add or update network
-        if(wifi.networkId == -1) { // -1 means SSID configuration does not exist yet
+        boolean isNew = wifi.networkId == -1; // -1 means SSID configuration does not exist yet
+        int networkId = addOrUpdateNetwork(wifi);
+
+        if (networkId > -1) {
+          callbackContext.success( networkId );
+        } else {
+          callbackContext.error( isNew ? "ERROR_ADDING_NETWORK" : "ERROR_UPDATING_NETWORK" );
+        }
+      }
+
+      // Saved once the mutation queue drains (WifiManager configurations are presistent for API 26+)
+      mutationQueue.requestPersist();
 
-          int newNetId = wifiManager.addNetwork(wifi);
-          if( newNetId > -1 ){
-            callbackContext.success( newNetId );
+      return true;
+
+
+    } catch (Exception e) {
+      callbackContext.error(e.getMessage());
+      Log.d(TAG, e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Build a WifiConfiguration from add() arguments, with networkId set to the existing configuration for
+   * the SSID (or -1 when there is none)
+   *
+   * @param data JSON Array with [0] == SSID, [1] == auth type (WPA, WPA2, WEP or NONE), [2] == password,
+   *             [3] == isHiddenSSID
+   * @throws IllegalArgumentException AUTH_TYPE_NOT_SUPPORTED
+   */
+  private WifiConfiguration buildWifiConfiguration(JSONArray data) throws JSONException {
+
+    // Initialize the WifiConfiguration object
+    WifiConfiguration wifi = new WifiConfiguration();
+
+    // data's order for ANY object is
+    // 0: SSID
+    // 1: authentication algorithm,
+    // 2: authentication information
+    // 3: whether or not the SSID is hidden
+    String newSSID = data.getString(0);
+    String authType = data.getString(1);
+    String newPass = data.getString(2);
+    boolean isHiddenSSID = data.getBoolean(3);
+
+    wifi.hiddenSSID = isHiddenSSID;
+
+    if (authType.equals("WPA") || authType.equals("WPA2")) {
+     /**
+      * WPA Data format:
+      * 0: ssid
+      * 1: auth
+      * 2: password
+      * 3: isHiddenSSID
+      */
+      wifi.SSID = newSSID;
+      wifi.preSharedKey = newPass;
+
+      wifi.status = WifiConfiguration.Status.ENABLED;
+      wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
+      wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
+      wifi.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+      wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
+      wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+      wifi.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+      wifi.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
+
+      wifi.networkId = ssidToNetworkId(newSSID);
+
+    } else if (authType.equals("WEP")) {
+     /**
+      * WEP Data format:
+      * 0: ssid
+      * 1: auth
+      * 2: password
+      * 3: isHiddenSSID
+      */
+      wifi.SSID = newSSID;
+
+      if (getHexKey(newPass)) {
+        wifi.wepKeys[0] = newPass;
+      } else {
+        wifi.wepKeys[0] = "\"" + newPass + "\"";
+      }
+      wifi.wepTxKeyIndex = 0;
+
+      wifi.status = WifiConfiguration.Status.ENABLED;
+      wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP40);
+      wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.WEP104);
+      wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.TKIP);
+      wifi.allowedGroupCiphers.set(WifiConfiguration.GroupCipher.CCMP);
+      wifi.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+      wifi.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.OPEN);
+      wifi.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.SHARED);
+      wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.TKIP);
+      wifi.allowedPairwiseCiphers.set(WifiConfiguration.PairwiseCipher.CCMP);
+      wifi.allowedProtocols.set(WifiConfiguration.Protocol.RSN);
+      wifi.allowedProtocols.set(WifiConfiguration.Protocol.WPA);
+
+      wifi.networkId = ssidToNetworkId(newSSID);
+
+    } else if (authType.equals("NONE")) {
+     /**
+      * OPEN Network data format:
+      * 0: ssid
+      * 1: auth
+      * 2: <not used>
+      * 3: isHiddenSSID
+      */
+      wifi.SSID = newSSID;
+      wifi.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+      wifi.networkId = ssidToNetworkId(newSSID);
+
+    } else {
+
+      Log.d(TAG, "Wifi Authentication Type Not Supported.");
+      throw new IllegalArgumentException("AUTH_TYPE_NOT_SUPPORTED");
+
+    }
+
+    return wifi;
+  }
+
+  /**
+   * Add wifi (networkId == -1) or update an existing network, keeping the configured network index in sync
+   *
+   * @return network ID, or -1 if WifiManager failed to add or update it
+   */
+  private int addOrUpdateNetwork(WifiConfiguration wifi) {
+    int networkId = wifi.networkId == -1 ? wifiManager.addNetwork(wifi) : wifiManager.updateNetwork(wifi);
+
+    if (networkId > -1) {
+      wifi.networkId = networkId;
+      configuredNetworks.put(wifi);
+    }
+
+    return networkId;
+  }
+
+  /**
+   * Add (or update) many networks in one call, saving configuration once
+   *
+   * On API 29+ networks are added as a single list of WifiNetworkSuggestions instead.
+   * Sends a result per network, in order: [{SSID, success, networkId?, error?}, ...]
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSON Array with [0] == array of add() arguments, [[SSID, auth type, password, isHiddenSSID], ...]
+   */
+  private void addMany(CallbackContext callbackContext, JSONArray data) {
+    Log.d(TAG, "WifiWizard2: addMany entered.");
+
+    try {
+      JSONArray networks = data.optJSONArray(0);
+
+      if (networks == null) {
+        callbackContext.error("ADD_MANY_INVALID_DATA");
+        return;
+      }
+
+      if (API_VERSION >= 29) {
+        callbackContext.success(addNetworkSuggestions(networks));
+        return;
+      }
+
+      JSONArray results = new JSONArray();
+      // Later networks get a higher priority, same as calling add() for each (deprecated in API >= 26)
+      int priority = API_VERSION < 26 ? getMaxWifiPriority() : 0;
+
+      for (int i = 0; i < networks.length(); i++) {
+        JSONArray network = networks.optJSONArray(i);
+        String ssid = network == null ? null : network.optString(0, null);
+
+        try {
+          if (network == null) {
+            throw new IllegalArgumentException("INVALID_DATA");
+          }
+
+          WifiConfiguration wifi = buildWifiConfiguration(network);
+
+          if (API_VERSION < 26) {
+            wifi.priority = ++priority;
+          }
+
+          boolean isNew = wifi.networkId == -1;
+          int networkId = addOrUpdateNetwork(wifi);
+
+          if (networkId > -1) {
+            results.put(batchResult(ssid, networkId, null));
           } else {
-            callbackContext.error( "ERROR_ADDING_NETWORK" );
+            results.put(batchResult(ssid, -1, isNew ? "ERROR_ADDING_NETWORK" : "ERROR_UPDATING_NETWORK"));
           }
+        } catch (IllegalArgumentException e) {
+          results.put(batchResult(ssid, -1, e.getMessage()));
+        } catch (JSONException e) {
+          results.put(batchResult(ssid, -1, "INVALID_DATA"));
+        }
+      }
+
+      // Saved once the mutation queue drains, for every network in the batch
+      mutationQueue.requestPersist();
 
+      callbackContext.success(results);
+
+    } catch (JSONException e) {
+      callbackContext.error(e.toString());
+    }
+  }
+
+  /**
+   * Add networks as WifiNetworkSuggestions with a single addNetworkSuggestions call (API 29+)
+   *
+   * Suggestions this plugin added before (also before an app restart) for the same SSIDs are replaced, and kept when
+   * the add fails. API 30+ replaces them itself, so they are added first and stale ones removed after; API 29 rejects
+   * duplicates, so they are removed first and re-added if the add fails. WEP is not supported by suggestions.
+   */
+  private JSONArray addNetworkSuggestions(JSONArray networks) throws JSONException {
+    int count = networks.length();
+    String[] ssids = new String[count];
+    String[] errors = new String[count];
+    WifiNetworkSuggestion[] built = new WifiNetworkSuggestion[count];
+    WifiNetworkSuggestion[] previous = new WifiNetworkSuggestion[count];
+    String[] authTypes = new String[count];
+
+    List<WifiNetworkSuggestion> toAdd = new ArrayList<WifiNetworkSuggestion>();
+    List<WifiNetworkSuggestion> toReplace = new ArrayList<WifiNetworkSuggestion>();
+
+    for (int i = 0; i < count; i++) {
+      JSONArray network = networks.optJSONArray(i);
+
+      if (network == null || network.isNull(0)) {
+        errors[i] = "INVALID_DATA";
+        continue;
+      }
+
+      ssids[i] = network.optString(0);
+      String authType = network.optString(1);
+
+      WifiNetworkSuggestion.Builder builder = new WifiNetworkSuggestion.Builder();
+      builder.setSsid(unquote(ssids[i]));
+      builder.setIsHiddenSsid(network.optBoolean(3, false));
+
+      if (authType.equals("WPA") || authType.equals("WPA2")) {
+        builder.setWpa2Passphrase(unquote(network.optString(2)));
+        authTypes[i] = NetworkSuggestionIndex.AUTH_WPA2;
+      } else if (authType.equals("NONE")) {
+        authTypes[i] = NetworkSuggestionIndex.AUTH_NONE;
+      } else {
+        errors[i] = "AUTH_TYPE_NOT_SUPPORTED";
+        continue;
+      }
+
+      built[i] = builder.build();
+      toAdd.add(built[i]);
+
+      previous[i] = networkSuggestions.forRemoval(unquote(ssids[i]));
+      if (previous[i] != null) {
+        toReplace.add(previous[i]);
+      }
+    }
+
+    if (API_VERSION < 30 && !toReplace.isEmpty()) {
+      wifiManager.removeNetworkSuggestions(toReplace);
+    }
+
+    int status = toAdd.isEmpty() ? WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS : wifiManager.addNetworkSuggestions(toAdd);
+
+    if (status == WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS) {
+      // API 30+: an equal suggestion was updated in place, removing it would remove the new one
+      List<WifiNetworkSuggestion> stale = new ArrayList<WifiNetworkSuggestion>();
+      for (int i = 0; i < count; i++) {
+        if (API_VERSION >= 30 && previous[i] != null && built[i] != null && !previous[i].equals(built[i])) {
+          stale.add(previous[i]);
+        }
+      }
+
+      if (!stale.isEmpty()) {
+        wifiManager.removeNetworkSuggestions(stale);
+      }
+    } else if (API_VERSION < 30 && !toReplace.isEmpty()) {
+      // API 29: put back what was removed for the failed add, suggestions from before a restart can't be restored
+      List<WifiNetworkSuggestion> restore = new ArrayList<WifiNetworkSuggestion>();
+      for (int i = 0; i < count; i++) {
+        if (previous[i] == null) {
+          continue;
+        }
+
+        WifiNetworkSuggestion known = networkSuggestions.get(unquote(ssids[i]));
+        if (known == null) {
+          networkSuggestions.remove(unquote(ssids[i]));
+        } else {
+          restore.add(known);
+        }
+      }
+
+      if (!restore.isEmpty()
+          && wifiManager.addNetworkSuggestions(restore) != WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS) {
+        Log.d(TAG, "addNetworkSuggestions: could not restore replaced suggestions");
+        for (int i = 0; i < count; i++) {
+          if (previous[i] != null) {
+            networkSuggestions.remove(unquote(ssids[i]));
+          }
+        }
+      }
+    }
+
+    JSONArray results = new JSONArray();
+
+    for (int i = 0; i < count; i++) {
+      if (errors[i] != null) {
+        results.put(batchResult(ssids[i], -1, errors[i]));
+      } else if (status == WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS) {
+        networkSuggestions.put(unquote(ssids[i]), authTypes[i], built[i]);
+        results.put(batchResult(ssids[i], -1, null));
+      } else {
+        results.put(batchResult(ssids[i], -1, suggestionError(status)));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Remove many networks in one call, saving configuration once
+   *
+   * On API 29+ networks added by addMany() are removed as a single list of WifiNetworkSuggestions.
+   * Sends a result per network, in order: [{SSID, success, networkId?, error?}, ...]
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSON Array with [0] == array of SSIDs (or network IDs)
+   */
+  private void removeMany(CallbackContext callbackContext, JSONArray data) {
+    Log.d(TAG, "WifiWizard2: removeMany entered.");
+
+    try {
+      JSONArray ssids = data.optJSONArray(0);
+
+      if (ssids == null) {
+        callbackContext.error("REMOVE_MANY_INVALID_DATA");
+        return;
+      }
+
+      JSONObject[] results = new JSONObject[ssids.length()];
+      List<WifiNetworkSuggestion> suggestions = new ArrayList<WifiNetworkSuggestion>();
+      List<Integer> suggestionIndexes = new ArrayList<Integer>();
+
+      for (int i = 0; i < ssids.length(); i++) {
+        String ssid = ssids.optString(i);
+        WifiNetworkSuggestion suggestion = API_VERSION >= 29 ? networkSuggestions.forRemoval(unquote(ssid)) : null;
+
+        if (suggestion != null) {
+          suggestions.add(suggestion);
+          suggestionIndexes.add(i);
+          continue;
+        }
+
+        int networkId = ssidToNetworkId(ssid);
+
+        if (networkId < 0) {
+          results[i] = batchResult(ssid, -1, "REMOVE_NETWORK_NOT_FOUND");
+        } else if (wifiManager.removeNetwork(networkId)) {
+          configuredNetworks.remove(networkId);
+          results[i] = batchResult(ssid, networkId, null);
         } else {
+          results[i] = batchResult(ssid, networkId, "UNABLE_TO_REMOVE");
+        }
+      }
 
-          int updatedNetID = wifiManager.updateNetwork(wifi);
+      if (!suggestions.isEmpty()) {
+        int status = wifiManager.removeNetworkSuggestions(suggestions);
 
-          if(updatedNetID > -1) {
-            callbackContext.success( updatedNetID );
+        for (int i : suggestionIndexes) {
+          String ssid = ssids.optString(i);
+          if (status == WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS) {
+            networkSuggestions.remove(unquote(ssid));
+            results[i] = batchResult(ssid, -1, null);
           } else {
-            callbackContext.error("ERROR_UPDATING_NETWORK");
+            results[i] = batchResult(ssid, -1, suggestionError(status));
           }
-
         }
       }
 
-      // WifiManager configurations are presistent for API 26+
-      if(API_VERSION < 26) {
-        wifiManager.saveConfiguration(); // Call saveConfiguration for older < 26 API
+      // Saved once the mutation queue drains, for every network in the batch
+      mutationQueue.requestPersist();
+
+      callbackContext.success(new JSONArray(Arrays.asList(results)));
+
+    } catch (JSONException e) {
+      callbackContext.error(e.toString());
+    }
+  }
+
+  /**
+   * Enable many networks in one call (without connecting to them), saving configuration once
+   *
+   * Apps can't enable networks on API 29+, so every network fails with NOT_SUPPORTED_ON_API_29 there.
+   * Sends a result per network, in order: [{SSID, success, networkId?, error?}, ...]
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSON Array with [0] == array of SSIDs (or network IDs)
+   */
+  private void enableMany(CallbackContext callbackContext, JSONArray data) {
+    Log.d(TAG, "WifiWizard2: enableMany entered.");
+
+    try {
+      JSONArray ssids = data.optJSONArray(0);
+
+      if (ssids == null) {
+        callbackContext.error("ENABLE_MANY_INVALID_DATA");
+        return;
       }
 
-      return true;
+      JSONArray results = new JSONArray();
 
+      for (int i = 0; i < ssids.length(); i++) {
+        String ssid = ssids.optString(i);
 
-    } catch (Exception e) {
-      callbackContext.error(e.getMessage());
-      Log.d(TAG, e.getMessage());
-      return false;
+        if (API_VERSION >= 29) {
+          // enableNetwork is ignored for apps targeting API 29+, networks are added as suggestions instead
+          results.put(batchResult(ssid, -1, "NOT_SUPPORTED_ON_API_29"));
+          continue;
+        }
+
+        int networkId = ssidToNetworkId(ssid);
+
+        if (networkId < 0) {
+          results.put(batchResult(ssid, -1, "UNABLE_TO_ENABLE"));
+        } else if (wifiManager.enableNetwork(networkId, false)) {
+          results.put(batchResult(ssid, networkId, null));
+        } else {
+          results.put(batchResult(ssid, networkId, "ERROR_ENABLING_NETWORK"));
+        }
+      }
+
+      // Saved once the mutation queue drains, for every network in the batch
+      mutationQueue.requestPersist();
+
+      callbackContext.success(results);
+
+    } catch (JSONException e) {
+      callbackContext.error(e.toString());
+    }
+  }
+
+  /**
+   * Result for a single network in addMany, removeMany or enableMany
+   */
+  private static JSONObject batchResult(String ssid, int networkId, String error) throws JSONException {
+    JSONObject result = new JSONObject();
+    result.put("SSID", ssid);
+    result.put("success", error == null);
+
+    if (networkId > -1) {
+      result.put("networkId", networkId);
+    }
+    if (error != null) {
+      result.put("error", error);
+    }
+
+    return result;
+  }
+
+  /**
+   * Error code for WifiManager.STATUS_NETWORK_SUGGESTIONS_* status
+   */
+  private static String suggestionError(int status) {
+    switch (status) {
+      case WifiManager.STATUS_NETWORK_SUGGESTIONS_ERROR_APP_DISALLOWED:
+        return "SUGGESTION_APP_DISALLOWED";
+      case WifiManager.STATUS_NETWORK_SUGGESTIONS_ERROR_ADD_DUPLICATE:
+        return "SUGGESTION_DUPLICATE";
+      case WifiManager.STATUS_NETWORK_SUGGESTIONS_ERROR_ADD_EXCEEDS_MAX_PER_APP:
+        return "SUGGESTION_LIMIT_EXCEEDED";
+      case WifiManager.STATUS_NETWORK_SUGGESTIONS_ERROR_REMOVE_INVALID:
+        return "SUGGESTION_NOT_FOUND";
+      default:
+        return "SUGGESTION_FAILED";
     }
   }
 
+  /**
+   * Strip surrounding double quotes, as added by WifiWizard2.formatWifiString() in JavaScript
+   */
+  private static String unquote(String value) {
+    if (value != null && value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
   /**
    * This method connects a network.
    *
@@ -544,7 +1358,7 @@ public class WifiWizard2 extends CordovaPlugin {
   private void enable(CallbackContext callbackContext, JSONArray data) {
     Log.d(TAG, "WifiWizard2: enable entered.");
 
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("ENABLE_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: enable invalid data.");
       return;
@@ -553,11 +1367,13 @@ public class WifiWizard2 extends CordovaPlugin {
     String ssidToEnable = "";
     String bindAll = "false";
     String waitForConnection = "false";
+    int timeout = ConnectionTracker.DEFAULT_CONNECT_TIMEOUT;
 
     try {
       ssidToEnable = data.getString(0);
       bindAll = data.getString(1);
       waitForConnection = data.getString(2);
+      timeout = data.optInt(3, ConnectionTracker.DEFAULT_CONNECT_TIMEOUT);
     } catch (Exception e) {
       callbackContext.error(e.getMessage());
       Log.d(TAG, e.getMessage());
@@ -583,7 +1399,7 @@ public class WifiWizard2 extends CordovaPlugin {
             callbackContext.success("NETWORK_ENABLED");
             return;
           } else {
-            new ConnectAsync().execute(callbackContext, networkIdToEnable);
+            connectionTracker.waitForConnection(callbackContext, networkIdToEnable, timeout);
             return;
           }
 
@@ -615,7 +1431,7 @@ public class WifiWizard2 extends CordovaPlugin {
   private boolean disable(CallbackContext callbackContext, JSONArray data) {
     Log.d(TAG, "WifiWizard2: disable entered.");
 
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("DISABLE_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: disable invalid data");
       return false;
@@ -668,7 +1484,7 @@ public class WifiWizard2 extends CordovaPlugin {
   private boolean remove(CallbackContext callbackContext, JSONArray data) {
     Log.d(TAG, "WifiWizard2: remove entered.");
 
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("REMOVE_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: remove data invalid");
       return false;
@@ -684,10 +1500,10 @@ public class WifiWizard2 extends CordovaPlugin {
 
           if( wifiManager.removeNetwork(networkIdToRemove) ){
 
-              // Configurations persist by default in API 26+
-              if (API_VERSION < 26) {
-                  wifiManager.saveConfiguration();
-              }
+              configuredNetworks.remove(networkIdToRemove);
+
+              // Saved once the mutation queue drains (configurations persist by default in API 26+)
+              mutationQueue.requestPersist();
 
               callbackContext.success("NETWORK_REMOVED");
 
@@ -718,7 +1534,7 @@ public class WifiWizard2 extends CordovaPlugin {
   private void connect(CallbackContext callbackContext, JSONArray data) {
     Log.d(TAG, "WifiWizard2: connect entered.");
 
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("CONNECT_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: connect invalid data.");
       return;
@@ -726,10 +1542,12 @@ public class WifiWizard2 extends CordovaPlugin {
 
     String ssidToConnect = "";
     String bindAll = "false";
+    int timeout = ConnectionTracker.DEFAULT_CONNECT_TIMEOUT;
 
     try {
       ssidToConnect = data.getString(0);
       bindAll = data.getString(1);
+      timeout = data.optInt(2, ConnectionTracker.DEFAULT_CONNECT_TIMEOUT);
     } catch (Exception e) {
       callbackContext.error(e.getMessage());
       Log.d(TAG, e.getMessage());
@@ -761,7 +1579,7 @@ public class WifiWizard2 extends CordovaPlugin {
 //        wifiManager.reassociate();
       }
 
-      new ConnectAsync().execute(callbackContext, networkIdToConnect);
+      connectionTracker.waitForConnection(callbackContext, networkIdToConnect, timeout);
       return;
 
     } else {
@@ -770,69 +1588,6 @@ public class WifiWizard2 extends CordovaPlugin {
     }
   }
 
-  /**
-   * Wait for connection before returning error or success
-   *
-   * This method will wait up to 60 seconds for WiFi connection to specified network ID be in COMPLETED state, otherwise will return error.
-   *
-   * @param callbackContext
-   * @param networkIdToConnect
-   * @return
-   */
-  private class ConnectAsync extends AsyncTask<Object, Void, String[]> {
-    CallbackContext callbackContext;
-    @Override
-    protected void onPostExecute(String[] results) {
-      String error = results[0];
-      String success = results[1];
-      if (error != null) {
-        this.callbackContext.error(error);
-      } else {
-        this.callbackContext.success(success);
-      }
-    }
-
-    @Override
-    protected String[] doInBackground(Object... params) {
-      this.callbackContext = (CallbackContext) params[0];
-      int networkIdToConnect = (Integer) params[1];
-
-      final int TIMES_TO_RETRY = 15;
-      for (int i = 0; i < TIMES_TO_RETRY; i++) {
-
-        WifiInfo info = wifiManager.getConnectionInfo();
-        NetworkInfo.DetailedState connectionState = info
-            .getDetailedStateOf(info.getSupplicantState());
-
-        boolean isConnected =
-            // need to ensure we're on correct network because sometimes this code is
-            // reached before the initial network has disconnected
-            info.getNetworkId() == networkIdToConnect && (
-                connectionState == NetworkInfo.DetailedState.CONNECTED ||
-                    // Android seems to sometimes get stuck in OBTAINING_IPADDR after it has received one
-                    (connectionState == NetworkInfo.DetailedState.OBTAINING_IPADDR
-                        && info.getIpAddress() != 0)
-            );
-
-        if (isConnected) {
-          return new String[]{ null, "NETWORK_CONNECTION_COMPLETED" };
-        }
-
-        Log.d(TAG, "WifiWizard: Got " + connectionState.name() + " on " + (i + 1) + " out of " + TIMES_TO_RETRY);
-        final int ONE_SECOND = 1000;
-
-        try {
-          Thread.sleep(ONE_SECOND);
-        } catch (InterruptedException e) {
-          Log.e(TAG, e.getMessage());
-          return new String[]{ "INTERRUPT_EXCEPT_WHILE_CONNECTING", null };
-        }
-      }
-      Log.d(TAG, "WifiWizard: Network failed to finish connecting within the timeout");
-      return new String[]{ "CONNECT_FAILED_TIMEOUT", null };
-    }
-  }
-
   /**
    * This method disconnects a network.
    *
@@ -842,7 +1597,7 @@ public class WifiWizard2 extends CordovaPlugin {
    */
   private boolean disconnectNetwork(CallbackContext callbackContext, JSONArray data) {
     Log.d(TAG, "WifiWizard2: disconnectNetwork entered.");
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("DISCONNECT_NET_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: disconnectNetwork invalid data");
       return false;
@@ -870,6 +1625,7 @@ public class WifiWizard2 extends CordovaPlugin {
 
           // We also remove the configuration from the device (use "disable" to keep config)
           if( wifiManager.removeNetwork(networkIdToDisconnect) ){
+            configuredNetworks.remove(networkIdToDisconnect);
             callbackContext.success("Network " + ssidToDisconnect + " disconnected and removed!");
           } else {
             callbackContext.error("DISCONNECT_NET_REMOVE_ERROR");
@@ -984,117 +1740,399 @@ public class WifiWizard2 extends CordovaPlugin {
    * This method uses the callbackContext.success method to send a JSONArray of the scanned
    * networks.
    *
-   * @param callbackContext A Cordova callback context
-   * @param data JSONArray with [0] == JSONObject
+   * @param request with args JSONArray with [0] == JSONObject
    * @return true
    */
-  private boolean getScanResults(CallbackContext callbackContext, JSONArray data) {
-
-    if (cordova.hasPermission(ACCESS_FINE_LOCATION)) {
+  private boolean getScanResults(WifiRequest request) {
+    return getScanResults(request, null);
+  }
 
-      List<ScanResult> scanResults = wifiManager.getScanResults();
+  /**
+   * Same as above, passing `source` (scan or cached) when results are sent after a scan
+   *
+   * When the `reportSource` option is set, results are sent as {source: source, results: [...]}
+   *
+   * @param request with args JSONArray with [0] == JSONObject
+   * @param source ScanScheduler.SOURCE_SCAN, ScanScheduler.SOURCE_CACHED or null
+   * @return true
+   */
+  private boolean getScanResults(WifiRequest request, String source) {
+    CallbackContext callbackContext = request.callbackContext;
+    JSONArray data = request.args;
 
-      JSONArray returnList = new JSONArray();
+    if (cordova.hasPermission(ACCESS_FINE_LOCATION)) {
 
-      Integer numLevels = null;
+      ScanQuery query;
 
-      if (!validateData(data)) {
+      if (!validateData(callbackContext, data)) {
         callbackContext.error("GET_SCAN_RESULTS_INVALID_DATA");
         Log.d(TAG, "WifiWizard2: getScanResults invalid data");
         return false;
-      } else if (!data.isNull(0)) {
-        try {
-          JSONObject options = data.getJSONObject(0);
+      }
+
+      try {
+        query = ScanQuery.parse(data.isNull(0) ? null : data.getJSONObject(0));
+      } catch (JSONException e) {
+        e.printStackTrace();
+        callbackContext.error(e.toString());
+        return false;
+      } catch (IllegalArgumentException e) {
+        callbackContext.error(e.getMessage());
+        return false;
+      }
 
-          if (options.has("numLevels")) {
-            Integer levels = options.optInt("numLevels");
+      List<ScanResult> available = wifiManager.getScanResults();
 
-            if (levels > 0) {
-              numLevels = levels;
-            } else if (options.optBoolean("numLevels", false)) {
-              // use previous default for {numLevels: true}
-              numLevels = 5;
-            }
-          }
-        } catch (JSONException e) {
-          e.printStackTrace();
-          callbackContext.error(e.toString());
+      // History is recorded for every AP, regardless of the filters used for this call
+      recordSignalHistory(available);
+
+      // Filter, sort and limit before building any JSON
+      List<ScanResult> scanResults = query.select(available);
+
+      if (query.binary) {
+        if (query.deltaMode) {
+          callbackContext.error("BINARY_DELTA_NOT_SUPPORTED");
           return false;
         }
+
+        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, encodeScanResults(scanResults, query, source)));
+        return true;
       }
 
-      for (ScanResult scan : scanResults) {
-        /*
-         * @todo - breaking change, remove this notice when tidying new release and explain changes, e.g.:
-         *   0.y.z includes a breaking change to WifiWizard2.getScanResults().
-         *   Earlier versions set scans' level attributes to a number derived from wifiManager.calculateSignalLevel.
-         *   This update returns scans' raw RSSI value as the level, per Android spec / APIs.
-         *   If your application depends on the previous behaviour, we have added an options object that will modify behaviour:
-         *   - if `(n == true || n < 2)`, `*.getScanResults({numLevels: n})` will return data as before, split in 5 levels;
-         *   - if `(n > 1)`, `*.getScanResults({numLevels: n})` will calculate the signal level, split in n levels;
-         *   - if `(n == false)`, `*.getScanResults({numLevels: n})` will use the raw signal level;
-         */
-
-        int level;
-
-        if (numLevels == null) {
-          level = scan.level;
+      Object returnValue;
+
+      try {
+
+        if (query.deltaMode) {
+          returnValue = getScanResultsDelta(scanResults, query);
         } else {
-          level = wifiManager.calculateSignalLevel(scan.level, numLevels);
-        }
+          JSONArray returnList = new JSONArray();
 
-        JSONObject lvl = new JSONObject();
-        try {
-          lvl.put("level", level);
-          lvl.put("SSID", scan.SSID);
-          lvl.put("BSSID", scan.BSSID);
-          lvl.put("frequency", scan.frequency);
-          lvl.put("capabilities", scan.capabilities);
-          lvl.put("timestamp", scan.timestamp);
-
-          if (API_VERSION >= 23) { // Marshmallow
-            lvl.put("channelWidth", scan.channelWidth);
-            lvl.put("centerFreq0", scan.centerFreq0);
-            lvl.put("centerFreq1", scan.centerFreq1);
-          } else {
-            lvl.put("channelWidth", JSONObject.NULL);
-            lvl.put("centerFreq0", JSONObject.NULL);
-            lvl.put("centerFreq1", JSONObject.NULL);
+          for (ScanResult scan : scanResults) {
+            returnList.put(scanResultToJSON(scan, query));
           }
 
-          returnList.put(lvl);
-        } catch (JSONException e) {
-          e.printStackTrace();
-          callbackContext.error(e.toString());
-          return false;
+          returnValue = returnList;
+        }
+
+        if (query.reportSource && source != null) {
+          JSONObject result = new JSONObject();
+          result.put("source", source);
+          result.put("results", returnValue);
+          returnValue = result;
         }
+
+      } catch (JSONException e) {
+        e.printStackTrace();
+        callbackContext.error(e.toString());
+        return false;
       }
 
-      callbackContext.success(returnList);
+      if (returnValue instanceof JSONObject) {
+        callbackContext.success((JSONObject) returnValue);
+      } else {
+        callbackContext.success((JSONArray) returnValue);
+      }
       return true;
 
     } else {
 
-      requestLocationPermission(SCAN_RESULTS_CODE);
+      requestLocationPermission(request);
         return true;
     }
 
   }
 
+  /**
+   * Get channel congestion and recommended channels per band, computed from the current scan results
+   *
+   * Accepts the same filter options as getScanResults (ssidPrefix, minLevel, band, ...), so networks can be
+   * excluded from the analysis (e.g. our own APs)
+   *
+   * @param request with args JSONArray with [0] == JSONObject (or null)
+   * @return true
+   */
+  private boolean getChannelAnalysis(WifiRequest request) {
+    CallbackContext callbackContext = request.callbackContext;
+    JSONArray data = request.args;
+
+    if (!cordova.hasPermission(ACCESS_FINE_LOCATION)) {
+      requestLocationPermission(request);
+      return true;
+    }
+
+    try {
+      ScanQuery query = ScanQuery.parse(data == null || data.isNull(0) ? null : data.getJSONObject(0));
+
+      List<ScanResult> available = wifiManager.getScanResults();
+      recordSignalHistory(available);
+
+      callbackContext.success(channelAnalyzer.analyze(query.select(available)));
+      return true;
+
+    } catch (JSONException e) {
+      e.printStackTrace();
+      callbackContext.error(e.toString());
+    } catch (IllegalArgumentException e) {
+      callbackContext.error(e.getMessage());
+    }
+
+    return false;
+  }
+
+  /**
+   * Add levels from scan results to the signal history
+   *
+   * Results that were already recorded (same BSSID and timestamp) are skipped by SignalHistory, so calling this
+   * with the same cached results more than once does not skew the statistics.
+   */
+  private void recordSignalHistory(List<ScanResult> scanResults) {
+    long now = SystemClock.elapsedRealtime();
+
+    for (ScanResult scan : scanResults) {
+      // ScanResult.timestamp is in microseconds since boot
+      long seen = scan.timestamp > 0 ? scan.timestamp / 1000 : now;
+      signalHistory.record(scan.BSSID, scan.SSID, scan.level, seen);
+    }
+
+    signalHistory.evict(now);
+  }
+
+  /**
+   * Get RSSI statistics for BSSIDs seen in previous scan results
+   *
+   * Options (all optional): {bssids: ["aa:bb:cc:dd:ee:ff", ...], alpha: 0.3, samples: false}
+   * Result: [{BSSID, SSID, samples, last, smoothed, min, max, mean, variance, trend, age, levels?}, ...]
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == JSONObject (or null)
+   */
+  private void getSignalHistory(CallbackContext callbackContext, JSONArray data) {
+    List<String> bssids = null;
+    double alpha = SignalHistory.DEFAULT_ALPHA;
+    boolean includeSamples = false;
+
+    try {
+      JSONObject options = data == null || data.isNull(0) ? null : data.getJSONObject(0);
+
+      if (options != null) {
+        if (!options.isNull("bssids")) {
+          JSONArray list = options.getJSONArray("bssids");
+          bssids = new ArrayList<String>();
+          for (int i = 0; i < list.length(); i++) {
+            bssids.add(list.getString(i).toLowerCase(Locale.US));
+          }
+        }
+
+        alpha = options.optDouble("alpha", SignalHistory.DEFAULT_ALPHA);
+        includeSamples = options.optBoolean("samples", false);
+      }
+    } catch (JSONException e) {
+      callbackContext.error(e.toString());
+      return;
+    }
+
+    if (!(alpha > 0 && alpha <= 1)) {
+      callbackContext.error("INVALID_ALPHA");
+      return;
+    }
+
+    long now = SystemClock.elapsedRealtime();
+
+    try {
+      JSONArray returnList = new JSONArray();
+
+      for (SignalHistory.Stats stats : signalHistory.query(bssids, alpha, now)) {
+        JSONObject entry = new JSONObject();
+        entry.put("BSSID", stats.bssid);
+        entry.put("SSID", stats.ssid);
+        entry.put("samples", stats.samples);
+        entry.put("last", stats.last);
+        entry.put("smoothed", stats.ewma);
+        entry.put("min", stats.min);
+        entry.put("max", stats.max);
+        entry.put("mean", stats.mean);
+        entry.put("variance", stats.variance);
+        entry.put("trend", stats.trend);
+        entry.put("age", Math.max(0, now - stats.lastSeen));
+
+        if (includeSamples) {
+          JSONArray levels = new JSONArray();
+          for (int level : stats.levels) {
+            levels.put(level);
+          }
+          entry.put("levels", levels);
+        }
+
+        returnList.put(entry);
+      }
+
+      callbackContext.success(returnList);
+    } catch (JSONException e) {
+      callbackContext.error(e.toString());
+    }
+  }
+
+  /**
+   * Build delta of scan results since the snapshot for token `since`
+   *
+   * Result format: {token: "...", reset: bool, added: [...], changed: [...], removed: ["BSSID", ...]}
+   * When `since` is missing or unknown, reset is true and all results are in added.
+   */
+  private JSONObject getScanResultsDelta(List<ScanResult> scanResults, ScanQuery query) throws JSONException {
+
+    ScanDeltaTracker.Delta delta = scanDeltas.diff(query.since, scanResults, query.rssiThreshold);
+
+    JSONArray added = new JSONArray();
+    for (ScanResult scan : delta.added) {
+      added.put(scanResultToJSON(scan, query));
+    }
+
+    JSONArray changed = new JSONArray();
+    for (ScanResult scan : delta.changed) {
+      changed.put(scanResultToJSON(scan, query));
+    }
+
+    JSONArray removed = new JSONArray();
+    for (String bssid : delta.removed) {
+      removed.put(bssid);
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("token", delta.token);
+    result.put("reset", delta.reset);
+    result.put("added", added);
+    result.put("changed", changed);
+    result.put("removed", removed);
+
+    return result;
+  }
+
+  /**
+   * Encode scan results in the compact binary format (see ScanResultEncoder), `fields` is ignored
+   *
+   * @param scanResults
+   * @param query
+   * @param source ScanScheduler.SOURCE_SCAN, ScanScheduler.SOURCE_CACHED or null
+   */
+  private byte[] encodeScanResults(List<ScanResult> scanResults, ScanQuery query, String source) {
+    int flags = 0;
+
+    if (query.numLevels != null) {
+      flags |= ScanResultEncoder.FLAG_CALCULATED_LEVELS;
+    }
+
+    if (ScanScheduler.SOURCE_SCAN.equals(source)) {
+      flags |= ScanResultEncoder.FLAG_SOURCE_SCAN;
+    } else if (ScanScheduler.SOURCE_CACHED.equals(source)) {
+      flags |= ScanResultEncoder.FLAG_SOURCE_CACHED;
+    }
+
+    boolean marshmallow = API_VERSION >= 23;
+
+    synchronized (scanEncoder) {
+      scanEncoder.reset();
+
+      for (ScanResult scan : scanResults) {
+        int level = query.numLevels == null ? scan.level : wifiManager.calculateSignalLevel(scan.level, query.numLevels);
+
+        scanEncoder.add(scan.SSID, scan.BSSID, scan.capabilities, level, scan.frequency,
+            marshmallow ? scan.channelWidth : -1,
+            marshmallow ? scan.centerFreq0 : 0,
+            marshmallow ? scan.centerFreq1 : 0,
+            scan.timestamp);
+      }
+
+      return scanEncoder.encode(flags);
+    }
+  }
+
+  /**
+   * Convert ScanResult to JSONObject, with only the fields requested in query
+   *
+   * @param scan
+   * @param query
+   */
+  private JSONObject scanResultToJSON(ScanResult scan, ScanQuery query) throws JSONException {
+    /*
+     * @todo - breaking change, remove this notice when tidying new release and explain changes, e.g.:
+     *   0.y.z includes a breaking change to WifiWizard2.getScanResults().
+     *   Earlier versions set scans' level attributes to a number derived from wifiManager.calculateSignalLevel.
+     *   This update returns scans' raw RSSI value as the level, per Android spec / APIs.
+     *   If your application depends on the previous behaviour, we have added an options object that will modify behaviour:
+     *   - if `(n == true || n < 2)`, `*.getScanResults({numLevels: n})` will return data as before, split in 5 levels;
+     *   - if `(n > 1)`, `*.getScanResults({numLevels: n})` will calculate the signal level, split in n levels;
+     *   - if `(n == false)`, `*.getScanResults({numLevels: n})` will use the raw signal level;
+     */
+
+    JSONObject lvl = new JSONObject();
+
+    if (query.hasField(ScanQuery.FIELD_LEVEL)) {
+      if (query.numLevels == null) {
+        lvl.put("level", scan.level);
+      } else {
+        lvl.put("level", wifiManager.calculateSignalLevel(scan.level, query.numLevels));
+      }
+    }
+
+    if (query.hasField(ScanQuery.FIELD_SSID)) {
+      lvl.put("SSID", scan.SSID);
+    }
+    if (query.hasField(ScanQuery.FIELD_BSSID)) {
+      lvl.put("BSSID", scan.BSSID);
+    }
+    if (query.hasField(ScanQuery.FIELD_FREQUENCY)) {
+      lvl.put("frequency", scan.frequency);
+    }
+    if (query.hasField(ScanQuery.FIELD_CAPABILITIES)) {
+      lvl.put("capabilities", scan.capabilities);
+    }
+    if (query.hasField(ScanQuery.FIELD_TIMESTAMP)) {
+      lvl.put("timestamp", scan.timestamp);
+    }
+
+    boolean marshmallow = API_VERSION >= 23; // Marshmallow
+
+    if (query.hasField(ScanQuery.FIELD_CHANNEL_WIDTH)) {
+      lvl.put("channelWidth", marshmallow ? scan.channelWidth : JSONObject.NULL);
+    }
+    if (query.hasField(ScanQuery.FIELD_CENTER_FREQ0)) {
+      lvl.put("centerFreq0", marshmallow ? scan.centerFreq0 : JSONObject.NULL);
+    }
+    if (query.hasField(ScanQuery.FIELD_CENTER_FREQ1)) {
+      lvl.put("centerFreq1", marshmallow ? scan.centerFreq1 : JSONObject.NULL);
+    }
+    if (query.hasField(ScanQuery.FIELD_SECURITY)) {
+      lvl.put("security", CapabilitiesParser.parse(scan.capabilities).toJSON());
+    }
+
+    return lvl;
+  }
+
   /**
    * This method uses the callbackContext.success method. It starts a wifi scanning
    *
+   * Success is called with SCAN_STARTED, SCAN_IN_PROGRESS (joined a scan already running) or
+   * SCAN_THROTTLED (scan budget spent, getScanResults will return the last results)
+   *
    * @param callbackContext A Cordova callback context
    * @return true if started was successful
    */
   private boolean startScan(CallbackContext callbackContext) {
 
-    if (wifiManager.startScan()) {
-      callbackContext.success();
-      return true;
-    } else {
-      callbackContext.error("STARTSCAN_FAILED");
-      return false;
+    switch (scanScheduler.startScan()) {
+      case ScanScheduler.SCAN_STARTED:
+        callbackContext.success("SCAN_STARTED");
+        return true;
+      case ScanScheduler.SCAN_JOINED:
+        callbackContext.success("SCAN_IN_PROGRESS");
+        return true;
+      case ScanScheduler.SCAN_THROTTLED:
+        callbackContext.success("SCAN_THROTTLED");
+        return true;
+      default:
+        callbackContext.error("STARTSCAN_FAILED");
+        return false;
     }
   }
 
@@ -1106,14 +2144,14 @@ public class WifiWizard2 extends CordovaPlugin {
   private int getConnectedNetId() {
     int networkId = -1;
 
-    WifiInfo info = wifiManager.getConnectionInfo();
+    ConnectionCache.Snapshot connection = connectionCache.get();
 
-    if (info == null) {
+    if (connection == null) {
       Log.d(TAG, "Unable to read wifi info");
       return networkId;
     }
 
-    networkId = info.getNetworkId();
+    networkId = connection.networkId;
 
     if (networkId == -1) {
       Log.d(TAG, "NO_CURRENT_NETWORK_FOUND");
@@ -1132,7 +2170,7 @@ public class WifiWizard2 extends CordovaPlugin {
   private boolean getSSIDNetworkID(CallbackContext callbackContext, JSONArray data) {
     Log.d(TAG, "WifiWizard2: getSSIDNetworkID entered.");
 
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("GET_SSID_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: getSSIDNetworkID invalid data.");
       return false;
@@ -1175,55 +2213,57 @@ public class WifiWizard2 extends CordovaPlugin {
   /**
    * This method retrieves the SSID for the currently connected network
    *
-   * @param callbackContext A Cordova callback context
+   * @param request
    * @return true if SSID found, false if not.
    */
-  private boolean getConnectedSSID(CallbackContext callbackContext) {
-    return getWifiServiceInfo(callbackContext, false);
+  private boolean getConnectedSSID(WifiRequest request) {
+    return getWifiServiceInfo(request, false);
   }
 
   /**
    * This method retrieves the BSSID for the currently connected network
    *
-   * @param callbackContext A Cordova callback context
+   * @param request
    * @return true if SSID found, false if not.
    */
-  private boolean getConnectedBSSID(CallbackContext callbackContext) {
-    return getWifiServiceInfo(callbackContext, true);
+  private boolean getConnectedBSSID(WifiRequest request) {
+    return getWifiServiceInfo(request, true);
   }
 
   /**
    * This method retrieves the WifiInformation for the (SSID or BSSID) currently connected network.
    *
-   * @param callbackContext A Cordova callback context
+   * @param request
    * @param basicIdentifier A flag to get BSSID if true or SSID if false.
    * @return true if SSID found, false if not.
    */
-  private boolean getWifiServiceInfo(CallbackContext callbackContext, boolean basicIdentifier) {    
+  private boolean getWifiServiceInfo(WifiRequest request, boolean basicIdentifier) {
+    CallbackContext callbackContext = request.callbackContext;
+
     if (API_VERSION >= 23 && !cordova.hasPermission(ACCESS_FINE_LOCATION)) { //Android 9 (Pie) or newer
-      requestLocationPermission(WIFI_SERVICE_INFO_CODE);
-      bssidRequested = basicIdentifier;
+      // The request is replayed once permission is granted, so SSID or BSSID is decided by its action again
+      requestLocationPermission(request);
       return true;
     } else {
-      WifiInfo info = wifiManager.getConnectionInfo();
+      ConnectionCache.Snapshot connection = connectionCache.get();
 
-      if (info == null) {
+      if (connection == null) {
         callbackContext.error("UNABLE_TO_READ_WIFI_INFO");
         return false;
       }
   
       // Only return SSID or BSSID when actually connected to a network
-      SupplicantState state = info.getSupplicantState();
-      if (!state.equals(SupplicantState.COMPLETED)) {
+      SupplicantState state = connection.supplicantState;
+      if (!SupplicantState.COMPLETED.equals(state)) {
         callbackContext.error("CONNECTION_NOT_COMPLETED");
         return false;
       }
   
       String serviceInfo;
       if (basicIdentifier) {
-        serviceInfo = info.getBSSID();
+        serviceInfo = connection.bssid;
       } else {
-        serviceInfo = info.getSSID();
+        serviceInfo = connection.ssid;
       }
   
       if (serviceInfo == null || serviceInfo.isEmpty() || serviceInfo == "0x") {
@@ -1241,6 +2281,205 @@ public class WifiWizard2 extends CordovaPlugin {
     }
   }
 
+  /**
+   * Subscribe to WiFi events, sent on callbackContext (kept open) until unsubscribe
+   *
+   * Options (all optional): {events: ["connected", "rssi", ...], coalesce: 500}
+   * The first result is {type: "subscribed", subscriptionId}, followed by {type, time, ...} events
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == JSONObject (or null)
+   */
+  private void subscribe(CallbackContext callbackContext, JSONArray data) throws JSONException {
+    JSONObject options = data.optJSONObject(0);
+    Set<String> types = null;
+    int coalesce = 0;
+
+    if (options != null) {
+      JSONArray events = options.optJSONArray("events");
+
+      if (events != null) {
+        types = new HashSet<String>();
+        List<String> known = Arrays.asList(EventHub.EVENT_TYPES);
+
+        for (int i = 0; i < events.length(); i++) {
+          String type = events.optString(i);
+
+          if (!known.contains(type)) {
+            callbackContext.error("SUBSCRIBE_INVALID_EVENT");
+            return;
+          }
+          types.add(type);
+        }
+      }
+
+      coalesce = options.optInt("coalesce", 0);
+    }
+
+    int id = eventHub.subscribe(callbackContext, types, coalesce);
+    Log.d(TAG, "WifiWizard2: subscription " + id + " added");
+  }
+
+  /**
+   * End a subscription, its callback receives a final {type: "unsubscribed"} event
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == subscription ID
+   */
+  private void unsubscribe(CallbackContext callbackContext, JSONArray data) {
+    if (!validateData(callbackContext, data)) {
+      callbackContext.error("UNSUBSCRIBE_INVALID_DATA");
+      return;
+    }
+
+    if (eventHub.unsubscribe(data.optInt(0, -1))) {
+      callbackContext.success("UNSUBSCRIBED");
+    } else {
+      callbackContext.error("SUBSCRIPTION_NOT_FOUND");
+    }
+  }
+
+  /**
+   * Start monitoring router (and optionally internet) latency, jitter and loss, events are sent on callbackContext
+   * (kept open) until stopLinkMonitor
+   *
+   * Options (all optional): {interval: 1000, timeout: 1000, window: 60, gatewayPort: 53, internet: "8.8.8.8:53",
+   * thresholds: {rtt: 100, jitter: 30, loss: 0.1}, reportInterval: 0, pauseInBackground: true}
+   * The first result is {type: "started"}, followed by "degraded", "recovered", "stats", "paused" and "resumed"
+   * events. Starting again replaces the running monitor.
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == JSONObject (or null)
+   */
+  private void startLinkMonitor(CallbackContext callbackContext, JSONArray data) throws JSONException {
+    LinkQualityMonitor.Options options;
+
+    try {
+      options = new LinkQualityMonitor.Options(data.optJSONObject(0));
+    } catch (IllegalArgumentException e) {
+      callbackContext.error(e.getMessage());
+      return;
+    }
+
+    linkMonitor.start(callbackContext, options);
+    Log.d(TAG, "WifiWizard2: link monitor started, every " + options.interval + "ms");
+  }
+
+  /**
+   * Stop the link monitor, its callback receives a final {type: "stopped"} event
+   *
+   * @param callbackContext A Cordova callback context
+   */
+  private void stopLinkMonitor(CallbackContext callbackContext) {
+    if (linkMonitor.stop()) {
+      callbackContext.success("LINK_MONITOR_STOPPED");
+    } else {
+      callbackContext.error("LINK_MONITOR_NOT_RUNNING");
+    }
+  }
+
+  /**
+   * Send the link monitor's current statistics
+   *
+   * @param callbackContext A Cordova callback context
+   */
+  private void getLinkQuality(CallbackContext callbackContext) throws JSONException {
+    JSONObject stats = linkMonitor.getStats();
+
+    if (stats == null) {
+      callbackContext.error("LINK_MONITOR_NOT_RUNNING");
+    } else {
+      callbackContext.success(stats);
+    }
+  }
+
+  /**
+   * Send everything known about the current WiFi connection in a single result
+   *
+   * Read from the connection cache, WiFi is not enabled and location permission is not requested: SSID and BSSID
+   * are null without location permission (Android redacts them), and fields that are not known are null.
+   *
+   * @param callbackContext A Cordova callback context
+   */
+  private void getNetworkStatus(CallbackContext callbackContext) throws JSONException {
+    ConnectionCache.Snapshot connection = connectionCache.get();
+
+    if (connection == null) {
+      callbackContext.error("UNABLE_TO_READ_WIFI_INFO");
+      return;
+    }
+
+    boolean locationPermission = API_VERSION < 23 || cordova.hasPermission(ACCESS_FINE_LOCATION);
+    boolean connected = SupplicantState.COMPLETED.equals(connection.supplicantState);
+
+    JSONObject result = new JSONObject();
+    result.put("enabled", wifiState.isEnabled());
+    result.put("connected", connected);
+    result.put("locationPermission", locationPermission);
+    result.put("supplicantState", connection.supplicantState == null ? JSONObject.NULL : connection.supplicantState.toString());
+
+    String ssid = locationPermission && connected ? unquote(connection.ssid) : null;
+    String bssid = locationPermission && connected ? connection.bssid : null;
+
+    // Returned instead of the real values when they are redacted
+    if ("<unknown ssid>".equals(ssid)) {
+      ssid = null;
+    }
+    if ("02:00:00:00:00:00".equals(bssid)) {
+      bssid = null;
+    }
+
+    result.put("SSID", ssid == null ? JSONObject.NULL : ssid);
+    result.put("BSSID", bssid == null ? JSONObject.NULL : bssid);
+    result.put("networkId", connection.networkId);
+    result.put("rssi", connected ? connection.rssi : JSONObject.NULL);
+    result.put("linkSpeed", connected && connection.linkSpeed > 0 ? connection.linkSpeed : JSONObject.NULL);
+    result.put("frequency", connected && connection.frequency > 0 ? connection.frequency : JSONObject.NULL);
+
+    boolean hasIP = connection.ip != null && !connection.ip.equals("0.0.0.0");
+    result.put("ip", hasIP ? connection.ip : JSONObject.NULL);
+    result.put("subnet", hasIP && !connection.subnet.isEmpty() ? connection.subnet : JSONObject.NULL);
+    result.put("prefixLength", hasIP && connection.prefixLength >= 0 ? connection.prefixLength : JSONObject.NULL);
+    result.put("gateway", hasIP && connection.gateway != null && !connection.gateway.equals("0.0.0.0")
+        ? connection.gateway : JSONObject.NULL);
+    result.put("dns", new JSONArray(hasIP ? connection.dnsServers : new ArrayList<String>()));
+    result.put("leaseDuration", hasIP && connection.leaseDuration > 0 ? connection.leaseDuration : JSONObject.NULL);
+
+    NetworkCapabilities capabilities = connectionCache.getCapabilities();
+    if (capabilities == null && connection.network != null) {
+      capabilities = connectivityManager.getNetworkCapabilities(connection.network);
+    }
+
+    if (capabilities != null && connected) {
+      JSONObject networkCapabilities = new JSONObject();
+      networkCapabilities.put("internet", capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET));
+      networkCapabilities.put("validated", API_VERSION >= 23
+          && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED));
+      networkCapabilities.put("captivePortal", API_VERSION >= 23
+          && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL));
+      networkCapabilities.put("metered", !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+      networkCapabilities.put("notRestricted", capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED));
+      result.put("capabilities", networkCapabilities);
+    } else {
+      result.put("capabilities", JSONObject.NULL);
+    }
+
+    Network bound = null;
+    if (API_VERSION >= 23) {
+      bound = connectivityManager.getBoundNetworkForProcess();
+    } else if (API_VERSION >= 21) {
+      bound = ConnectivityManager.getProcessDefaultNetwork();
+    }
+
+    JSONObject bindAll = new JSONObject();
+    bindAll.put("requested", desired != null);
+    bindAll.put("bound", bound != null);
+    bindAll.put("boundToWifi", bound != null && bound.equals(connection.network));
+    result.put("bindAll", bindAll);
+
+    callbackContext.success(result);
+  }
+
   /**
    * This method retrieves the current WiFi status
    *
@@ -1248,13 +2487,13 @@ public class WifiWizard2 extends CordovaPlugin {
    * @return true if WiFi is enabled, fail will be called if not.
    */
   private boolean isWifiEnabled(CallbackContext callbackContext) {
-    boolean isEnabled = wifiManager.isWifiEnabled();
+    boolean isEnabled = wifiState.isEnabled();
     callbackContext.success(isEnabled ? "1" : "0");
     return isEnabled;
   }
 
   /**
-   * This method takes a given String, searches the current list of configured WiFi networks, and
+   * This method takes a given String, looks it up in the configured networks index, and
    * returns the networkId for the network if the SSID matches. If not, it returns -1.
    */
   private int ssidToNetworkId(String ssid) {
@@ -1267,17 +2506,7 @@ public class WifiWizard2 extends CordovaPlugin {
 
     } catch (NumberFormatException e) {
 
-      List<WifiConfiguration> currentNetworks = wifiManager.getConfiguredNetworks();
-      int networkId = -1;
-
-      // For each network in the list, compare the SSID with the given one
-      for (WifiConfiguration test : currentNetworks) {
-        if (test.SSID != null && test.SSID.equals(ssid)) {
-          networkId = test.networkId;
-        }
-      }
-
-      return networkId;
+      return configuredNetworks.networkIdFor(ssid);
 
     }
   }
@@ -1286,7 +2515,7 @@ public class WifiWizard2 extends CordovaPlugin {
    * This method enables or disables the wifi
    */
   private boolean setWifiEnabled(CallbackContext callbackContext, JSONArray data) {
-    if (!validateData(data)) {
+    if (!validateData(callbackContext, data)) {
       callbackContext.error("SETWIFIENABLED_INVALID_DATA");
       Log.d(TAG, "WifiWizard2: setWifiEnabled invalid data");
       return false;
@@ -1319,93 +2548,57 @@ public class WifiWizard2 extends CordovaPlugin {
    */
   private boolean verifyWifiEnabled() {
 
-    Log.d(TAG, "WifiWizard2: verifyWifiEnabled entered.");
+    if (wifiState.isEnabled()) {
+      return true;
+    }
 
-    if (!wifiManager.isWifiEnabled()) {
+    Log.d(TAG, "WifiWizard2: verifyWifiEnabled entered.");
 
+    // Another call may have started enabling it already
+    if (!wifiState.isEnabling()) {
       Log.i(TAG, "Enabling wi-fi...");
 
-      if (wifiManager.setWifiEnabled(true)) {
-        Log.i(TAG, "Wi-fi enabled");
-      } else {
+      if (!wifiManager.setWifiEnabled(true)) {
         Log.e(TAG, "VERIFY_ERROR_ENABLE_WIFI");
         return false;
       }
+    }
 
-      // This happens very quickly, but need to wait for it to enable. A little busy wait?
-      int count = 0;
-
-      while (!wifiManager.isWifiEnabled()) {
-        if (count >= 10) {
-          Log.i(TAG, "Took too long to enable wi-fi, quitting");
-          return false;
-        }
-
-        Log.i(TAG, "Still waiting for wi-fi to enable...");
-
-        try {
-          Thread.sleep(1000L);
-        } catch (InterruptedException ie) {
-          // continue
-        }
-
-        count++;
+    try {
+      if (wifiState.awaitEnabled(WIFI_ENABLE_TIMEOUT)) {
+        Log.i(TAG, "Wi-fi enabled");
+        return true;
       }
-
-      // If we make it this far, wifi should be enabled by now
-      return true;
-
-    } else {
-
-      return true;
-
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     }
 
+    Log.i(TAG, "Took too long to enable wi-fi, quitting");
+    return false;
   }
 
   /**
-   * Format and return WiFi IPv4 Address
+   * Format and return WiFi IPv4 Address and subnet (from the connection cache)
    * @return
    */
   private String[] getWiFiIPAddress() {
-    WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-    int ip = wifiInfo.getIpAddress();
+    ConnectionCache.Snapshot connection = connectionCache.get();
 
-    String ipString = formatIP(ip);
-    String subnet = "";
-
-    try {
-        InetAddress inetAddress = InetAddress.getByName(ipString);
-        subnet = getIPv4Subnet(inetAddress);
-    } catch (Exception e) {
+    if (connection == null) {
+      return new String[]{null, ""};
     }
 
-    return new String[]{ipString, subnet};
+    return new String[]{connection.ip, connection.subnet};
   }
 
   /**
-   * Get WiFi Router IP from DHCP
+   * Get WiFi Router IP (from the connection cache)
    * @return
    */
   private String getWiFiRouterIP() {
-    DhcpInfo dhcp = wifiManager.getDhcpInfo();
-    int ip = dhcp.gateway;
-    return formatIP(ip);
-  }
-
-  /**
-   * Format IPv4 Address
-   * @param ip
-   * @return
-   */
-  private String formatIP(int ip) {
-    return String.format(
-        "%d.%d.%d.%d",
-        (ip & 0xff),
-        (ip >> 8 & 0xff),
-        (ip >> 16 & 0xff),
-        (ip >> 24 & 0xff)
-    );
+    ConnectionCache.Snapshot connection = connectionCache.get();
+    return connection == null ? null : connection.gateway;
   }
 
   /**
@@ -1451,7 +2644,7 @@ public class WifiWizard2 extends CordovaPlugin {
   /**
    * Validate JSON data
    */
-  private boolean validateData(JSONArray data) {
+  private boolean validateData(CallbackContext callbackContext, JSONArray data) {
     try {
       if (data == null || data.get(0) == null) {
         callbackContext.error("DATA_IS_NULL");
@@ -1465,11 +2658,12 @@ public class WifiWizard2 extends CordovaPlugin {
   }
 
   /**
-   * Request ACCESS_FINE_LOCATION Permission
-   * @param requestCode
+   * Request ACCESS_FINE_LOCATION Permission, request is replayed once granted
+   * @param request
    */
-  protected void requestLocationPermission(int requestCode) {
-    cordova.requestPermission(this, requestCode, ACCESS_FINE_LOCATION);
+  protected void requestLocationPermission(WifiRequest request) {
+    permissionRequests.put(request.id, request);
+    cordova.requestPermission(this, request.id, ACCESS_FINE_LOCATION);
   }
 
   /**
@@ -1478,40 +2672,38 @@ public class WifiWizard2 extends CordovaPlugin {
   public void onRequestPermissionResult(int requestCode, String[] permissions, int[] grantResults)
       throws JSONException {
 
+    WifiRequest request = permissionRequests.remove(requestCode);
+
+    if (request == null) {
+      Log.d(TAG, "WifiWizard2: permission result for unknown request " + requestCode);
+      return;
+    }
+
+    // An empty result means the prompt was cancelled, replaying would just prompt again
+    if (grantResults.length == 0) {
+      request.callbackContext.error( "PERMISSION_DENIED" );
+      return;
+    }
+
     for (int r : grantResults) {
       if (r == PackageManager.PERMISSION_DENIED) {
-        callbackContext.error( "PERMISSION_DENIED" );
+        request.callbackContext.error( "PERMISSION_DENIED" );
         return;
       }
     }
 
-    switch (requestCode) {
-      case SCAN_RESULTS_CODE:
-        getScanResults(callbackContext, passedData); // Call method again after permissions approved
-        break;
-      case SCAN_CODE:
-        scan(callbackContext, passedData); // Call method again after permissions approved
-        break;
-      case LOCATION_REQUEST_CODE:
-        callbackContext.success("PERMISSION_GRANTED");
-        break;
-      case WIFI_SERVICE_INFO_CODE:
-        getWifiServiceInfo(callbackContext, bssidRequested);
-        break;
-    }
+    // SSID and BSSID were redacted in a connection read without the permission
+    connectionCache.invalidate();
+
+    // Call method again after permissions approved
+    execute(request);
   }
 
   /**
    * Figure out what the highest priority network in the network list is and return that priority
    */
-  private static int getMaxWifiPriority(final WifiManager wifiManager) {
-    final List<WifiConfiguration> configurations = wifiManager.getConfiguredNetworks();
-    int maxPriority = 0;
-    for (WifiConfiguration config : configurations) {
-      if (config.priority > maxPriority) {
-        maxPriority = config.priority;
-      }
-    }
+  private int getMaxWifiPriority() {
+    int maxPriority = configuredNetworks.getMaxPriority();
 
     Log.d(TAG, "WifiWizard: Found max WiFi priority of "
         + maxPriority);
@@ -1519,14 +2711,323 @@ public class WifiWizard2 extends CordovaPlugin {
     return maxPriority;
   }
 
+  /**
+   * Probe a host and send the result with its round trip time
+   *
+   * Options: {host: "192.168.1.1", type: "tcp" | "udp" | "reachable" | "http", port: 53, url: "http://...",
+   * method: "HEAD", timeout: 3000, network: "wifi"}
+   * host defaults to the router IP and url to the configured probe URL, network "wifi" sends the probe over WiFi
+   * even when it is not the default network (Android 6+).
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == JSONObject (or null)
+   */
+  private void probe(CallbackContext callbackContext, JSONArray data) throws JSONException {
+    JSONObject options = data.optJSONObject(0);
+    if (options == null) {
+      options = new JSONObject();
+    }
+
+    String type = options.optString("type", ProbeEngine.TYPE_TCP);
+    Network network = null;
+
+    if ("wifi".equals(options.optString("network", null))) {
+      ConnectionCache.Snapshot connection = connectionCache.get();
+
+      if (API_VERSION < 23 || connection == null || connection.network == null) {
+        callbackContext.error("WIFI_NETWORK_NOT_AVAILABLE");
+        return;
+      }
+      network = connection.network;
+    }
+
+    if (TYPE_HTTP.equals(type)) {
+      httpProbe(callbackContext, options, network);
+      return;
+    }
+
+    String host = options.optString("host", null);
+    int port = options.optInt("port", -1);
+    int timeout = options.optInt("timeout", ProbeEngine.DEFAULT_TIMEOUT);
+
+    if (host == null || host.isEmpty()) {
+      host = getWiFiRouterIP();
+      if (host == null || host.equals("0.0.0.0")) {
+        callbackContext.error("NO_VALID_ROUTER_IP_FOUND");
+        return;
+      }
+    }
+
+    boolean needsPort = ProbeEngine.TYPE_TCP.equals(type) || ProbeEngine.TYPE_UDP.equals(type);
+    if ((needsPort && (port < 1 || port > 65535)) || (!needsPort && !ProbeEngine.TYPE_REACHABLE.equals(type))) {
+      callbackContext.error("PROBE_INVALID_DATA");
+      return;
+    }
+
+    ProbeEngine engine = network == null ? probeEngine : new ProbeEngine(networkBinder(network));
+
+    ProbeEngine.Result result = engine.run(new ProbeEngine.Probe(type, host, needsPort ? port : -1, timeout));
+    Log.d(TAG, "WifiWizard2: probe " + result);
+    callbackContext.success(result.toJSON());
+  }
+
+  private void httpProbe(CallbackContext callbackContext, JSONObject options, Network network) throws JSONException {
+    String method = options.optString("method", HttpProbe.METHOD_HEAD).toUpperCase(Locale.US);
+    int timeout = options.optInt("timeout", HttpProbe.DEFAULT_TIMEOUT);
+    URL url = probeUrl;
+
+    if (!method.equals(HttpProbe.METHOD_HEAD) && !method.equals(HttpProbe.METHOD_GET)) {
+      callbackContext.error("PROBE_INVALID_DATA");
+      return;
+    }
+
+    if (options.has("url")) {
+      try {
+        url = new URL(options.getString("url"));
+      } catch (MalformedURLException e) {
+        callbackContext.error("PROBE_INVALID_URL");
+        return;
+      }
+    }
+
+    HttpProbe probe = network == null ? httpProbe : new HttpProbe(networkConnectionFactory(network));
+
+    HttpProbe.Result result = probe.run(url, method, timeout);
+    Log.d(TAG, "WifiWizard2: probe " + result);
+    callbackContext.success(result.toJSON());
+  }
+
+  /**
+   * Opens HTTP connections over network
+   */
+  private static HttpProbe.ConnectionFactory networkConnectionFactory(final Network network) {
+    return new HttpProbe.ConnectionFactory() {
+      public HttpURLConnection open(URL url) throws IOException {
+        return (HttpURLConnection) network.openConnection(url);
+      }
+    };
+  }
+
+  /**
+   * Binds probe sockets to network (Marshmallow, API 23+)
+   */
+  private static ProbeEngine.SocketBinder networkBinder(final Network network) {
+    return new ProbeEngine.SocketBinder() {
+      public void bind(Socket socket) throws IOException {
+        network.bindSocket(socket);
+      }
+
+      public void bind(DatagramSocket socket) throws IOException {
+        network.bindSocket(socket);
+      }
+    };
+  }
+
+  /**
+   * Race internet endpoints and send which one answered first, with each endpoint's result
+   *
+   * Options: {endpoints: ["8.8.8.8:53", "udp://1.1.1.1:53", "http://..."], timeout: 3000, network: "wifi"}
+   * endpoints default to the isConnectedToInternet endpoints, timeout to the default of each endpoint type.
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == JSONObject (or null)
+   */
+  private void checkInternet(CallbackContext callbackContext, JSONArray data) throws JSONException {
+    JSONObject options = data.optJSONObject(0);
+    if (options == null) {
+      options = new JSONObject();
+    }
+
+    List<InternetCheck.Endpoint> endpoints = internetEndpoints;
+    Network network = null;
+
+    if (options.has("endpoints")) {
+      try {
+        endpoints = InternetCheck.parseAll(options.optJSONArray("endpoints"), options.optInt("timeout", 0));
+      } catch (IllegalArgumentException e) {
+        callbackContext.error("CHECK_INTERNET_INVALID_ENDPOINT");
+        return;
+      }
+    } else if (options.has("timeout")) {
+      endpoints = new ArrayList<InternetCheck.Endpoint>();
+      for (InternetCheck.Endpoint endpoint : internetEndpoints) {
+        endpoints.add(InternetCheck.parse(endpoint.spec, options.optInt("timeout", 0)));
+      }
+    }
+
+    if ("wifi".equals(options.optString("network", null))) {
+      ConnectionCache.Snapshot connection = connectionCache.get();
+
+      if (API_VERSION < 23 || connection == null || connection.network == null) {
+        callbackContext.error("WIFI_NETWORK_NOT_AVAILABLE");
+        return;
+      }
+      network = connection.network;
+    }
+
+    ProbeEngine engine = network == null ? probeEngine : new ProbeEngine(networkBinder(network));
+    HttpProbe http = network == null ? httpProbe : new HttpProbe(networkConnectionFactory(network));
+
+    try {
+      InternetCheck.Result result = internetCheck.run(endpoints, engine, http);
+      Log.d(TAG, "WifiWizard2: checkInternet, " + result);
+      callbackContext.success(result.toJSON());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      callbackContext.error("INTERRUPTED");
+    }
+  }
+
+  /**
+   * Download from and/or upload to an HTTP endpoint over the WiFi network, and send the throughput
+   *
+   * Options: {url: "http://...", uploadUrl: url, direction: "download" | "upload" | "both", bytes: 10000000,
+   * timeout: 10000, duration: 15000, sampleInterval: 250, network: "wifi" | "default"}
+   * The transfer goes over the WiFi Network even when it is not the default network (e.g. WiFi without internet
+   * and bindAll not requested), unless network is "default".  One measurement runs at a time, calling again while
+   * one runs fails with THROUGHPUT_BUSY.
+   *
+   * @param callbackContext A Cordova callback context
+   * @param data JSONArray with [0] == JSONObject
+   */
+  private void measureThroughput(CallbackContext callbackContext, JSONArray data) throws JSONException {
+    JSONObject options = data.optJSONObject(0);
+
+    if (options == null || !options.has("url")) {
+      callbackContext.error("THROUGHPUT_INVALID_DATA");
+      return;
+    }
+
+    String direction = options.optString("direction", ThroughputMeter.DIRECTION_DOWNLOAD);
+    long bytes = options.optLong("bytes", ThroughputMeter.DEFAULT_BYTES);
+    int timeout = options.optInt("timeout", ThroughputMeter.DEFAULT_TIMEOUT);
+    int duration = options.optInt("duration", ThroughputMeter.DEFAULT_DURATION);
+    boolean both = direction.equals(ThroughputMeter.DIRECTION_BOTH);
+    boolean download = both || direction.equals(ThroughputMeter.DIRECTION_DOWNLOAD);
+    boolean upload = both || direction.equals(ThroughputMeter.DIRECTION_UPLOAD);
+
+    // An upload needs a body, a download of 0 bytes reads the whole response
+    if ((!download && !upload) || bytes < (upload ? 1 : 0) || bytes > ThroughputMeter.MAX_BYTES || timeout < 1
+        || duration < 1 || duration > ThroughputMeter.MAX_DURATION) {
+      callbackContext.error("THROUGHPUT_INVALID_DATA");
+      return;
+    }
+
+    // Samples never outnumber the preallocated sample buffers
+    int interval = Math.max(options.optInt("sampleInterval", ThroughputMeter.DEFAULT_SAMPLE_INTERVAL),
+        duration / ThroughputMeter.MAX_SAMPLES + 1);
+
+    URL downloadUrl;
+    URL uploadUrl;
+    try {
+      downloadUrl = new URL(options.getString("url"));
+      uploadUrl = options.has("uploadUrl") ? new URL(options.getString("uploadUrl")) : downloadUrl;
+    } catch (MalformedURLException e) {
+      callbackContext.error("THROUGHPUT_INVALID_URL");
+      return;
+    }
+
+    HttpProbe.ConnectionFactory factory = HttpProbe.DEFAULT_FACTORY;
+    boolean overWifi = !"default".equals(options.optString("network", "wifi"));
+
+    if (overWifi) {
+      ConnectionCache.Snapshot connection = connectionCache.get();
+
+      if (API_VERSION < 21 || connection == null || connection.network == null) {
+        callbackContext.error("WIFI_NETWORK_NOT_AVAILABLE");
+        return;
+      }
+      factory = networkConnectionFactory(connection.network);
+    }
+
+    if (!measuringThroughput.compareAndSet(false, true)) {
+      callbackContext.error("THROUGHPUT_BUSY");
+      return;
+    }
+
+    try {
+      callbackContext.success(measureThroughput(factory, overWifi, download ? downloadUrl : null,
+          upload ? uploadUrl : null, bytes, timeout, duration, interval));
+    } finally {
+      measuringThroughput.set(false);
+    }
+  }
+
+  /**
+   * Run the download and/or upload (a null URL skips it) and build the measureThroughput result
+   */
+  private JSONObject measureThroughput(HttpProbe.ConnectionFactory factory, boolean overWifi, URL downloadUrl,
+      URL uploadUrl, long bytes, int timeout, int duration, int interval) throws JSONException {
+    JSONObject result = new JSONObject();
+    result.put("network", overWifi ? "wifi" : "default");
+    result.put(ThroughputMeter.DIRECTION_DOWNLOAD, JSONObject.NULL);
+    result.put(ThroughputMeter.DIRECTION_UPLOAD, JSONObject.NULL);
+
+    if (downloadUrl != null) {
+      ThroughputMeter.Result measured = throughputMeter.download(factory, downloadUrl, bytes, timeout, duration, interval);
+      Log.d(TAG, "WifiWizard2: measureThroughput " + measured);
+      result.put(ThroughputMeter.DIRECTION_DOWNLOAD, measured.toJSON());
+    }
+
+    if (uploadUrl != null) {
+      ThroughputMeter.Result measured = throughputMeter.upload(factory, uploadUrl, bytes, timeout, duration, interval);
+      Log.d(TAG, "WifiWizard2: measureThroughput " + measured);
+      result.put(ThroughputMeter.DIRECTION_UPLOAD, measured.toJSON());
+    }
+
+    return result;
+  }
+
+  /**
+   * Endpoints from a comma separated config.xml preference, invalid entries are logged and skipped
+   *
+   * @param defaults used when the preference is not set, or has no valid endpoint
+   */
+  private List<InternetCheck.Endpoint> endpointsPreference(String name, String defaults) {
+    List<InternetCheck.Endpoint> endpoints = new ArrayList<InternetCheck.Endpoint>();
+
+    for (String spec : preferences.getString(name, defaults).split(",")) {
+      if (spec.trim().isEmpty()) {
+        continue;
+      }
+
+      try {
+        InternetCheck.Endpoint endpoint = InternetCheck.parse(spec, 0);
+        // The probe URL preference only takes URLs
+        if ((endpoint.url != null || !name.equals(PREF_PROBE_URL)) && endpoints.size() < InternetCheck.MAX_ENDPOINTS) {
+          endpoints.add(endpoint);
+          continue;
+        }
+      } catch (IllegalArgumentException e) {}
+
+      Log.e(TAG, "WifiWizard2: ignoring endpoint '" + spec.trim() + "' in " + name + " preference");
+    }
+
+    if (endpoints.isEmpty()) {
+      Log.e(TAG, "WifiWizard2: no valid endpoints in " + name + " preference, using " + defaults);
+      for (String spec : defaults.split(",")) {
+        endpoints.add(InternetCheck.parse(spec, 0));
+      }
+    }
+    return endpoints;
+  }
+
+  /**
+   * Whether reachability options ([0] == {cache: false}) ask to skip the reachability cache
+   */
+  private static boolean skipCache(JSONArray data) {
+    JSONObject options = data == null ? null : data.optJSONObject(0);
+    return options != null && !options.optBoolean("cache", true);
+  }
+
   /**
    * Check if device is connected to Internet
    */
-  private boolean canConnectToInternet(CallbackContext callbackContext, boolean doPing) {
+  private boolean canConnectToInternet(CallbackContext callbackContext, boolean doPing, boolean refresh) {
 
     try {
 
-      if ( hasInternetConnection(doPing) ) {
+      if ( hasInternetConnection(doPing, refresh) ) {
         // Send success as 1 to return true from Promise (handled in JS)
         callbackContext.success("1");
         return true;
@@ -1535,6 +3036,11 @@ public class WifiWizard2 extends CordovaPlugin {
         return false;
       }
 
+    } catch (InterruptedException e) {
+      // Plugin shutting down, not an answer
+      Thread.currentThread().interrupt();
+      callbackContext.error("INTERRUPTED");
+      return false;
     } catch (Exception e) {
       callbackContext.error(e.getMessage());
       Log.d(TAG, e.getMessage());
@@ -1547,13 +3053,14 @@ public class WifiWizard2 extends CordovaPlugin {
    * 
    * @param callbackContext
    * @param doPing
+   * @param refresh don't use a cached result
    * @return boolean
    */
-  private boolean canConnectToRouter(CallbackContext callbackContext, boolean doPing) {
+  private boolean canConnectToRouter(CallbackContext callbackContext, boolean doPing, boolean refresh) {
 
     try {
 
-      if (hasConnectionToRouter(doPing)) {
+      if (hasConnectionToRouter(doPing, refresh)) {
         // Send success as 1 to return true from Promise (handled in JS)
         callbackContext.success("1");
         return true;
@@ -1562,6 +3069,11 @@ public class WifiWizard2 extends CordovaPlugin {
         return false;
       }
 
+    } catch (InterruptedException e) {
+      // Plugin shutting down, not an answer
+      Thread.currentThread().interrupt();
+      callbackContext.error("INTERRUPTED");
+      return false;
     } catch (Exception e) {
       callbackContext.error(e.getMessage());
       Log.d(TAG, e.getMessage());
@@ -1574,16 +3086,20 @@ public class WifiWizard2 extends CordovaPlugin {
    *
    * @return true if device connect to Internet or return false if not
    */
-  public boolean hasInternetConnection(boolean doPing) {
+  public boolean hasInternetConnection(boolean doPing, boolean refresh) throws InterruptedException {
     if (connectivityManager != null) {
       NetworkInfo info = connectivityManager.getActiveNetworkInfo();
       if (info != null) {
         if (info.isConnected()) {
-          if( doPing ){
-            return pingCmd("8.8.8.8");
-          } else {
-            return isHTTPreachable("http://www.google.com/");
-          }
+          // First endpoint to answer wins, an HTTP endpoint only wins with 204 (a captive portal is not internet)
+          final List<InternetCheck.Endpoint> endpoints = doPing ? internetEndpoints : httpEndpoints;
+          return reachabilityCache.get("internet:" + endpoints, refresh, new ReachabilityCache.Check() {
+            public boolean run() throws InterruptedException {
+              InternetCheck.Result result = internetCheck.run(endpoints, probeEngine, httpProbe);
+              Log.d(TAG, "WifiWizard2: internet check, " + result);
+              return result.isConnected();
+            }
+          });
         }
       }
     }
@@ -1594,9 +3110,9 @@ public class WifiWizard2 extends CordovaPlugin {
    * Check for connection to router by pinging router IP
    * @return
    */
-  public boolean hasConnectionToRouter( boolean doPing ) {
+  public boolean hasConnectionToRouter( boolean doPing, boolean refresh ) throws InterruptedException {
 
-    String ip = getWiFiRouterIP();
+    final String ip = getWiFiRouterIP();
 
     if ( ip == null || ip.equals("0.0.0.0") || connectivityManager == null) {
 
@@ -1609,9 +3125,23 @@ public class WifiWizard2 extends CordovaPlugin {
       if (info != null && info.isConnected()) {
 
         if( doPing ){
-          return pingCmd(ip);
+          return reachabilityCache.get("router:reachable:" + ip, refresh, new ReachabilityCache.Check() {
+            public boolean run() {
+              return probeEngine.run(ProbeEngine.Probe.reachable(ip, ProbeEngine.DEFAULT_TIMEOUT)).isReachable();
+            }
+          });
         } else {
-          return isHTTPreachable("http://" + ip + "/");
+          return reachabilityCache.get("router:http:" + ip, refresh, new ReachabilityCache.Check() {
+            public boolean run() {
+              try {
+                // Any response (even an error or auth page) means the router's web server answered
+                return httpProbe.run(new URL("http://" + ip + "/"), HttpProbe.METHOD_HEAD, HttpProbe.DEFAULT_TIMEOUT)
+                    .isReachable();
+              } catch (MalformedURLException e) {
+                return false;
+              }
+            }
+          });
         }
       } else {
         return false;
@@ -1621,71 +3151,6 @@ public class WifiWizard2 extends CordovaPlugin {
 
   }
 
-  /**
-   * Check if HTTP connection to URL is reachable
-   * 
-   * @param checkURL
-   * @return boolean
-   */
-  public static boolean isHTTPreachable(String checkURL) {
-    try {
-      // make a URL to a known source
-      URL url = new URL(checkURL);
-
-      // open a connection to that source
-      HttpURLConnection urlConnect = (HttpURLConnection) url.openConnection();
-
-      // trying to retrieve data from the source. If there
-      // is no connection, this line will fail
-      Object objData = urlConnect.getContent();
-
-    } catch (Exception e) {
-      e.printStackTrace();
-      return false;
-    }
-
-    return true;
-  }
-
-  /**
-   * Method to Ping IP Address
-   *
-   * @param addr IP address you want to ping it
-   * @return true if the IP address is reachable
-   */
-  public boolean pingCmd(String addr) {
-
-    try {
-
-      String ping = "ping  -c 1 -W 3 " + addr;
-      Runtime run = Runtime.getRuntime();
-      Process pro = run.exec(ping);
-
-      try {
-        pro.waitFor();
-      } catch (InterruptedException e) {
-        Log.e(TAG, "InterruptedException error.", e);
-      }
-
-      int exit = pro.exitValue();
-
-      Log.d(TAG, "pingCmd exitValue" + exit);
-
-      if (exit == 0) {
-        return true;
-      } else {
-        // ip address is not reachable
-        return false;
-      }
-    } catch (UnknownHostException e) {
-      Log.d(TAG, "UnknownHostException: " + e.getMessage());
-    } catch (Exception e) {
-      Log.d(TAG, e.getMessage());
-    }
-
-    return false;
-  }
-
   /**
    * Network Changed Broadcast Receiver
    */
@@ -1889,14 +3354,6 @@ public class WifiWizard2 extends CordovaPlugin {
     }
   }
 
-  /**
-   * Class to store finished boolean in
-   */
-  private class ScanSyncContext {
-
-    public boolean finished = false;
-  }
-
   /**
    * Used for storing access point information
    */
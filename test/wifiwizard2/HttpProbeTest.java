@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import static wifiwizard2.TestSupport.assertEquals;
+import static wifiwizard2.TestSupport.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HttpProbe against a local HttpServer: captive portal classification by status, redirects and timeouts
+ */
+class HttpProbeTest {
+
+  private final HttpProbe probe = new HttpProbe(HttpProbe.DEFAULT_FACTORY);
+
+  private HttpServer server;
+  private ExecutorService executor;
+  // Released when a test ends, so stalled handlers return
+  private CountDownLatch release;
+  private final AtomicInteger redirectTargetHits = new AtomicInteger();
+
+  public static void main(String[] args) throws IOException {
+    HttpProbeTest tests = new HttpProbeTest();
+    tests.start();
+    try {
+      TestSupport.run(tests);
+    } finally {
+      tests.stop();
+    }
+  }
+
+  private void start() throws IOException {
+    release = new CountDownLatch(1);
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    server.setExecutor(executor);
+
+    server.createContext("/generate_204", respond(204, null, null));
+    server.createContext("/portal", respond(200, "<html>Log in to continue</html>", null));
+    server.createContext("/redirect", respond(302, null, "/login"));
+    server.createContext("/login", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        redirectTargetHits.incrementAndGet();
+        respond(200, "login", null).handle(exchange);
+      }
+    });
+    server.createContext("/error", respond(503, "unavailable", null));
+    server.createContext("/stall", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {}
+        respond(204, null, null).handle(exchange);
+      }
+    });
+
+    server.start();
+  }
+
+  private void stop() {
+    release.countDown();
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  void testNoContentIsNotCaptivePortal() throws IOException {
+    HttpProbe.Result result = probe.run(url("/generate_204"), HttpProbe.METHOD_HEAD, 2000);
+
+    assertEquals(204, result.status, "status");
+    assertTrue(result.isReachable(), "reachable");
+    assertTrue(!result.isCaptivePortal(), "not a captive portal");
+    assertTrue(result.rtt >= 0, "rtt measured");
+    assertEquals(null, result.error, "error");
+  }
+
+  void testOkWithBodyIsCaptivePortal() throws IOException {
+    HttpProbe.Result result = probe.run(url("/portal"), HttpProbe.METHOD_GET, 2000);
+
+    assertEquals(200, result.status, "status");
+    assertTrue(result.isReachable(), "reachable");
+    assertTrue(result.isCaptivePortal(), "captive portal");
+  }
+
+  void testRedirectIsNotFollowed() throws IOException {
+    redirectTargetHits.set(0);
+
+    HttpProbe.Result result = probe.run(url("/redirect"), HttpProbe.METHOD_GET, 2000);
+
+    assertEquals(302, result.status, "status");
+    assertEquals("/login", result.location, "location");
+    assertTrue(result.isCaptivePortal(), "captive portal");
+    assertEquals(0, redirectTargetHits.get(), "redirect target requests");
+  }
+
+  void testServerErrorIsReachable() throws IOException {
+    HttpProbe.Result result = probe.run(url("/error"), HttpProbe.METHOD_GET, 2000);
+
+    assertEquals(503, result.status, "status");
+    assertTrue(result.isReachable(), "reachable");
+  }
+
+  void testStalledServerTimesOut() throws IOException {
+    long started = System.nanoTime();
+    HttpProbe.Result result = probe.run(url("/stall"), HttpProbe.METHOD_HEAD, 300);
+    long took = (System.nanoTime() - started) / 1000000;
+
+    assertEquals("TIMEOUT", result.error, "error");
+    assertEquals(-1, result.status, "status");
+    assertTrue(!result.isReachable(), "not reachable");
+    assertTrue(took >= 250 && took < 2000, "waited for the read timeout, took " + took + " ms");
+  }
+
+  void testRefusedConnection() throws IOException {
+    ServerSocket closed = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    int port = closed.getLocalPort();
+    closed.close();
+
+    HttpProbe.Result result = probe.run(new URL("http://127.0.0.1:" + port + "/generate_204"), HttpProbe.METHOD_HEAD,
+        2000);
+
+    assertEquals(-1, result.status, "status");
+    assertTrue(!result.isReachable(), "not reachable");
+    assertTrue(result.error != null, "error set");
+  }
+
+  void testCancelStalledRequest() throws Exception {
+    final HttpProbe.Call call = probe.newCall(url("/stall"), HttpProbe.METHOD_HEAD, 10000);
+
+    Thread canceller = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          return;
+        }
+        call.cancel();
+      }
+    });
+
+    long started = System.nanoTime();
+    canceller.start();
+    HttpProbe.Result result = call.execute();
+    long took = (System.nanoTime() - started) / 1000000;
+    canceller.join();
+
+    assertEquals(HttpProbe.ERROR_CANCELLED, result.error, "error");
+    assertTrue(took < 2000, "returned once cancelled, took " + took + " ms");
+  }
+
+  private URL url(String path) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+  }
+
+  /**
+   * Handler answering with status, an optional body and an optional Location header
+   */
+  private static HttpHandler respond(final int status, final String body, final String location) {
+    return new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if (location != null) {
+          exchange.getResponseHeaders().set("Location", location);
+        }
+
+        byte[] bytes = body == null ? new byte[0] : body.getBytes("UTF-8");
+        boolean noBody = bytes.length == 0 || "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(status, noBody ? -1 : bytes.length);
+
+        if (!noBody) {
+          OutputStream stream = exchange.getResponseBody();
+          stream.write(bytes);
+          stream.close();
+        }
+        exchange.close();
+      }
+    };
+  }
+}
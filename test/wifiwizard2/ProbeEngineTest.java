@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import static wifiwizard2.TestSupport.assertEquals;
+import static wifiwizard2.TestSupport.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProbeEngine against local TCP and UDP listeners
+ */
+class ProbeEngineTest {
+
+  private static final String LOOPBACK = "127.0.0.1";
+
+  private final ProbeEngine engine = new ProbeEngine(null);
+
+  public static void main(String[] args) {
+    TestSupport.run(new ProbeEngineTest());
+  }
+
+  void testTcpAccepted() throws IOException {
+    ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK));
+
+    try {
+      ProbeEngine.Result result = engine.run(ProbeEngine.Probe.tcp(LOOPBACK, server.getLocalPort(), 2000));
+
+      assertEquals(ProbeEngine.STATUS_OK, result.status, "status");
+      assertTrue(result.isReachable(), "reachable");
+      assertTrue(result.rtt >= 0, "rtt measured");
+    } finally {
+      server.close();
+    }
+  }
+
+  void testTcpRefusedIsReachable() throws IOException {
+    int port = closedTcpPort();
+
+    ProbeEngine.Result result = engine.run(ProbeEngine.Probe.tcp(LOOPBACK, port, 2000));
+
+    // The host answered with a reset, so it is up
+    assertEquals(ProbeEngine.STATUS_REFUSED, result.status, "status");
+    assertTrue(result.isReachable(), "reachable");
+    assertTrue(result.rtt >= 0, "rtt measured");
+  }
+
+  void testTcpTimeout() throws IOException {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK));
+    List<Socket> backlog = fillBacklog(server);
+
+    try {
+      long started = System.nanoTime();
+      ProbeEngine.Result result = engine.run(ProbeEngine.Probe.tcp(LOOPBACK, server.getLocalPort(), 300));
+      long took = (System.nanoTime() - started) / 1000000;
+
+      assertEquals(ProbeEngine.STATUS_TIMEOUT, result.status, "status");
+      assertTrue(!result.isReachable(), "not reachable");
+      assertEquals(-1.0, result.rtt, "rtt");
+      assertTrue(took >= 250 && took < 2000, "waited for the timeout, took " + took + " ms");
+    } finally {
+      closeAll(backlog);
+      server.close();
+    }
+  }
+
+  void testUdpReply() throws Exception {
+    final DatagramSocket server = new DatagramSocket(0, InetAddress.getByName(LOOPBACK));
+
+    Thread echo = new Thread(new Runnable() {
+      public void run() {
+        try {
+          DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+          server.receive(packet);
+          server.send(packet);
+        } catch (IOException e) {}
+      }
+    });
+    echo.start();
+
+    try {
+      ProbeEngine.Result result = engine.run(ProbeEngine.Probe.udp(LOOPBACK, server.getLocalPort(), 2000));
+
+      assertEquals(ProbeEngine.STATUS_OK, result.status, "status");
+      assertTrue(result.rtt >= 0, "rtt measured");
+    } finally {
+      server.close();
+      echo.join();
+    }
+  }
+
+  void testUdpPortUnreachableIsRefused() throws IOException {
+    DatagramSocket closed = new DatagramSocket(0, InetAddress.getByName(LOOPBACK));
+    int port = closed.getLocalPort();
+    closed.close();
+
+    ProbeEngine.Result result = engine.run(ProbeEngine.Probe.udp(LOOPBACK, port, 2000));
+
+    assertEquals(ProbeEngine.STATUS_REFUSED, result.status, "status");
+    assertTrue(result.isReachable(), "reachable");
+  }
+
+  void testUdpTimeout() throws IOException {
+    DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName(LOOPBACK));
+
+    try {
+      ProbeEngine.Result result = engine.run(ProbeEngine.Probe.udp(LOOPBACK, silent.getLocalPort(), 300));
+
+      assertEquals(ProbeEngine.STATUS_TIMEOUT, result.status, "status");
+      assertEquals(-1.0, result.rtt, "rtt");
+    } finally {
+      silent.close();
+    }
+  }
+
+  void testCancelClosesUdpSocket() throws Exception {
+    DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName(LOOPBACK));
+
+    try {
+      ProbeEngine.Call call = engine.newCall(ProbeEngine.Probe.udp(LOOPBACK, silent.getLocalPort(), 10000));
+      assertCancelledPromptly(call);
+    } finally {
+      silent.close();
+    }
+  }
+
+  void testCancelClosesTcpSocket() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK));
+    List<Socket> backlog = fillBacklog(server);
+
+    try {
+      ProbeEngine.Call call = engine.newCall(ProbeEngine.Probe.tcp(LOOPBACK, server.getLocalPort(), 10000));
+      assertCancelledPromptly(call);
+    } finally {
+      closeAll(backlog);
+      server.close();
+    }
+  }
+
+  void testCancelBeforeExecute() {
+    ProbeEngine.Call call = engine.newCall(ProbeEngine.Probe.tcp(LOOPBACK, 9, 1000));
+    call.cancel();
+
+    assertEquals(ProbeEngine.STATUS_CANCELLED, call.execute().status, "status");
+  }
+
+  /**
+   * Cancel call from another thread while it blocks, it must return well before its 10 s timeout
+   */
+  private static void assertCancelledPromptly(final ProbeEngine.Call call) throws InterruptedException {
+    Thread canceller = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          return;
+        }
+        call.cancel();
+      }
+    });
+
+    long started = System.nanoTime();
+    canceller.start();
+    ProbeEngine.Result result = call.execute();
+    long took = (System.nanoTime() - started) / 1000000;
+    canceller.join();
+
+    assertEquals(ProbeEngine.STATUS_CANCELLED, result.status, "status");
+    assertTrue(took < 2000, "returned once cancelled, took " + took + " ms");
+  }
+
+  private static int closedTcpPort() throws IOException {
+    ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK));
+    int port = server.getLocalPort();
+    server.close();
+    return port;
+  }
+
+  /**
+   * Connect to server (never accepting) until its accept queue is full, so further SYNs are dropped
+   */
+  private static List<Socket> fillBacklog(ServerSocket server) throws IOException {
+    List<Socket> sockets = new ArrayList<Socket>();
+
+    for (int i = 0; i < 16; i++) {
+      Socket socket = new Socket();
+      sockets.add(socket);
+      try {
+        socket.connect(new InetSocketAddress(LOOPBACK, server.getLocalPort()), 200);
+      } catch (SocketTimeoutException e) {
+        return sockets;
+      }
+    }
+
+    closeAll(sockets);
+    throw new IOException("accept queue never filled, can't test a connect timeout");
+  }
+
+  private static void closeAll(List<Socket> sockets) {
+    for (Socket socket : sockets) {
+      try {
+        socket.close();
+      } catch (IOException e) {}
+    }
+  }
+}
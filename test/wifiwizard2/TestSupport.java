@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Minimal runner for the plain JVM tests in this directory, so they need no test framework
+ *
+ * Only plugin classes that depend on nothing but java.* and org.json can run outside Android, e.g.:
+ *
+ *   javac -cp json.jar -d build/test src/android/wifiwizard2/ProbeEngine.java src/android/wifiwizard2/HttpProbe.java \
+ *       src/android/wifiwizard2/ThroughputMeter.java test/wifiwizard2/*.java
+ *   java -cp json.jar:build/test wifiwizard2.ProbeEngineTest
+ *
+ * Every test* method of the test class is run, in name order.  Failures are printed, and the exit status is 1 when
+ * any test failed.  Tests only use localhost servers.
+ */
+final class TestSupport {
+
+  private TestSupport() {}
+
+  static void run(Object tests) {
+    Method[] methods = tests.getClass().getDeclaredMethods();
+    Arrays.sort(methods, new Comparator<Method>() {
+      public int compare(Method a, Method b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+
+    int run = 0;
+    int failed = 0;
+
+    for (Method method : methods) {
+      if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0) {
+        continue;
+      }
+
+      run++;
+      try {
+        method.invoke(tests);
+        System.out.println("PASS " + method.getName());
+      } catch (InvocationTargetException e) {
+        failed++;
+        System.out.println("FAIL " + method.getName() + ": " + e.getCause());
+        e.getCause().printStackTrace(System.out);
+      } catch (IllegalAccessException e) {
+        failed++;
+        System.out.println("FAIL " + method.getName() + ": " + e);
+      }
+    }
+
+    System.out.println(tests.getClass().getSimpleName() + ": " + run + " tests, " + failed + " failed");
+
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  static void assertTrue(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+  static void assertEquals(Object expected, Object actual, String message) {
+    if (expected == null ? actual != null : !expected.equals(actual)) {
+      throw new AssertionError(message + ": expected " + expected + ", was " + actual);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Myles McNamara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package wifiwizard2;
+
+import static wifiwizard2.TestSupport.assertEquals;
+import static wifiwizard2.TestSupport.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ThroughputMeter against a local HttpServer: bytes, completion, samples, Mbps and error codes
+ */
+class ThroughputMeterTest {
+
+  private static final int BODY_SIZE = 1000 * 1000;
+  private static final int CHUNK_SIZE = 10 * 1000;
+
+  private final ThroughputMeter meter = new ThroughputMeter();
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private final AtomicLong uploaded = new AtomicLong();
+
+  public static void main(String[] args) throws IOException {
+    ThroughputMeterTest tests = new ThroughputMeterTest();
+    tests.start();
+    try {
+      TestSupport.run(tests);
+    } finally {
+      tests.stop();
+    }
+  }
+
+  private void start() throws IOException {
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    server.setExecutor(executor);
+
+    // BODY_SIZE bytes at once
+    server.createContext("/body", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, BODY_SIZE);
+        OutputStream stream = exchange.getResponseBody();
+        stream.write(new byte[BODY_SIZE]);
+        stream.close();
+      }
+    });
+
+    // 5 chunks 150 ms apart, then a last one right after the fifth
+    server.createContext("/paced", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, CHUNK_SIZE * 6);
+        OutputStream stream = exchange.getResponseBody();
+        for (int i = 0; i < 6; i++) {
+          if (i > 0 && i < 5) {
+            sleep(150);
+          }
+          stream.write(new byte[CHUNK_SIZE]);
+          stream.flush();
+        }
+        stream.close();
+      }
+    });
+
+    // A chunk every 50 ms for 5 s, chunked
+    server.createContext("/slow", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream stream = exchange.getResponseBody();
+        try {
+          for (int i = 0; i < 100; i++) {
+            stream.write(new byte[CHUNK_SIZE]);
+            stream.flush();
+            sleep(50);
+          }
+          stream.close();
+        } catch (IOException e) {
+          // Client hung up
+        }
+      }
+    });
+
+    // One chunk, then nothing for 5 s
+    server.createContext("/stall", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, CHUNK_SIZE * 2);
+        OutputStream stream = exchange.getResponseBody();
+        try {
+          stream.write(new byte[CHUNK_SIZE]);
+          stream.flush();
+          sleep(5000);
+          stream.write(new byte[CHUNK_SIZE]);
+          stream.close();
+        } catch (IOException e) {
+          // Client hung up
+        }
+      }
+    });
+
+    server.createContext("/missing", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody(), 0);
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+      }
+    });
+
+    // Counts the uploaded body
+    server.createContext("/upload", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        uploaded.set(drain(exchange.getRequestBody(), 0));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+
+    // Reads the uploaded body slowly
+    server.createContext("/slow-upload", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          drain(exchange.getRequestBody(), 20);
+          exchange.sendResponseHeaders(200, -1);
+        } catch (IOException e) {
+          // Client hung up
+        }
+        exchange.close();
+      }
+    });
+
+    server.start();
+  }
+
+  private void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  void testDownloadWholeBody() throws IOException {
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/body"), 0, 2000, 10000, 50);
+
+    assertEquals(null, result.error, "error");
+    assertEquals(200, result.status, "status");
+    assertEquals((long) BODY_SIZE, result.bytes, "bytes");
+    assertTrue(result.complete, "complete");
+    assertTrue(result.ttfb >= 0, "ttfb measured");
+    assertEquals(result.bytes, sampleBytes(result), "bytes over all samples");
+    assertEquals(expectedMbps(result.bytes, result.duration), result.mbps, "mbps");
+  }
+
+  void testDownloadStopsAtBytes() throws IOException {
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/body"), 100000, 2000, 10000, 50);
+
+    assertEquals(100000L, result.bytes, "bytes");
+    assertTrue(result.complete, "complete");
+  }
+
+  void testSamplePerInterval() throws IOException {
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/paced"), 0, 2000, 10000, 100);
+    int samples = result.samples.length / 3;
+
+    assertTrue(result.complete, "complete");
+    assertEquals((long) CHUNK_SIZE * 6, result.bytes, "bytes");
+    // One sample per 150 ms gap, plus the partial last interval (the last two chunks may share a sample)
+    assertTrue(samples >= 4 && samples <= 6, "samples: " + samples);
+    assertEquals(result.bytes, sampleBytes(result), "bytes over all samples");
+
+    double previousEnd = 0;
+    for (int i = 0; i < samples; i++) {
+      assertTrue(result.samples[i * 3] > previousEnd, "sample ends increase");
+      assertTrue(result.samples[i * 3 + 1] > 0, "sample has bytes");
+      previousEnd = result.samples[i * 3];
+    }
+    assertEquals(result.duration, result.samples[(samples - 1) * 3], "last sample ends with the transfer");
+  }
+
+  void testPartialLastInterval() throws IOException {
+    // No interval boundary is reached, everything lands in the partial last interval
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/body"), 0, 2000, 10000, 10000);
+
+    assertEquals(3, result.samples.length, "one sample");
+    assertEquals(result.duration, result.samples[0], "sample end");
+    assertEquals((double) BODY_SIZE, result.samples[1], "sample bytes");
+    assertEquals(expectedMbps(BODY_SIZE, result.duration), result.samples[2], "sample mbps");
+  }
+
+  void testDownloadDurationExceeded() throws IOException {
+    long started = System.nanoTime();
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/slow"), 0, 2000, 300, 50);
+    long took = (System.nanoTime() - started) / 1000000;
+
+    assertEquals("DURATION_EXCEEDED", result.error, "error");
+    assertTrue(!result.complete, "not complete");
+    assertTrue(result.bytes > 0 && result.bytes < CHUNK_SIZE * 100, "some bytes: " + result.bytes);
+    assertTrue(took < 1500, "stopped at the duration, took " + took + " ms");
+  }
+
+  void testStalledDownloadStopsAtDuration() throws IOException {
+    // The read timeout is longer than the duration, the watchdog has to stop the blocked read
+    long started = System.nanoTime();
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/stall"), 0, 3000, 300, 50);
+    long took = (System.nanoTime() - started) / 1000000;
+
+    assertEquals("DURATION_EXCEEDED", result.error, "error");
+    assertTrue(!result.complete, "not complete");
+    assertEquals((long) CHUNK_SIZE, result.bytes, "bytes");
+    assertEquals(result.bytes, sampleBytes(result), "bytes over all samples");
+    assertTrue(took < 1500, "stopped at the duration, took " + took + " ms");
+  }
+
+  void testDownloadHttpError() throws IOException {
+    ThroughputMeter.Result result = meter.download(HttpProbe.DEFAULT_FACTORY, url("/missing"), 0, 2000, 10000, 50);
+
+    assertEquals("HTTP_ERROR", result.error, "error");
+    assertEquals(404, result.status, "status");
+    assertEquals(0L, result.bytes, "bytes");
+    assertTrue(!result.complete, "not complete");
+  }
+
+  void testUpload() throws IOException {
+    uploaded.set(-1);
+
+    ThroughputMeter.Result result = meter.upload(HttpProbe.DEFAULT_FACTORY, url("/upload"), 500000, 2000, 10000, 50);
+
+    assertEquals(null, result.error, "error");
+    assertEquals(200, result.status, "status");
+    assertEquals(500000L, result.bytes, "bytes");
+    assertEquals(500000L, uploaded.get(), "bytes received by the server");
+    assertTrue(result.complete, "complete");
+    assertEquals(result.bytes, sampleBytes(result), "bytes over all samples");
+    assertEquals(expectedMbps(result.bytes, result.duration), result.mbps, "mbps");
+  }
+
+  void testUploadHttpError() throws IOException {
+    ThroughputMeter.Result result = meter.upload(HttpProbe.DEFAULT_FACTORY, url("/missing"), 1000, 2000, 10000, 50);
+
+    assertEquals("HTTP_ERROR", result.error, "error");
+    assertEquals(404, result.status, "status");
+    assertTrue(!result.complete, "not complete");
+  }
+
+  void testUploadDurationExceeded() throws IOException {
+    long started = System.nanoTime();
+    ThroughputMeter.Result result = meter.upload(HttpProbe.DEFAULT_FACTORY, url("/slow-upload"),
+        ThroughputMeter.MAX_BYTES, 2000, 300, 50);
+    long took = (System.nanoTime() - started) / 1000000;
+
+    assertEquals("DURATION_EXCEEDED", result.error, "error");
+    assertTrue(!result.complete, "not complete");
+    assertTrue(result.bytes > 0 && result.bytes < ThroughputMeter.MAX_BYTES, "some bytes: " + result.bytes);
+    assertTrue(took < 1500, "stopped at the duration, took " + took + " ms");
+  }
+
+  private URL url(String path) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+  }
+
+  private static long sampleBytes(ThroughputMeter.Result result) {
+    long bytes = 0;
+    for (int i = 1; i < result.samples.length; i += 3) {
+      bytes += (long) result.samples[i];
+    }
+    return bytes;
+  }
+
+  private static double expectedMbps(long bytes, double milliseconds) {
+    return Math.round(bytes * 8 / (milliseconds * 1000) * 100) / 100.0;
+  }
+
+  /**
+   * Read stream to the end, sleeping pause milliseconds between reads
+   */
+  private static long drain(InputStream stream, int pause) throws IOException {
+    byte[] buffer = new byte[CHUNK_SIZE];
+    long total = 0;
+    int read;
+    while ((read = stream.read(buffer)) >= 0) {
+      total += read;
+      if (pause > 0) {
+        sleep(pause);
+      }
+    }
+    return total;
+  }
+
+  private static void sleep(long milliseconds) {
+    try {
+      Thread.sleep(milliseconds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -120,6 +120,77 @@ var WifiWizard2 = {
         });
     },
 
+    /**
+     * Add (or update) many wifi network configurations in one call
+     *
+     * On Android 10+ (API 29+) networks are added as network suggestions
+     * Resolves with a result per network, in order: [{SSID, success, networkId, error}, ...]
+     * @param {Array} networks  Objects created by formatWifiConfig()
+     * @returns {Promise<any>}
+     */
+    addMany: function (networks) {
+        return new Promise(function (resolve, reject) {
+            if (!Array.isArray(networks)) {
+                reject("Invalid parameter. networks not an array.");
+                return;
+            }
+
+            var list = networks.map(function (wifi) {
+                var auth = (wifi && typeof wifi.auth == "object") ? wifi.auth : {algorithm: "NONE"};
+                var password = auth.algorithm === "NONE" ? "NONE" : auth.password;
+                return [wifi ? wifi.SSID : null, auth.algorithm, password, !!(wifi && wifi.isHiddenSSID)];
+            });
+
+            cordova.exec(resolve, reject, "WifiWizard2", "addMany", [list]);
+        });
+    },
+
+    /**
+     * Remove many wifi network configurations in one call
+     *
+     * Resolves with a result per network, in order: [{SSID, success, networkId, error}, ...]
+     * @param {Array} SSIDs
+     * @returns {Promise<any>}
+     */
+    removeMany: function (SSIDs) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "removeMany", [(SSIDs || []).map(WifiWizard2.formatWifiString)]);
+        });
+    },
+
+    /**
+     * Enable many wifi network configurations in one call (without connecting to them)
+     *
+     * Resolves with a result per network, in order: [{SSID, success, networkId, error}, ...]
+     * @param {Array} SSIDs
+     * @returns {Promise<any>}
+     */
+    enableMany: function (SSIDs) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "enableMany", [(SSIDs || []).map(WifiWizard2.formatWifiString)]);
+        });
+    },
+
+    /**
+     * Run several native actions in order, in a single call
+     *
+     * Step args may reference earlier results with "$prev", "$name" or "$name.key"
+     * Resolves (or rejects when a step failed) with {success, steps: [{action, name, success, result, error, time}], failedStep, time}
+     * @param {Array} steps             [{action: "add", args: [...], name: "...", continueOnError: false}, ...]
+     * @param {Object} [options]        {stepTimeout: 60000}
+     * @returns {Promise<any>}
+     */
+    pipeline: function (steps, options) {
+        return new Promise(function (resolve, reject) {
+            if (!Array.isArray(steps)) {
+                reject("Invalid parameter. steps not an array.");
+                return;
+            }
+
+            cordova.exec(resolve, reject, "WifiWizard2", "pipeline", [steps, options || null]);
+        });
+    },
+
     /**
      * Remove wifi network configuration
      * @param {string|int} [SSID]
@@ -140,9 +211,11 @@ var WifiWizard2 = {
      * @param {boolean} [bindAll=false]            Whether or not to bind all connections from app, through WiFi connection
      * @param {string} [password=]
      * @param {string} [algorithm=NONE]            WPA, WPA (for WPA2), WEP or NONE (NONE by default)
+     * @param {boolean} [isHiddenSSID=false]
+     * @param {int} [timeout=15000]                 Milliseconds to wait for connection before rejecting
      * @returns {Promise<any>}
      */
-    connect: function (SSID, bindAll, password, algorithm, isHiddenSSID) {
+    connect: function (SSID, bindAll, password, algorithm, isHiddenSSID, timeout) {
         return new Promise(function (resolve, reject) {
 
             if (!SSID) {
@@ -152,6 +225,7 @@ var WifiWizard2 = {
 
             var wifiConfig = WifiWizard2.formatWifiConfig(SSID, password, algorithm, isHiddenSSID);
             bindAll = bindAll ? true : false;
+            timeout = timeout ? parseInt(timeout, 10) : 15000;
 
             if (!wifiConfig) {
                 reject('Algorithm incorrect');
@@ -162,7 +236,7 @@ var WifiWizard2 = {
 
                 // Successfully updated or added wifiConfig
                 if(device.platform === "Android" && !(parseInt(device.version.split('.')[0]) >= 10)) {
-					cordova.exec(resolve, reject, "WifiWizard2", "connect", [WifiWizard2.formatWifiString(SSID), bindAll]);
+					cordova.exec(resolve, reject, "WifiWizard2", "connect", [WifiWizard2.formatWifiString(SSID), bindAll, timeout]);
 				} else {
                     resolve(newNetID);
                 }
@@ -176,7 +250,7 @@ var WifiWizard2 = {
                     // This error above should only be returned when the add method was able to pull a network ID (as it tries to update instead of adding)
                     // Lets go ahead and attempt to connect to that SSID (using the existing wifi configuration)
                     if(device.platform === "Android" && !(parseInt(device.version.split('.')[0]) >= 10)) {
-						cordova.exec(resolve, reject, "WifiWizard2", "connect", [WifiWizard2.formatWifiString(SSID), bindAll]);
+						cordova.exec(resolve, reject, "WifiWizard2", "connect", [WifiWizard2.formatWifiString(SSID), bindAll, timeout]);
 					}
 
                 } else {
@@ -216,13 +290,15 @@ var WifiWizard2 = {
      * @param {string|int} [SSID]
      * @param {boolean} [bindAll=false]                            Whether or not to bind all network requests to this wifi network
      * @param {boolean} [waitForConnection=false]        Whether or not to wait before resolving promise until connection to wifi is verified
+     * @param {int} [timeout=15000]                      Milliseconds to wait for connection before rejecting
      * @returns {Promise<any>}
      */
-    enable: function (SSID, bindAll, waitForConnection) {
+    enable: function (SSID, bindAll, waitForConnection, timeout) {
         return new Promise(function (resolve, reject) {
             bindAll = bindAll ? true : false;
             waitForConnection = waitForConnection ? true : false;
-            cordova.exec(resolve, reject, "WifiWizard2", "enable", [WifiWizard2.formatWifiString(SSID), bindAll, waitForConnection]);
+            timeout = timeout ? parseInt(timeout, 10) : 15000;
+            cordova.exec(resolve, reject, "WifiWizard2", "enable", [WifiWizard2.formatWifiString(SSID), bindAll, waitForConnection, timeout]);
         });
     },
 
@@ -269,17 +345,23 @@ var WifiWizard2 = {
 
     /**
      * Start network scan and return results
+     *
+     * Concurrent calls share a single scan. Pass {reportSource: true} to resolve with
+     * {source: "scan"|"cached", results: [...]} instead of just the results array.
+     *
      * @param options
      * @returns {Promise<any>}
      */
     scan: function (options) {
         return new Promise(function (resolve, reject) {
-            cordova.exec(resolve, reject, 'WifiWizard2', 'scan', [options]);
+            cordova.exec(WifiWizard2._scanResultsHandler(options, resolve), reject, 'WifiWizard2', 'scan', [options]);
         });
     },
 
     /**
      * Start wifi network scan (results can be retrieved with getScanResults)
+     *
+     * Resolves with SCAN_STARTED, SCAN_IN_PROGRESS or SCAN_THROTTLED
      * @returns {Promise<any>}
      */
     startScan: function () {
@@ -290,15 +372,152 @@ var WifiWizard2 = {
 
     /**
      * Get wifi scan results (must call startScan first, or just use scan())
+     *
+     * Pass {mode: "delta", since: token} to only get results added, changed or removed since the call that returned token
+     * Pass {format: "binary"} to transfer results in a compact binary format (decoded automatically unless {decode: false})
+     * Pass {includeSecurity: true} to add a parsed `security` object (authType, keyManagement, ciphers, ...) to each result
      * @param options
      * @returns {Promise<any>}
      */
     getScanResults: function (options) {
         return new Promise(function (resolve, reject) {
-            cordova.exec(resolve, reject, "WifiWizard2", "getScanResults", [options]);
+            cordova.exec(WifiWizard2._scanResultsHandler(options, resolve), reject, "WifiWizard2", "getScanResults", [options]);
         });
     },
 
+    /**
+     * Get channel congestion (AP counts, overlap, occupancy) and ranked recommended channels per band
+     *
+     * @param {Object} [options]           Same filter options as getScanResults
+     * @returns {Promise<any>}
+     */
+    getChannelAnalysis: function (options) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "getChannelAnalysis", [options || null]);
+        });
+    },
+
+    /**
+     * Get RSSI statistics (smoothed, min, max, variance, trend) for networks seen in previous scan results
+     *
+     * @param {Object} [options]           {bssids: [...], alpha: 0.3, samples: false}
+     * @returns {Promise<any>}
+     */
+    getSignalHistory: function (options) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "getSignalHistory", [options || null]);
+        });
+    },
+
+    /**
+     * Decode scan results sent with {format: "binary"} (see ScanResultEncoder.java for the layout)
+     *
+     * @param {ArrayBuffer} buffer
+     * @param {boolean} [reportSource=false]       Return {source: "scan"|"cached", results: [...]} when source is known
+     * @returns {Array|Object}
+     */
+    decodeScanResults: function (buffer, reportSource) {
+        var view = new DataView(buffer);
+
+        if (view.getUint8(0) !== 0x57 || view.getUint8(1) !== 0x57 || view.getUint8(2) !== 0x32 || view.getUint8(3) !== 0x53) {
+            throw new Error("WifiWizard2: invalid scan results buffer");
+        }
+
+        var flags = view.getUint8(5);
+        var stringCount = view.getUint16(6, true);
+        var count = view.getUint32(8, true);
+        var offset = 12;
+        var strings = [];
+        var i;
+
+        for (i = 0; i < stringCount; i++) {
+            var length = view.getUint16(offset, true);
+            strings.push(WifiWizard2._decodeUTF8(new Uint8Array(buffer, offset + 2, length)));
+            offset += 2 + length;
+        }
+
+        offset = (offset + 7) & ~7;
+
+        var bssids = offset;
+        var timestamps = bssids + count * 8;
+        var levels = timestamps + count * 8;
+        var frequencies = levels + count * 2;
+        var centerFreq0s = frequencies + count * 2;
+        var centerFreq1s = centerFreq0s + count * 2;
+        var ssids = centerFreq1s + count * 2;
+        var capabilities = ssids + count * 2;
+        var channelWidths = capabilities + count * 2;
+        var results = [];
+
+        for (i = 0; i < count; i++) {
+            var ssid = view.getUint16(ssids + i * 2, true);
+            var caps = view.getUint16(capabilities + i * 2, true);
+            var channelWidth = view.getInt8(channelWidths + i);
+
+            results.push({
+                "level": view.getInt16(levels + i * 2, true),
+                "SSID": ssid === 0xFFFF ? null : strings[ssid],
+                "BSSID": WifiWizard2._formatBSSID(view.getInt32(bssids + i * 8 + 4, true), view.getUint32(bssids + i * 8, true)),
+                "frequency": view.getUint16(frequencies + i * 2, true),
+                "capabilities": caps === 0xFFFF ? null : strings[caps],
+                "timestamp": view.getUint32(timestamps + i * 8 + 4, true) * 4294967296 + view.getUint32(timestamps + i * 8, true),
+                "channelWidth": channelWidth < 0 ? null : channelWidth,
+                "centerFreq0": channelWidth < 0 ? null : view.getUint16(centerFreq0s + i * 2, true),
+                "centerFreq1": channelWidth < 0 ? null : view.getUint16(centerFreq1s + i * 2, true)
+            });
+        }
+
+        if (reportSource && (flags & 6)) {
+            return { "source": (flags & 2) ? "scan" : "cached", "results": results };
+        }
+
+        return results;
+    },
+
+    /**
+     * Resolve scan results, decoding binary results unless {decode: false} was passed
+     * @private
+     */
+    _scanResultsHandler: function (options, resolve) {
+        return function (result) {
+            if (result instanceof ArrayBuffer && !(options && options.decode === false)) {
+                resolve(WifiWizard2.decodeScanResults(result, options && options.reportSource));
+            } else {
+                resolve(result);
+            }
+        };
+    },
+
+    /**
+     * Format 48 bit MAC (high 16 bits, low 32 bits) as aa:bb:cc:dd:ee:ff, null for the -1 sentinel (no valid MAC)
+     * @private
+     */
+    _formatBSSID: function (high, low) {
+        if (high < 0) {
+            return null;
+        }
+
+        var octets = [(high >>> 8) & 0xff, high & 0xff, (low >>> 24) & 0xff, (low >>> 16) & 0xff, (low >>> 8) & 0xff, low & 0xff];
+        return octets.map(function (octet) {
+            return (octet < 16 ? "0" : "") + octet.toString(16);
+        }).join(":");
+    },
+
+    /**
+     * Decode UTF-8 bytes to string
+     * @private
+     */
+    _decodeUTF8: function (bytes) {
+        if (typeof TextDecoder !== "undefined") {
+            return new TextDecoder("utf-8").decode(bytes);
+        }
+        var binary = "";
+        for (var i = 0; i < bytes.length; i++) {
+            binary += String.fromCharCode(bytes[i]);
+        }
+        return decodeURIComponent(escape(binary));
+    },
+
     /**
      * Check if WiFi is enabled
      * @returns {Promise<any>}
@@ -397,6 +616,58 @@ var WifiWizard2 = {
         });
     },
 
+    /**
+     * Get the full WiFi connection status in a single call
+     *
+     * Resolves with {enabled, connected, SSID, BSSID, networkId, rssi, linkSpeed, frequency, supplicantState, ip, subnet,
+     * prefixLength, gateway, dns, leaseDuration, capabilities, bindAll, locationPermission}
+     * SSID and BSSID are null without location permission (permission is not requested)
+     * @returns {Promise<any>}
+     */
+    getNetworkStatus: function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "getNetworkStatus", []);
+        });
+    },
+
+    /**
+     * Subscribe to WiFi events, instead of polling
+     *
+     * listener is called with {type, time, ...} for each event, and a final {type: "unsubscribed"} after unsubscribe
+     * Event types: wifiEnabled, wifiDisabled, supplicantState, connected, disconnected, rssi, scanResults, validated, lost
+     * @param {function} listener
+     * @param {Object} [options]        {events: ["connected", "disconnected", ...], coalesce: 0}
+     * @returns {Promise<int>}          Resolves with the subscription ID, to pass to unsubscribe
+     */
+    subscribe: function (listener, options) {
+        return new Promise(function (resolve, reject) {
+            if (typeof listener !== "function") {
+                reject("Invalid parameter. listener not a function.");
+                return;
+            }
+
+            cordova.exec(function (event) {
+                if (event && event.type === "subscribed") {
+                    resolve(event.subscriptionId);
+                    return;
+                }
+
+                listener(event);
+            }, reject, "WifiWizard2", "subscribe", [options || null]);
+        });
+    },
+
+    /**
+     * End a subscription
+     * @param {int} subscriptionId
+     * @returns {Promise<any>}
+     */
+    unsubscribe: function (subscriptionId) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "unsubscribe", [subscriptionId]);
+        });
+    },
+
     /**
      * Get Network ID from SSID
      * @param {string|int} [SSID]
@@ -440,9 +711,10 @@ var WifiWizard2 = {
     },
     /**
      * Check if current WiFi connection has connection to the internet
+     * @param {Object} [options]        {cache: false} to skip cached results
      * @returns {Promise<any>}
      */
-    isConnectedToInternet: function () {
+    isConnectedToInternet: function (options) {
         return new Promise(function (resolve, reject) {
 
             cordova.exec(
@@ -457,16 +729,17 @@ var WifiWizard2 = {
                     }
 
                 },
-                reject, "WifiWizard2", "isConnectedToInternet", []
+                reject, "WifiWizard2", "isConnectedToInternet", [options || null]
             );
 
         });
     },
     /**
      * Check if we can ping current WiFi router IP address
+     * @param {Object} [options]        {cache: false} to skip cached results
      * @returns {Promise<any>}
      */
-    canPingWifiRouter: function () {
+    canPingWifiRouter: function (options) {
         return new Promise(function (resolve, reject) {
 
             cordova.exec(
@@ -481,17 +754,101 @@ var WifiWizard2 = {
                     }
 
                 },
-                reject, "WifiWizard2", "canPingWifiRouter", []
+                reject, "WifiWizard2", "canPingWifiRouter", [options || null]
             );
 
         });
     },
 
+    /**
+     * Probe a host, resolves with {type, host, port, reachable, status, rtt, error}
+     * type "http" resolves with {type, url, method, reachable, status, captivePortal, rtt, location, error}
+     * @param {Object} [options]        {host: router IP, type: "tcp", port: 80, url: probe URL, method: "HEAD", timeout: 3000, network: "wifi"}
+     * @returns {Promise<any>}
+     */
+    probe: function (options) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "probe", [options || null]);
+        });
+    },
+
+    /**
+     * Race internet endpoints, resolves with {connected, captivePortal, winner, time, endpoints: [...]}
+     * @param {Object} [options]        {endpoints: ["8.8.8.8:53", "udp://1.1.1.1:53", "http://..."], timeout: 3000, network: "wifi"}
+     * @returns {Promise<any>}
+     */
+    checkInternet: function (options) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "checkInternet", [options || null]);
+        });
+    },
+
+    /**
+     * Start monitoring router (and optionally internet) latency, jitter and loss
+     *
+     * listener is called with {type: "degraded" | "recovered", target, metric, value, threshold, stats} when a
+     * metric crosses its threshold, {type: "stats", gateway, internet} every reportInterval, {type: "paused"} and
+     * {type: "resumed"} with the app lifecycle, and a final {type: "stopped"} (or "replaced") event
+     * @param {function} listener
+     * @param {Object} [options]        {interval: 1000, timeout: 1000, window: 60, gatewayPort: 53, internet: "8.8.8.8:53", thresholds: {rtt: 100, jitter: 30, loss: 0.1}, reportInterval: 0, pauseInBackground: true}
+     * @returns {Promise<any>}          Resolves once the monitor is started
+     */
+    startLinkMonitor: function (listener, options) {
+        return new Promise(function (resolve, reject) {
+            if (typeof listener !== "function") {
+                reject("Invalid parameter. listener not a function.");
+                return;
+            }
+
+            cordova.exec(function (event) {
+                if (event && event.type === "started") {
+                    resolve(event);
+                    return;
+                }
+
+                listener(event);
+            }, reject, "WifiWizard2", "startLinkMonitor", [options || null]);
+        });
+    },
+
+    /**
+     * Stop the link monitor
+     * @returns {Promise<any>}
+     */
+    stopLinkMonitor: function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "stopLinkMonitor", []);
+        });
+    },
+
+    /**
+     * Get the link monitor's current statistics, resolves with {paused, interval, window, gateway, internet}
+     * @returns {Promise<any>}
+     */
+    getLinkQuality: function () {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "getLinkQuality", []);
+        });
+    },
+
+    /**
+     * Measure download and/or upload throughput over the WiFi network
+     * Resolves with {network, download: {direction, url, status, complete, bytes, ttfb, duration, mbps, samples, error}, upload: {...}}
+     * @param {Object} options          {url: "http://...", uploadUrl: url, direction: "download", bytes: 10000000, timeout: 10000, duration: 15000, sampleInterval: 250, network: "wifi"}
+     * @returns {Promise<any>}
+     */
+    measureThroughput: function (options) {
+        return new Promise(function (resolve, reject) {
+            cordova.exec(resolve, reject, "WifiWizard2", "measureThroughput", [options || null]);
+        });
+    },
+
     /**
      * Check if we can connect via HTTP current WiFi router IP address
+     * @param {Object} [options]        {cache: false} to skip cached results
      * @returns {Promise<any>}
      */
-    canConnectToRouter: function () {
+    canConnectToRouter: function (options) {
         return new Promise(function (resolve, reject) {
 
             cordova.exec(
@@ -506,16 +863,17 @@ var WifiWizard2 = {
                     }
 
                 },
-                reject, "WifiWizard2", "canConnectToRouter", []
+                reject, "WifiWizard2", "canConnectToRouter", [options || null]
             );
 
         });
     },
     /**
-     * Check if current WiFi connection can connect to internet (checks connection to google.com)
+     * Check if current WiFi connection can connect to internet (checks a probe URL answers 204)
+     * @param {Object} [options]        {cache: false} to skip cached results
      * @returns {Promise<any>}
      */
-    canConnectToInternet: function () {
+    canConnectToInternet: function (options) {
         return new Promise(function (resolve, reject) {
 
             cordova.exec(
@@ -530,7 +888,7 @@ var WifiWizard2 = {
                     }
 
                 },
-                reject, "WifiWizard2", "canConnectToInternet", []
+                reject, "WifiWizard2", "canConnectToInternet", [options || null]
             );
 
         });